@@ -2,30 +2,53 @@ package com.esri.militaryapps.controller;
 
 import com.esri.militaryapps.model.Geomessage;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A controller for ArcGIS Runtime advanced symbology. Use this class when you want to use
- * MessageGroupLayer, MessageProcessor, SymbolDictionary, and MIL-STD-2525C symbols.
+ * MessageGroupLayer, MessageProcessor, SymbolDictionary, and MIL-STD-2525C symbols.<br/>
+ * <br/>
+ * This class is thread-safe. The display state of each Geomessage ID is kept in
+ * a sharded store, and each Geomessage is handled while holding the lock for its
+ * ID only, so Geomessages for different IDs can be handled in parallel while
+ * Geomessages for the same ID are handled one at a time. Implementations' abstract
+ * methods may therefore be called concurrently for different IDs. They are called
+ * while holding the lock for the Geomessage's ID, and the lock of no other ID.
+ * They may call back into this controller for the same ID, but they must not
+ * handle Geomessages with other IDs, or wait for a thread that does, because two
+ * threads doing so for each other's IDs would deadlock.
  */
 public abstract class AdvancedSymbolController {
     
     private static final Logger logger = Logger.getLogger(AdvancedSymbolController.class.getName());
     
+    private static final int TRACK_STORE_SHARDS = 64;
+    private static final Timer labelToggleTimer = new Timer("AdvancedSymbolLabelToggle", true);
+    
+    /**
+     * The default length of each time slice in which setShowLabels redraws
+     * symbols, in milliseconds.
+     */
+    public static final long DEFAULT_LABEL_TOGGLE_SLICE_MILLIS = 20;
+    
     private final MapController mapController;
-    private final Map<String, Geomessage> geomessages = new HashMap<String, Geomessage>();
-    private final HashSet<String> highlightedIds = new HashSet<String>();
-    private final HashMap<String, Integer> spotReportIdToGraphicId = new HashMap<String, Integer>();
+    private final TrackStore tracks = new TrackStore(TRACK_STORE_SHARDS);
     
-    private boolean showLabels = true;
-    private Set<String> messageTypesSupported = null;
+    private volatile boolean showLabels = true;
+    private volatile Set<String> messageTypesSupported = null;
+    private volatile long labelToggleSliceMillis = DEFAULT_LABEL_TOGGLE_SLICE_MILLIS;
+    private volatile Executor labelToggleExecutor = null;
+    
+    //Guarded by this
+    private LabelToggle labelToggle = null;
     
     /**
      * Instantiates a new AdvancedSymbolController.
@@ -61,11 +84,13 @@ public abstract class AdvancedSymbolController {
     protected abstract String translateMessageTypeName(String geomessageTypeName);
     
     private boolean messageTypeExists(String messageType) {
-        if (null == messageTypesSupported) {
-            messageTypesSupported = new HashSet<String>(Arrays.asList(getMessageTypesSupported()));
+        Set<String> types = messageTypesSupported;
+        if (null == types) {
+            types = new HashSet<String>(Arrays.asList(getMessageTypesSupported()));
+            messageTypesSupported = types;
         }
         
-        return messageTypesSupported.contains(messageType);
+        return types.contains(messageType);
     }
     
     /**
@@ -83,8 +108,8 @@ public abstract class AdvancedSymbolController {
      * @param x
      * @param y
      * @param wkid
-     * @param graphicId the graphic ID for the existing graphic; get this from spotReportIdToGraphicId.
-     *                  Use null if this is a new report.
+     * @param graphicId the graphic ID for the existing graphic, or null if this
+     *                  is a new report.
      * @param geomessage
      * @return the graphic ID for the created or updated graphic, or null if the
      *         graphic could not be displayed.
@@ -102,116 +127,112 @@ public abstract class AdvancedSymbolController {
      * @param geomessage the Geomessage to process.
      */
     protected void processGeomessage(Geomessage geomessage) {
-        if ("spotrep".equals(geomessage.getProperty(Geomessage.TYPE_FIELD_NAME))
-                || "spot_report".equals(geomessage.getProperty(Geomessage.TYPE_FIELD_NAME))) {
-            //Use a single symbol for all spot reports
-            String controlPointsString = (String) geomessage.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME);
-            if (null != controlPointsString) {
-                StringTokenizer tok = new StringTokenizer(controlPointsString, ",");
-                if (2 == tok.countTokens()) {
-                    double x = Double.parseDouble(tok.nextToken());
-                    double y = Double.parseDouble(tok.nextToken());
-                    int wkid = Integer.parseInt((String) geomessage.getProperty(Geomessage.WKID_FIELD_NAME));
-                    Integer currentGraphicId = spotReportIdToGraphicId.get(geomessage.getId());
-                    int newGraphicId = displaySpotReport(x, y, wkid, currentGraphicId, geomessage);
-                    if (null == currentGraphicId || currentGraphicId != newGraphicId) {
-                        spotReportIdToGraphicId.put(geomessage.getId(), newGraphicId);
+        TrackStore.Track track = tracks.acquire(geomessage.getId());
+        try {
+            boolean labels = isShowLabels();
+            if ("spotrep".equals(geomessage.getProperty(Geomessage.TYPE_FIELD_NAME))
+                    || "spot_report".equals(geomessage.getProperty(Geomessage.TYPE_FIELD_NAME))) {
+                //Use a single symbol for all spot reports
+                double[] controlPoints = geomessage.getControlPoints();
+                if (null != controlPoints && 2 == controlPoints.length) {
+                    int wkid = geomessage.getWkid();
+                    if (0 > wkid) {
+                        logger.log(Level.SEVERE, "Spot report {0} has no valid _wkid", geomessage.getId());
+                    } else {
+                        Integer newGraphicId = displaySpotReport(controlPoints[0], controlPoints[1], wkid, track.spotReportGraphicId, geomessage);
+                        if (null != newGraphicId) {
+                            track.spotReportGraphicId = newGraphicId;
+                        }
                     }
                 }
-            }
-            if ("remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()))) {
-                synchronized (spotReportIdToGraphicId) {
-                    spotReportIdToGraphicId.remove(geomessage.getId());
+                if ("remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()))) {
+                    track.spotReportGraphicId = null;
                 }
-            }
-        } else {
-            //Let the MessageProcessor handle other types of reports
+            } else {
+                //Let the MessageProcessor handle other types of reports
 
-            /**
-             * Translate from an AFM message type name to a message type name for
-             * your implementation.
-             */
-            String messageType = (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME);
-            if (!messageTypeExists(messageType)) {
-                geomessage.setProperty(Geomessage.TYPE_FIELD_NAME, translateMessageTypeName(messageType));
-            }
-            
-            /**
-             * Translate from a Geomessage color string to a color string for your
-             * implementation.
-             */
-            if ("chemlight".equals(geomessage.getProperty(Geomessage.TYPE_FIELD_NAME))) {
-                String colorString = (String) geomessage.getProperty("color");
-                if (null == colorString) {
-                    colorString = (String) geomessage.getProperty("chemlight");
-                }
-                colorString = translateColorString(colorString);
-                if (null != colorString) {
-                    geomessage.setProperty("chemlight", colorString);
+                /**
+                 * Translate from an AFM message type name to a message type name for
+                 * your implementation.
+                 */
+                String messageType = (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME);
+                if (!messageTypeExists(messageType)) {
+                    geomessage.setProperty(Geomessage.TYPE_FIELD_NAME, translateMessageTypeName(messageType));
                 }
-            }
             
-            //Workaround for https://github.com/Esri/squad-leader-android/issues/63
-            //TODO remove this workaround when the issue is fixed in ArcGIS Runtime
-            if (isShowLabels() && geomessage.getProperties().containsKey("datetimevalid")) {
-                if (!geomessage.getProperties().containsKey("z")) {
-                    geomessage.setProperty("z", "0");
+                /**
+                 * Translate from a Geomessage color string to a color string for your
+                 * implementation.
+                 */
+                if ("chemlight".equals(geomessage.getProperty(Geomessage.TYPE_FIELD_NAME))) {
+                    String colorString = (String) geomessage.getProperty("color");
+                    if (null == colorString) {
+                        colorString = (String) geomessage.getProperty("chemlight");
+                    }
+                    colorString = translateColorString(colorString);
+                    if (null != colorString) {
+                        geomessage.setProperty("chemlight", colorString);
+                    }
                 }
-                String controlPoints = (String) geomessage.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME);
-                if (null != controlPoints) {
-                    StringTokenizer tok = new StringTokenizer(controlPoints, ",; ");
-                    if (2 <= tok.countTokens()) {
-                        try {
-                            Double x = Double.parseDouble(tok.nextToken());
-                            Double y = Double.parseDouble(tok.nextToken());
-                            String wkid = (String) geomessage.getProperty(Geomessage.WKID_FIELD_NAME);
-                            if (null != wkid) {
-                                double[] lonLat = mapController.projectPoint(x, y, Integer.parseInt(wkid), 4326);
-                                x = lonLat[0];
-                                y = lonLat[1];
-                            }
+            
+                //Workaround for https://github.com/Esri/squad-leader-android/issues/63
+                //TODO remove this workaround when the issue is fixed in ArcGIS Runtime
+                if (labels && geomessage.getProperties().containsKey("datetimevalid")) {
+                    if (!geomessage.getProperties().containsKey("z")) {
+                        geomessage.setProperty("z", "0");
+                    }
+                    double[] controlPoints = geomessage.getControlPoints();
+                    if (null != controlPoints && 2 <= controlPoints.length) {
+                        double x = controlPoints[0];
+                        double y = controlPoints[1];
+                        int wkid = geomessage.getWkid();
+                        if (0 <= wkid) {
+                            double[] lonLat = mapController.projectPoint(x, y, wkid, 4326);
+                            x = lonLat[0];
+                            y = lonLat[1];
+                        }
+                        if (0 <= wkid || null == geomessage.getProperty(Geomessage.WKID_FIELD_NAME)) {
                             geomessage.setProperty("x", x);
                             geomessage.setProperty("y", y);
-                        } catch (NumberFormatException nfe) {
-                            logger.log(Level.SEVERE, "_control_points or WKID NumberFormatException", nfe);
+                        } else {
+                            logger.log(Level.SEVERE, "Geomessage {0} has an invalid _wkid", geomessage.getId());
                         }
+                    } else if (null != geomessage.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME)) {
+                        logger.log(Level.SEVERE, "Geomessage {0} has invalid _control_points", geomessage.getId());
                     }
                 }
-            }
             
 
-            if (!isShowLabels()) {
-                geomessage = getGeomessageWithoutLabels(geomessage);
-            }
+                if (!labels) {
+                    geomessage = getGeomessageWithoutLabels(geomessage);
+                }
             
-            processMessage(geomessage);
+                processMessage(geomessage);
             
-            boolean needToHighlight = false;
-            boolean needToUnhighlight = false;
-            boolean previouslyHighlighted = highlightedIds.contains(geomessage.getId());
-            boolean nowHighlighted = "1".equals(geomessage.getProperty("status911"));
-            if (previouslyHighlighted) {
-                needToUnhighlight = !nowHighlighted;
-            } else {
-                needToHighlight = nowHighlighted;
-            }
-            if (needToHighlight || needToUnhighlight) {
-                processHighlightMessage(
-                        geomessage.getId(),
-                        (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME),
-                        needToHighlight);                
-                if (needToHighlight) {
-                    highlightedIds.add(geomessage.getId());
+                boolean needToHighlight = false;
+                boolean needToUnhighlight = false;
+                boolean previouslyHighlighted = track.highlighted;
+                boolean nowHighlighted = "1".equals(geomessage.getProperty("status911"));
+                if (previouslyHighlighted) {
+                    needToUnhighlight = !nowHighlighted;
                 } else {
-                    highlightedIds.remove(geomessage.getId());
+                    needToHighlight = nowHighlighted;
+                }
+                if (needToHighlight || needToUnhighlight) {
+                    processHighlightMessage(
+                            geomessage.getId(),
+                            (String) geomessage.getProperty(Geomessage.TYPE_FIELD_NAME),
+                            needToHighlight);                
+                    track.highlighted = needToHighlight;
                 }
             }
-        }
         
-        if ("remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()))) {
-            synchronized (geomessages) {
-                geomessages.remove(geomessage.getId());
+            if ("remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()))) {
+                track.geomessage = null;
             }
+            track.labelsShown = labels;
+        } finally {
+            tracks.release(track);
         }
     }
     
@@ -246,16 +267,25 @@ public abstract class AdvancedSymbolController {
 
     /**
      * Handles a Geomessage, taking the appropriate actions to display, update, remove,
-     * highlight, or un-highlight an advanced symbol on the map.
+     * highlight, or un-highlight an advanced symbol on the map. When many units
+     * report frequently, call this method from a listener wrapped in a
+     * GeomessageCoalescer, so that it handles only the latest Geomessage for each
+     * unit per display refresh. This method may be called from many threads at
+     * once; storing and processing a Geomessage happen atomically with respect to
+     * other Geomessages with the same ID.
      * @param geomessage the Geomessage to handle.
+     * @see GeomessageCoalescer
      */
     public void handleGeomessage(Geomessage geomessage) {
-        if (!"remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()))) {
-            synchronized (geomessages) {
-                geomessages.put(geomessage.getId(), geomessage);
+        TrackStore.Track track = tracks.acquire(geomessage.getId());
+        try {
+            if (!"remove".equalsIgnoreCase((String) geomessage.getProperty(getActionPropertyName()))) {
+                track.geomessage = geomessage;
             }
+            processGeomessage(geomessage);
+        } finally {
+            tracks.release(track);
         }
-        processGeomessage(geomessage);
     }
     
     /**
@@ -267,33 +297,247 @@ public abstract class AdvancedSymbolController {
     }
 
     /**
-     * Sets whether labels should display on advanced symbology.
+     * Sets whether labels should display on advanced symbology. Equivalent to
+     * setShowLabels(showLabels, null).
      * @param showLabels true if labels should display on advanced symbology.
+     * @see #setShowLabels(boolean, LabelToggleListener)
      */
     public void setShowLabels(boolean showLabels) {
-        if (this.showLabels != showLabels) {
-            synchronized (geomessages) {
-                Iterator<Geomessage> iter = geomessages.values().iterator();
-                while (iter.hasNext()) {
-                    Geomessage mess = iter.next();
-                    processRemoveGeomessage(mess.getId(), (String) mess.getProperty(Geomessage.TYPE_FIELD_NAME));
-                    highlightedIds.remove(mess.getId());
-                }
-                
+        setShowLabels(showLabels, null);
+    }
+
+    /**
+     * Sets whether labels should display on advanced symbology. Geomessages
+     * handled after this method is called use the new setting right away. Symbols
+     * already on the map are redrawn incrementally on a background thread, in time
+     * slices of getLabelToggleSliceMillis() milliseconds, so this method returns
+     * quickly and handleGeomessage is never blocked for more than one symbol's
+     * redraw. Symbols that already match the new setting are skipped. If this method
+     * is called again before the redraw finishes, the earlier redraw stops and the
+     * new one takes over.<br/>
+     * <br/>
+     * Note that the redraw calls processRemoveGeomessage and processMessage, and the
+     * listener's methods, on the thread that runs the slices, not on the thread that
+     * called this method. By default that is a daemon thread shared by all
+     * AdvancedSymbolControllers. If your implementation must draw on a particular
+     * thread, such as a UI thread, call setLabelToggleExecutor first.
+     * @param showLabels true if labels should display on advanced symbology.
+     * @param listener a listener for the redraw's progress, or null.
+     */
+    public void setShowLabels(boolean showLabels, LabelToggleListener listener) {
+        LabelToggle superseded;
+        LabelToggle toggle = null;
+        synchronized (this) {
+            superseded = labelToggle;
+            if (null != superseded) {
+                superseded.cancelled = true;
+            }
+            if (this.showLabels == showLabels && null == superseded) {
+                labelToggle = null;
+            } else {
                 this.showLabels = showLabels;
+                toggle = new LabelToggle(showLabels, tracks.getGeomessageIds(), listener);
+                labelToggle = toggle;
+            }
+        }
+        if (null != superseded) {
+            superseded.fireFinished(true);
+        }
+        if (null != toggle) {
+            toggle.scheduleSlice();
+        } else if (null != listener) {
+            listener.labelToggleProgress(showLabels, 0, 0);
+            listener.labelToggleFinished(showLabels, false);
+        }
+    }
+    
+    /**
+     * @return true if setShowLabels is still redrawing symbols.
+     */
+    public synchronized boolean isLabelToggleInProgress() {
+        return null != labelToggle;
+    }
+
+    /**
+     * @return the length of each time slice in which setShowLabels redraws
+     *         symbols, in milliseconds.
+     */
+    public long getLabelToggleSliceMillis() {
+        return labelToggleSliceMillis;
+    }
 
-                iter = geomessages.values().iterator();
-                while (iter.hasNext()) {
-                    Geomessage mess = iter.next();
-                    processGeomessage(mess);
+    /**
+     * Sets the length of each time slice in which setShowLabels redraws symbols.
+     * Between slices, the redraw thread yields to other work. A slice always redraws
+     * at least one symbol.
+     * @param sliceMillis the slice length in milliseconds. The default is
+     *                    DEFAULT_LABEL_TOGGLE_SLICE_MILLIS.
+     */
+    public void setLabelToggleSliceMillis(long sliceMillis) {
+        labelToggleSliceMillis = Math.max(1, sliceMillis);
+    }
+
+    /**
+     * @return the executor that runs setShowLabels time slices, or null if they
+     *         run on the shared background thread.
+     */
+    public Executor getLabelToggleExecutor() {
+        return labelToggleExecutor;
+    }
+
+    /**
+     * Sets the executor that runs setShowLabels time slices. Each slice is submitted
+     * as a separate task, so an executor that runs tasks on a UI thread leaves that
+     * thread free between slices. A redraw already in progress keeps the executor it
+     * started with. If the executor rejects a slice, the redraw stops early and the
+     * listener's labelToggleFinished is called.
+     * @param executor the executor, or null to run slices on a daemon thread shared
+     *                 by all AdvancedSymbolControllers. The default is null.
+     */
+    public void setLabelToggleExecutor(Executor executor) {
+        labelToggleExecutor = executor;
+    }
+    
+    /**
+     * Redraws the track with the specified ID if it was last drawn with a different
+     * label setting, holding only that track's lock.
+     */
+    private void redrawLabels(String id, boolean labels) {
+        TrackStore.Track track = tracks.acquire(id);
+        try {
+            Geomessage mess = track.geomessage;
+            if (null == mess || labels == track.labelsShown) {
+                return;
+            }
+            processRemoveGeomessage(mess.getId(), (String) mess.getProperty(Geomessage.TYPE_FIELD_NAME));
+            track.highlighted = false;
+            processGeomessage(mess);
+        } finally {
+            tracks.release(track);
+        }
+    }
+    
+    /**
+     * One setShowLabels redraw, run as a series of time slices on the label toggle
+     * executor, or on labelToggleTimer if there is none. The listener is called
+     * while holding this object's monitor, and only if cancelled is false, so no
+     * progress is reported after labelToggleFinished.
+     */
+    private class LabelToggle {
+        
+        private final boolean showLabels;
+        private final List<String> ids;
+        private final LabelToggleListener listener;
+        private final Executor executor;
+        private int next = 0;
+        private volatile boolean cancelled = false;
+
+        LabelToggle(boolean showLabels, List<String> ids, LabelToggleListener listener) {
+            this.showLabels = showLabels;
+            this.ids = ids;
+            this.listener = listener;
+            this.executor = labelToggleExecutor;
+        }
+        
+        void scheduleSlice() {
+            if (null == executor) {
+                labelToggleTimer.schedule(new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        runSlice();
+                    }
+
+                }, 0);
+            } else {
+                try {
+                    executor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            runSlice();
+                        }
+
+                    });
+                } catch (RejectedExecutionException ree) {
+                    logger.log(Level.SEVERE, "Label toggle executor rejected a slice", ree);
+                    finish();
                 }
             }
         }
+        
+        private void runSlice() {
+            if (cancelled) {
+                return;
+            }
+            long deadline = System.nanoTime() + labelToggleSliceMillis * 1000000L;
+            while (next < ids.size() && !cancelled) {
+                try {
+                    redrawLabels(ids.get(next), showLabels);
+                } catch (RuntimeException re) {
+                    logger.log(Level.SEVERE, "Couldn't redraw Geomessage " + ids.get(next), re);
+                }
+                next++;
+                if (deadline <= System.nanoTime()) {
+                    break;
+                }
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (null != listener) {
+                    try {
+                        listener.labelToggleProgress(showLabels, next, ids.size());
+                    } catch (RuntimeException re) {
+                        logger.log(Level.SEVERE, "LabelToggleListener failed", re);
+                    }
+                }
+            }
+            if (next < ids.size()) {
+                scheduleSlice();
+            } else {
+                finish();
+            }
+        }
+        
+        /**
+         * Ends this toggle and reports it finished, unless it was superseded.
+         */
+        private synchronized void finish() {
+            if (cancelled) {
+                return;
+            }
+            synchronized (AdvancedSymbolController.this) {
+                //setShowLabels sets cancelled while holding only the controller's lock
+                if (cancelled) {
+                    return;
+                }
+                labelToggle = null;
+            }
+            fireFinished(false);
+        }
+        
+        /**
+         * Reports this toggle finished. Once this returns, the listener gets no
+         * more calls for this toggle.
+         */
+        synchronized void fireFinished(boolean superseded) {
+            if (null != listener) {
+                try {
+                    listener.labelToggleFinished(showLabels, superseded);
+                } catch (RuntimeException re) {
+                    logger.log(Level.SEVERE, "LabelToggleListener failed", re);
+                }
+            }
+        }
+        
     }
     
     /**
      * Clones the Geomessage, removes the label properties from the clone, and returns
-     * the clone.
+     * the clone. The clone shares the Geomessage's properties and keeps only the
+     * blanked label properties of its own.
      * @param geomessage a clone of the Geomessage, without the properties that are
      *                   used for labeling.
      */
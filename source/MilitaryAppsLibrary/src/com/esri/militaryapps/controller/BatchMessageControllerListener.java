@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.util.List;
+
+/**
+ * A MessageControllerListener that receives Geomessages in batches instead of one
+ * at a time. When a listener implements this interface, MessageController calls
+ * geomessagesReceived(List) instead of geomessageReceived(Geomessage). By default
+ * a batch contains every Geomessage parsed from the datagrams that were waiting
+ * for the listener; call MessageController.setBatchWindow(long, int) to collect
+ * Geomessages over a time window instead.
+ * @see MessageController#setBatchWindow(long, int)
+ */
+public interface BatchMessageControllerListener extends MessageControllerListener {
+
+    /**
+     * Called when one or more Geomessages are received.
+     * @param geomessages the Geomessages received, in arrival order. The list is
+     *                    never empty, and the listener may keep it.
+     */
+    void geomessagesReceived(List<Geomessage> geomessages);
+
+}
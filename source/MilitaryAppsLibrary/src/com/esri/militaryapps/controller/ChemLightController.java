@@ -15,16 +15,13 @@
  ******************************************************************************/
 package com.esri.militaryapps.controller;
 
-import com.esri.militaryapps.model.DomNodeAndDocument;
 import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageWriter;
 import com.esri.militaryapps.util.Utilities;
-import java.util.Date;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 
 /**
  * Sends chem light messages to listening clients.
@@ -82,27 +79,21 @@ public class ChemLightController {
     public void sendChemLight(double x, double y, int spatialReferenceWkid, int rgbColor) {
         try {
             String id = UUID.randomUUID().toString();
-            DomNodeAndDocument nodeAndDocument = Utilities.createGeomessageDocument();
-            Document doc = nodeAndDocument.getDocument();
-            Node geomessageElement = nodeAndDocument.getNode();
+            long now = System.currentTimeMillis();
+            GeomessageWriter writer = GeomessageWriter.getThreadLocalInstance();
+            writer.reset().startGeomessage()
+                    .writeElement(Geomessage.TYPE_FIELD_NAME, REPORT_TYPE)
+                    .writeElement(Geomessage.ID_FIELD_NAME, id)
+                    .writeElement(Geomessage.WKID_FIELD_NAME, spatialReferenceWkid)
+                    .writeControlPoint(x, y)
+                    .writeElement(Geomessage.ACTION_FIELD_NAME, "UPDATE")
+                    .writeElement("uniquedesignation", id)
+                    .writeElement("color", Utilities.getAFMGeoEventColorString(rgbColor))
+                    .writeDateElement("datetimesubmitted", now)
+                    .writeDateElement("datetimemodified", now)
+                    .endGeomessage();
             
-            Utilities.addTextElement(doc, geomessageElement,
-                    Geomessage.TYPE_FIELD_NAME, REPORT_TYPE);
-            Utilities.addTextElement(doc, geomessageElement,
-                    Geomessage.ID_FIELD_NAME, id);
-            Utilities.addTextElement(doc, geomessageElement,
-                    Geomessage.WKID_FIELD_NAME, Integer.toString(spatialReferenceWkid));
-            Utilities.addTextElement(doc, geomessageElement,
-                    Geomessage.CONTROL_POINTS_FIELD_NAME, x + "," + y);
-            Utilities.addTextElement(doc, geomessageElement,
-                    Geomessage.ACTION_FIELD_NAME, "UPDATE");
-            Utilities.addTextElement(doc, geomessageElement, "uniquedesignation", id);
-            Utilities.addTextElement(doc, geomessageElement, "color", Utilities.getAFMGeoEventColorString(rgbColor));
-            String dateString = Utilities.DATE_FORMAT_GEOMESSAGE.format(new Date());
-            Utilities.addTextElement(doc, geomessageElement, "datetimesubmitted", dateString);
-            Utilities.addTextElement(doc, geomessageElement, "datetimemodified", dateString);
-            
-            messageController.sendMessage(doc);
+            messageController.sendGeomessage(writer.getBuffer(), 0, writer.size());
         } catch (Throwable t) {
             logger.log(Level.SEVERE, "Could not send chem light", t);
         }
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses datagram payloads with DEFLATE, primed with a
+ * preset dictionary of the element names and values that recur in Geomessages,
+ * so that even a single small Geomessage compresses well. A compressed datagram
+ * (TYPE_COMPRESSED) is the marker, the type byte, a dictionary ID byte, and the
+ * raw DEFLATE data of the payload, which is an XML or binary datagram. A
+ * DatagramCompressor is not thread-safe; DatagramSender confines one to the send
+ * thread and MessageController confines one to the receive thread.
+ * @see DatagramFraming
+ */
+class DatagramCompressor {
+    
+    /**
+     * The ID of the preset dictionary that this class writes. A new dictionary must
+     * get a new ID, and receivers must keep the old dictionaries, because senders
+     * and receivers may run different versions.
+     */
+    static final byte DICTIONARY_ID = 1;
+    
+    /**
+     * The length of a compressed datagram's header, including the marker and type.
+     */
+    static final int HEADER_LENGTH = 3;
+    
+    //Deflate finds the most recent match first, so the most common text comes last
+    private static final byte[] DICTIONARY = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<message><fuel_state></fuel_state><rel_info></rel_info><size_cat></size_cat>"
+            + "<activity_cat></activity_cat><unit_cat></unit_cat><equip_cat></equip_cat>"
+            + "<_type>spotrep</_type><size></size><activity></activity><location></location>"
+            + "<unit></unit><equipment></equipment><timeobserved></timeobserved>"
+            + "<additionalinformation></additionalinformation>"
+            + "<_type>chemlight</_type><color></color><_action>REMOVE</_action><_action>remove</_action>"
+            + "<_action>SELECT</_action><_action>UN-SELECT</_action>"
+            + "<speed></speed><quantity></quantity><owningunit></owningunit><datetimemodified></datetimemodified>"
+            + "<geomessages><geomessage v=\"1.0\"><_type>position_report</_type><_action>UPDATE</_action>"
+            + "<_id>{</_id><_wkid>4326</_wkid><_wkid>3857</_wkid><sic>SFGPEWRR-------</sic><sic>S</sic>"
+            + "<_control_points></_control_points><uniquedesignation></uniquedesignation><type></type>"
+            + "<datetimesubmitted>20</datetimesubmitted><datetimevalid>20</datetimevalid>"
+            + "<direction></direction><status911>0</status911></geomessage></geomessages>")
+            .getBytes(Charset.forName("UTF-8"));
+    
+    //Created when first needed, since most instances only compress or only decompress
+    private Deflater deflater = null;
+    private Inflater inflater = null;
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+    
+    /**
+     * Compresses a payload into a compressed datagram.
+     * @param payload the payload, whose remaining bytes are compressed. Its position
+     *                is not changed.
+     * @return the compressed datagram, which is only valid until the next call, or
+     *         null if compressing would not make the payload shorter.
+     */
+    ByteBuffer compress(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (null == deflater) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        payload.duplicate().get(input, 0, length);
+        //Only worth sending if the output is shorter than the input
+        if (output.length < length) {
+            output = new byte[length];
+        }
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        output[0] = DatagramFraming.MARKER;
+        output[1] = DatagramFraming.TYPE_COMPRESSED;
+        output[2] = DICTIONARY_ID;
+        int outputLength = HEADER_LENGTH;
+        while (!deflater.finished() && outputLength < length) {
+            outputLength += deflater.deflate(output, outputLength, length - outputLength);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        return ByteBuffer.wrap(output, 0, outputLength);
+    }
+    
+    /**
+     * Decompresses a compressed datagram.
+     * @param datagram the datagram, starting with its header.
+     * @param maxLength the maximum length of the payload.
+     * @return the payload.
+     * @throws IOException if the datagram is corrupt, uses an unknown dictionary, or
+     *                     decompresses to more than maxLength bytes.
+     */
+    byte[] decompress(ByteBuffer datagram, int maxLength) throws IOException {
+        if (HEADER_LENGTH > datagram.remaining()) {
+            throw new IOException("Compressed datagram is too short");
+        }
+        byte dictionaryId = datagram.get(datagram.position() + 2);
+        if (DICTIONARY_ID != dictionaryId) {
+            throw new IOException("Unknown compression dictionary " + dictionaryId);
+        }
+        int length = datagram.remaining() - HEADER_LENGTH;
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        ByteBuffer duplicate = datagram.duplicate();
+        duplicate.position(duplicate.position() + HEADER_LENGTH);
+        duplicate.get(input, 0, length);
+        if (null == inflater) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(input, 0, length);
+        byte[] payload = new byte[Math.min(maxLength, Math.max(256, length * 8))];
+        int payloadLength = 0;
+        try {
+            while (!inflater.finished()) {
+                if (payloadLength == payload.length) {
+                    if (payload.length == maxLength) {
+                        throw new IOException("Compressed datagram expands to more than " + maxLength + " bytes");
+                    }
+                    byte[] newPayload = new byte[(int) Math.min(maxLength, 2L * payload.length)];
+                    System.arraycopy(payload, 0, newPayload, 0, payloadLength);
+                    payload = newPayload;
+                }
+                int count = inflater.inflate(payload, payloadLength, payload.length - payloadLength);
+                if (0 == count && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Compressed datagram is truncated");
+                }
+                payloadLength += count;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Compressed datagram is corrupt", ex);
+        }
+        if (payloadLength == payload.length) {
+            return payload;
+        }
+        byte[] trimmed = new byte[payloadLength];
+        System.arraycopy(payload, 0, trimmed, 0, payloadLength);
+        return trimmed;
+    }
+    
+}
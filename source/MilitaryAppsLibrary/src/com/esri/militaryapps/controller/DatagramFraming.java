@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and helpers for datagrams that are not plain XML text. A framed
+ * datagram starts with MARKER, a byte that can never start UTF-8 text, followed
+ * by a type byte. Any other datagram is a plain Geomessage or text datagram.
+ * <br/>
+ * <br/>
+ * A fragment datagram (TYPE_FRAGMENT) carries part of a payload too long for one
+ * datagram. After the type byte come a 4-byte message ID, a 2-byte fragment index,
+ * and a 2-byte fragment count, all big-endian and unsigned, followed by the
+ * fragment's share of the payload. Receivers reassemble the payload from the
+ * fragments that share a sender and message ID.
+ * <br/>
+ * <br/>
+ * A binary datagram (TYPE_BINARY) carries Geomessages encoded by
+ * GeomessageBinaryCodec. After the type byte comes the codec's format version and
+ * then the encoded Geomessages. Receivers accept binary and XML datagrams alike,
+ * so each sender may choose its wire format.
+ * <br/>
+ * <br/>
+ * A compressed datagram (TYPE_COMPRESSED) carries a DEFLATE-compressed payload,
+ * as described in DatagramCompressor. The payload is an XML or binary datagram.
+ * Senders compress before they fragment, so a compressed datagram that is still
+ * too long is split into fragments like any other.
+ * @see com.esri.militaryapps.model.GeomessageBinaryCodec
+ */
+final class DatagramFraming {
+    
+    /**
+     * The first byte of every framed datagram. 0xA7 is a UTF-8 continuation byte,
+     * so it cannot start a text datagram.
+     */
+    static final byte MARKER = (byte) 0xA7;
+    
+    /**
+     * The type byte of a fragment datagram.
+     */
+    static final byte TYPE_FRAGMENT = 'F';
+    
+    /**
+     * The type byte of a binary Geomessages datagram.
+     */
+    static final byte TYPE_BINARY = 'B';
+    
+    /**
+     * The type byte of a compressed datagram.
+     */
+    static final byte TYPE_COMPRESSED = 'Z';
+    
+    /**
+     * The length of a fragment datagram's header, including the marker and type.
+     */
+    static final int FRAGMENT_HEADER_LENGTH = 10;
+    
+    /**
+     * The most fragments one payload can be split into.
+     */
+    static final int MAX_FRAGMENT_COUNT = 0xFFFF;
+    
+    private DatagramFraming() {
+    }
+    
+    /**
+     * Returns the frame type of a datagram.
+     * @param datagram the datagram. Its position is not changed.
+     * @return the type byte of a framed datagram, or zero for a plain datagram.
+     */
+    static byte getFrameType(ByteBuffer datagram) {
+        int position = datagram.position();
+        if (2 <= datagram.remaining() && MARKER == datagram.get(position)) {
+            return datagram.get(position + 1);
+        }
+        return 0;
+    }
+    
+    /**
+     * Writes a fragment header.
+     * @param buffer the buffer, at whose position the header is written.
+     * @param messageId the ID shared by the payload's fragments.
+     * @param index the fragment's index, starting at zero.
+     * @param count the number of fragments in the payload.
+     */
+    static void putFragmentHeader(ByteBuffer buffer, int messageId, int index, int count) {
+        buffer.put(MARKER);
+        buffer.put(TYPE_FRAGMENT);
+        buffer.putInt(messageId);
+        buffer.putShort((short) index);
+        buffer.putShort((short) count);
+    }
+    
+}
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.util.ByteBufferPool;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single-threaded, selector-based UDP receive loop. One DatagramReceiver can
+ * service any number of non-blocking DatagramChannels, each bound to its own port
+ * and/or interface. Each datagram is read into a buffer from a ByteBufferPool and
+ * handed to a Handler, which becomes responsible for releasing the buffer.
+ */
+class DatagramReceiver {
+
+    /**
+     * Receives the datagrams read by a DatagramReceiver.
+     */
+    interface Handler {
+
+        /**
+         * Called on the receive thread for each datagram.
+         * @param datagram a buffer from the receiver's pool, flipped so that its
+         *                 remaining bytes are the datagram contents. The handler must
+         *                 release it to the pool when finished with it.
+         * @param source the address of the sender.
+         */
+        void datagramReceived(ByteBuffer datagram, SocketAddress source);
+
+    }
+
+    private static final Logger logger = Logger.getLogger(DatagramReceiver.class.getName());
+
+    /**
+     * The most datagrams read from one channel per selector wakeup, so that a
+     * flooded channel cannot starve the others.
+     */
+    private static final int MAX_DATAGRAMS_PER_DRAIN = 64;
+
+    private final ByteBufferPool bufferPool;
+    private final Handler handler;
+    private final int receiveBufferSize;
+    private final Selector selector;
+    private final Map<InetSocketAddress, DatagramChannel> channels = new HashMap<InetSocketAddress, DatagramChannel>();
+    private final ConcurrentLinkedQueue<Runnable> pendingChanges = new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile boolean running = false;
+    private volatile Thread thread = null;
+
+    /**
+     * Creates a new DatagramReceiver. Call start() to start the receive thread.
+     * @param bufferPool the pool from which receive buffers are taken.
+     * @param handler the handler for received datagrams.
+     * @param receiveBufferSize the SO_RCVBUF size requested for each channel, or
+     *                          a non-positive number to use the system default.
+     * @throws IOException if the selector cannot be opened.
+     */
+    DatagramReceiver(ByteBufferPool bufferPool, Handler handler, int receiveBufferSize) throws IOException {
+        this.bufferPool = bufferPool;
+        this.handler = handler;
+        this.receiveBufferSize = receiveBufferSize;
+        selector = Selector.open();
+    }
+
+    /**
+     * Opens a non-blocking channel bound to the specified address and adds it to
+     * the receive loop. Binding happens on the calling thread so that errors can
+     * be reported to the caller.
+     * @param address the address to bind. If this receiver already has a channel
+     *                bound to the address, this method has no effect.
+     * @param reuseAddress true to set SO_REUSEADDR, so that other sockets can
+     *                     bind the same port. Use this only for channels that
+     *                     receive multicast datagrams; for unicast, it lets two
+     *                     sockets share a port with unpredictable delivery.
+     * @throws IOException if the channel cannot be opened or bound.
+     */
+    void bind(InetSocketAddress address, boolean reuseAddress) throws IOException {
+        synchronized (channels) {
+            if (channels.containsKey(address)) {
+                return;
+            }
+            final DatagramChannel channel = DatagramChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setReuseAddress(reuseAddress);
+                channel.socket().setBroadcast(true);
+                if (0 < receiveBufferSize) {
+                    channel.socket().setReceiveBufferSize(receiveBufferSize);
+                }
+                channel.socket().bind(address);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+            channels.put(address, channel);
+            pendingChanges.offer(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        channel.register(selector, SelectionKey.OP_READ);
+                    } catch (IOException ex) {
+                        logger.log(Level.SEVERE, "Couldn't register UDP channel", ex);
+                    }
+                }
+
+            });
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Closes the channel bound to the specified address, if any.
+     * @param address the address.
+     */
+    void unbind(InetSocketAddress address) {
+        DatagramChannel channel;
+        synchronized (channels) {
+            channel = channels.remove(address);
+        }
+        if (null != channel) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Couldn't close UDP channel", ex);
+            }
+            //Closing deregisters the key, but the selector needs to wake up to notice
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Joins a multicast group on the channel bound to the specified address, so
+     * that the channel receives datagrams sent to the group.
+     * @param address the address of a channel bound with bind(InetSocketAddress).
+     * @param group the multicast group.
+     * @param networkInterface the interface on which to join the group.
+     * @return the membership, which the caller drops to leave the group. Closing
+     *         the channel also leaves the group.
+     * @throws IOException if there is no channel bound to the address or the
+     *                     channel cannot join the group.
+     */
+    MembershipKey joinGroup(InetSocketAddress address, InetAddress group, NetworkInterface networkInterface)
+            throws IOException {
+        DatagramChannel channel;
+        synchronized (channels) {
+            channel = channels.get(address);
+        }
+        if (null == channel) {
+            throw new IOException("No channel is bound to " + address);
+        }
+        return channel.join(group, networkInterface);
+    }
+
+    /**
+     * Starts the receive thread. If the thread is already running, this method
+     * has no effect.
+     */
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread("DatagramReceiver") {
+
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the receive thread and closes all channels and the selector. A stopped
+     * receiver cannot be restarted.
+     */
+    synchronized void stop() {
+        running = false;
+        synchronized (channels) {
+            for (DatagramChannel channel : channels.values()) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, "Couldn't close UDP channel", ex);
+                }
+            }
+            channels.clear();
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Couldn't close selector", ex);
+        }
+    }
+
+    /**
+     * Waits for the receive thread to finish after stop() has been called. Do not
+     * call this method while holding a lock that the Handler takes.
+     * @param timeoutMillis the maximum time to wait, in milliseconds.
+     * @return true if the receive thread has finished or never started, or false
+     *         if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        Thread theThread = thread;
+        if (null == theThread || Thread.currentThread() == theThread) {
+            return true;
+        }
+        theThread.join(Math.max(1, timeoutMillis));
+        return !theThread.isAlive();
+    }
+
+    /**
+     * @return true if the receive thread has been started and has neither been
+     *         stopped nor failed.
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    private void receiveLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable change;
+                while (null != (change = pendingChanges.poll())) {
+                    change.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drain((DatagramChannel) key.channel());
+                    }
+                }
+            }
+        } catch (ClosedSelectorException cse) {
+            //The receiver was stopped
+        } catch (IOException ex) {
+            if (running) {
+                logger.log(Level.SEVERE, "UDP receive loop failed", ex);
+            }
+        } catch (RuntimeException re) {
+            if (running) {
+                logger.log(Level.SEVERE, "UDP receive loop failed", re);
+            }
+        } finally {
+            //Whatever ended the loop, stop reporting this receiver as running
+            running = false;
+        }
+    }
+
+    /**
+     * Reads the datagrams currently queued on the channel, up to
+     * MAX_DATAGRAMS_PER_DRAIN. If more remain, the channel is still readable, so
+     * the next select() returns right away after the other ready channels have
+     * had their turn.
+     */
+    private void drain(DatagramChannel channel) {
+        for (int i = 0; running && i < MAX_DATAGRAMS_PER_DRAIN; i++) {
+            ByteBuffer buffer = bufferPool.acquire();
+            SocketAddress source;
+            try {
+                source = channel.receive(buffer);
+            } catch (IOException ex) {
+                //Probably means the channel was closed by unbind or stop
+                bufferPool.release(buffer);
+                logger.log(Level.FINE, "Couldn't receive from UDP channel", ex);
+                return;
+            }
+            if (null == source) {
+                bufferPool.release(buffer);
+                return;
+            }
+            buffer.flip();
+            try {
+                handler.datagramReceived(buffer, source);
+            } catch (RuntimeException re) {
+                logger.log(Level.SEVERE, "Datagram handler failed", re);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,651 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageBinaryCodec;
+import com.esri.militaryapps.model.GeomessageParser;
+import com.esri.militaryapps.util.ByteBufferPool;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * A single-threaded UDP send loop. Any number of threads may queue datagrams
+ * without locking; one send thread drains the queue and writes each datagram to
+ * a DatagramChannel, so senders never wait for the socket or for each other. The
+ * send thread also packs Geomessage elements into shared datagrams with a
+ * GeomessagePacker, optionally re-encoding them in the compact binary form,
+ * optionally compresses datagrams, and splits datagrams that are too long into
+ * fragments. The send thread parks while the queue is empty and is unparked by
+ * the next sender; a sender that finds the queue full waits until the send thread
+ * takes an entry.<br/>
+ * <br/>
+ * Errors writing to the socket happen on the send thread, after the datagram was
+ * queued, so they are not thrown to senders. They are counted (see
+ * getSendErrorCount()) and logged.
+ */
+class DatagramSender {
+
+    private static final Logger logger = Logger.getLogger(DatagramSender.class.getName());
+    
+    private static final int KIND_DATAGRAM = 0;
+    private static final int KIND_GEOMESSAGE = 1;
+    private static final int KIND_FLUSH = 2;
+    
+    /**
+     * With compression enabled, XML Geomessages are packed into payloads up to
+     * this many times the maximum datagram length, on the expectation that they
+     * compress to fit one datagram. Those that do not are fragmented.
+     */
+    private static final int COMPRESSED_PACKING_FACTOR = 4;
+    
+    private static final class Entry {
+        
+        final int kind;
+        final ByteBuffer data;
+        final long enqueuedNanos;
+
+        Entry(int kind, ByteBuffer data) {
+            this.kind = kind;
+            this.data = data;
+            this.enqueuedNanos = System.nanoTime();
+        }
+        
+    }
+
+    private final ByteBufferPool bufferPool;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger depth = new AtomicInteger(0);
+    private final Object spaceLock = new Object();
+    private final AtomicInteger waitingSenders = new AtomicInteger(0);
+    private final AtomicBoolean idle = new AtomicBoolean(false);
+    private final AtomicLong sentCount = new AtomicLong(0);
+    private final AtomicLong sendErrorCount = new AtomicLong(0);
+    private final AtomicLong sentByteCount = new AtomicLong(0);
+    private final LatencyStats sendLatency = new LatencyStats();
+    private final GeomessagePacker packer;
+    private final GeomessagePacker binaryPacker;
+    private final int maxDatagramLength;
+    
+    private volatile InetSocketAddress[] destinations;
+    private volatile NetworkInterface multicastInterface = null;
+    private volatile int multicastTimeToLive = 1;
+    private volatile int multicastOptionsVersion = 0;
+    private volatile long lingerNanos = 0;
+    private volatile boolean fragmentationEnabled = true;
+    private volatile boolean binaryGeomessages = false;
+    private volatile boolean compressionEnabled = false;
+    private volatile boolean running = false;
+    private volatile boolean closed = false;
+    private volatile Thread thread = null;
+    
+    //Only touched by the send thread
+    private DatagramChannel channel = null;
+    private int appliedMulticastOptionsVersion = 0;
+    private ByteBuffer fragmentBuffer = null;
+    private int nextFragmentedMessageId = new Random().nextInt();
+    private GeomessageParser parser = null;
+    private GeomessageBinaryCodec codec = null;
+    private DatagramCompressor compressor = null;
+
+    /**
+     * Creates a new DatagramSender. The send thread starts when the first datagram
+     * is queued.
+     * @param bufferPool the pool from which copies of queued datagrams are taken.
+     *                   Datagrams longer than the pool's buffers are copied to
+     *                   heap buffers instead.
+     * @param maxDatagramLength the maximum length of a datagram. Geomessages are
+     *                          packed into datagrams up to this length, and longer
+     *                          datagrams are split into fragments.
+     * @param capacity the maximum number of queued datagrams. A sender that finds
+     *                 the queue full waits for space.
+     * @param destinations the addresses to which each datagram is sent.
+     */
+    DatagramSender(ByteBufferPool bufferPool, int maxDatagramLength, int capacity, InetSocketAddress[] destinations) {
+        this.bufferPool = bufferPool;
+        this.maxDatagramLength = maxDatagramLength;
+        this.capacity = capacity;
+        this.destinations = destinations;
+        GeomessagePacker.Sink sink = new GeomessagePacker.Sink() {
+
+            @Override
+            public void send(ByteBuffer datagram) throws IOException {
+                write(datagram);
+            }
+            
+        };
+        this.packer = new GeomessagePacker(maxDatagramLength * COMPRESSED_PACKING_FACTOR, sink);
+        this.packer.setMaxLength(maxDatagramLength);
+        this.binaryPacker = new GeomessagePacker(maxDatagramLength,
+                new byte[] { DatagramFraming.MARKER, DatagramFraming.TYPE_BINARY, GeomessageBinaryCodec.FORMAT_VERSION },
+                new byte[0], sink);
+    }
+    
+    /**
+     * Sets the addresses to which each datagram is sent, starting with the next
+     * datagram the send thread writes.
+     * @param destinations the destination addresses. The caller must not modify
+     *                     the array afterwards.
+     */
+    void setDestinations(InetSocketAddress[] destinations) {
+        this.destinations = destinations;
+    }
+    
+    /**
+     * Sets whether datagrams longer than the maximum datagram length are split
+     * into fragments. If not, they are sent whole.
+     * @param fragmentationEnabled true to split long datagrams into fragments.
+     */
+    void setFragmentationEnabled(boolean fragmentationEnabled) {
+        this.fragmentationEnabled = fragmentationEnabled;
+    }
+    
+    /**
+     * @return true if datagrams longer than the maximum datagram length are split
+     *         into fragments.
+     */
+    boolean isFragmentationEnabled() {
+        return fragmentationEnabled;
+    }
+    
+    /**
+     * Sets whether Geomessage elements are re-encoded with GeomessageBinaryCodec
+     * and sent in binary datagrams instead of XML datagrams.
+     * @param binaryGeomessages true to send binary datagrams.
+     */
+    void setBinaryGeomessages(boolean binaryGeomessages) {
+        this.binaryGeomessages = binaryGeomessages;
+    }
+    
+    /**
+     * @return true if Geomessage elements are sent in binary datagrams.
+     */
+    boolean isBinaryGeomessages() {
+        return binaryGeomessages;
+    }
+    
+    /**
+     * Sets whether datagrams are compressed with DatagramCompressor. A datagram
+     * that would not get shorter is sent uncompressed.
+     * @param compressionEnabled true to compress datagrams.
+     */
+    void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+    
+    /**
+     * @return true if datagrams are compressed.
+     */
+    boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+    
+    /**
+     * Sets the options used for datagrams sent to multicast groups.
+     * @param networkInterface the interface for outgoing multicast datagrams, or
+     *                         null for the system default.
+     * @param timeToLive the multicast time-to-live, from 0 to 255.
+     */
+    void setMulticastOptions(NetworkInterface networkInterface, int timeToLive) {
+        multicastInterface = networkInterface;
+        multicastTimeToLive = timeToLive;
+        multicastOptionsVersion++;
+    }
+    
+    /**
+     * Sets how long a Geomessage element may wait for more elements to share its
+     * datagram. Setting this to zero sends any waiting elements.
+     * @param lingerMillis the linger time, in milliseconds.
+     */
+    void setLinger(long lingerMillis) throws IOException {
+        lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMillis));
+        if (0 == lingerNanos) {
+            flush();
+        }
+    }
+    
+    /**
+     * @return how long a Geomessage element may wait for more elements to share
+     *         its datagram, in milliseconds.
+     */
+    long getLinger() {
+        return TimeUnit.NANOSECONDS.toMillis(lingerNanos);
+    }
+
+    /**
+     * Queues a copy of a datagram.
+     * @throws IOException if this sender has been closed.
+     */
+    void send(byte[] bytes, int offset, int length) throws IOException {
+        enqueue(new Entry(KIND_DATAGRAM, copy(bytes, offset, length)));
+    }
+    
+    /**
+     * Queues a copy of a Geomessage element to be packed into a datagram.
+     * @throws IOException if this sender has been closed.
+     */
+    void sendGeomessage(byte[] element, int offset, int length) throws IOException {
+        enqueue(new Entry(KIND_GEOMESSAGE, copy(element, offset, length)));
+    }
+    
+    /**
+     * Asks the send thread to send any Geomessage elements that are waiting for
+     * their linger time to pass.
+     * @throws IOException if this sender has been closed.
+     */
+    void flush() throws IOException {
+        enqueue(new Entry(KIND_FLUSH, null));
+    }
+    
+    private ByteBuffer copy(byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = length <= bufferPool.getBufferCapacity()
+                ? bufferPool.acquire() : ByteBuffer.allocate(length);
+        buffer.put(bytes, offset, length);
+        buffer.flip();
+        return buffer;
+    }
+    
+    private void enqueue(Entry entry) throws IOException {
+        while (true) {
+            if (closed) {
+                releaseData(entry);
+                throw new IOException("The sender is closed");
+            }
+            int current = depth.get();
+            if (current < capacity) {
+                if (depth.compareAndSet(current, current + 1)) {
+                    break;
+                }
+            } else {
+                startIfNeeded();
+                awaitSpace(entry);
+            }
+        }
+        queue.offer(entry);
+        if (closed && queue.remove(entry)) {
+            //close() ran after the check above, and the send thread may already
+            //have sent its last datagram, so this entry would never be sent
+            depth.decrementAndGet();
+            releaseData(entry);
+            throw new IOException("The sender is closed");
+        }
+        startIfNeeded();
+        if (idle.get()) {
+            LockSupport.unpark(thread);
+        }
+    }
+    
+    /**
+     * Waits until the queue has room or this sender is closed.
+     */
+    private void awaitSpace(Entry entry) throws IOException {
+        synchronized (spaceLock) {
+            //Count this sender before checking, so that the send thread cannot
+            //take an entry without seeing that someone needs to be woken
+            waitingSenders.incrementAndGet();
+            try {
+                while (capacity <= depth.get() && !closed) {
+                    spaceLock.wait();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                releaseData(entry);
+                throw new InterruptedIOException("Interrupted while waiting for the send queue");
+            } finally {
+                waitingSenders.decrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Called by the send thread after it takes an entry from the queue.
+     */
+    private void entryTaken() {
+        depth.decrementAndGet();
+        if (0 < waitingSenders.get()) {
+            synchronized (spaceLock) {
+                spaceLock.notify();
+            }
+        }
+    }
+    
+    private void releaseData(Entry entry) {
+        if (null != entry.data) {
+            bufferPool.release(entry.data);
+        }
+    }
+    
+    private void startIfNeeded() {
+        if (!running) {
+            synchronized (this) {
+                if (!running && !closed) {
+                    running = true;
+                    thread = new Thread("DatagramSender") {
+
+                        @Override
+                        public void run() {
+                            sendLoop();
+                        }
+
+                    };
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        }
+    }
+    
+    private void sendLoop() {
+        while (running) {
+            Entry entry = queue.poll();
+            if (null == entry) {
+                waitForEntries();
+            } else {
+                entryTaken();
+                process(entry);
+            }
+            try {
+                long now = System.nanoTime();
+                packer.flushIfDue(now);
+                binaryPacker.flushIfDue(now);
+            } catch (IOException ex) {
+                sendFailed(ex);
+            }
+        }
+        //Send whatever was queued before close()
+        Entry entry;
+        while (null != (entry = queue.poll())) {
+            entryTaken();
+            process(entry);
+        }
+        try {
+            flushPackers();
+        } catch (IOException ex) {
+            sendFailed(ex);
+        }
+        closeChannel();
+    }
+    
+    private void waitForEntries() {
+        idle.set(true);
+        try {
+            //Check again after setting idle, so that no sender's unpark is missed
+            if (queue.isEmpty() && running) {
+                if (packer.hasPending() || binaryPacker.hasPending()) {
+                    long deadline = !binaryPacker.hasPending() ? packer.getDeadlineNanos()
+                            : !packer.hasPending() ? binaryPacker.getDeadlineNanos()
+                            : Math.min(packer.getDeadlineNanos(), binaryPacker.getDeadlineNanos());
+                    long waitNanos = deadline - System.nanoTime();
+                    if (0 < waitNanos) {
+                        LockSupport.parkNanos(this, waitNanos);
+                    }
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            idle.set(false);
+        }
+    }
+    
+    private void process(Entry entry) {
+        try {
+            switch (entry.kind) {
+                case KIND_DATAGRAM: {
+                    write(entry.data);
+                    break;
+                }
+                case KIND_GEOMESSAGE: {
+                    if (!binaryGeomessages || !addBinary(entry.data)) {
+                        packer.setMaxLength(compressionEnabled
+                                ? maxDatagramLength * COMPRESSED_PACKING_FACTOR : maxDatagramLength);
+                        packer.add(entry.data, lingerNanos);
+                    }
+                    break;
+                }
+                case KIND_FLUSH:
+                default: {
+                    flushPackers();
+                }
+            }
+        } catch (IOException ex) {
+            sendFailed(ex);
+        } finally {
+            releaseData(entry);
+        }
+        if (KIND_FLUSH != entry.kind) {
+            sendLatency.record(System.nanoTime() - entry.enqueuedNanos);
+        }
+    }
+    
+    /**
+     * Re-encodes a Geomessage element in binary form and adds it to the binary
+     * packer, or returns false if the element cannot be parsed.
+     */
+    private boolean addBinary(ByteBuffer element) throws IOException {
+        if (null == parser) {
+            parser = new GeomessageParser();
+            codec = new GeomessageBinaryCodec();
+        }
+        List<Geomessage> messages;
+        try {
+            messages = parser.parse(element);
+        } catch (SAXException ex) {
+            logger.log(Level.FINE, "Sending an unparseable Geomessage as XML", ex);
+            return false;
+        }
+        if (messages.isEmpty()) {
+            return false;
+        }
+        for (Geomessage message : messages) {
+            codec.reset().encode(message);
+            binaryPacker.add(ByteBuffer.wrap(codec.getBuffer(), 0, codec.size()), lingerNanos);
+        }
+        return true;
+    }
+    
+    private void flushPackers() throws IOException {
+        try {
+            packer.flush();
+        } finally {
+            binaryPacker.flush();
+        }
+    }
+    
+    private void write(ByteBuffer datagram) throws IOException {
+        if (compressionEnabled) {
+            if (null == compressor) {
+                compressor = new DatagramCompressor();
+            }
+            ByteBuffer compressed = compressor.compress(datagram);
+            if (null != compressed) {
+                datagram = compressed;
+            }
+        }
+        if (fragmentationEnabled && datagram.remaining() > maxDatagramLength) {
+            writeFragments(datagram);
+        } else {
+            writeToDestinations(datagram);
+        }
+    }
+    
+    private void writeFragments(ByteBuffer payload) throws IOException {
+        int fragmentPayloadLength = maxDatagramLength - DatagramFraming.FRAGMENT_HEADER_LENGTH;
+        int count = (payload.remaining() + fragmentPayloadLength - 1) / fragmentPayloadLength;
+        if (DatagramFraming.MAX_FRAGMENT_COUNT < count) {
+            throw new IOException("Datagram is too long to fragment: " + payload.remaining() + " bytes");
+        }
+        if (null == fragmentBuffer) {
+            fragmentBuffer = ByteBuffer.allocateDirect(maxDatagramLength);
+        }
+        int messageId = nextFragmentedMessageId++;
+        int limit = payload.limit();
+        for (int i = 0; i < count; i++) {
+            fragmentBuffer.clear();
+            DatagramFraming.putFragmentHeader(fragmentBuffer, messageId, i, count);
+            payload.limit(Math.min(limit, payload.position() + fragmentPayloadLength));
+            fragmentBuffer.put(payload);
+            payload.limit(limit);
+            fragmentBuffer.flip();
+            writeToDestinations(fragmentBuffer);
+        }
+    }
+    
+    private void writeToDestinations(ByteBuffer datagram) throws IOException {
+        if (null == channel || !channel.isOpen()) {
+            channel = DatagramChannel.open();
+            channel.socket().setBroadcast(true);
+            appliedMulticastOptionsVersion = multicastOptionsVersion - 1;
+        }
+        int version = multicastOptionsVersion;
+        if (appliedMulticastOptionsVersion != version) {
+            appliedMulticastOptionsVersion = version;
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTimeToLive);
+            NetworkInterface networkInterface = multicastInterface;
+            if (null != networkInterface) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            }
+        }
+        int start = datagram.position();
+        IOException failure = null;
+        for (InetSocketAddress destination : destinations) {
+            datagram.position(start);
+            try {
+                sentByteCount.addAndGet(channel.send(datagram, destination));
+                sentCount.incrementAndGet();
+            } catch (IOException ex) {
+                //Keep sending to the other destinations
+                failure = ex;
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+    
+    private void sendFailed(IOException ex) {
+        if (1 == sendErrorCount.incrementAndGet()) {
+            logger.log(Level.WARNING, "Could not send datagram", ex);
+        } else {
+            logger.log(Level.FINE, "Could not send datagram", ex);
+        }
+    }
+    
+    private void closeChannel() {
+        if (null != channel) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, null, ex);
+            }
+            channel = null;
+        }
+    }
+    
+    /**
+     * Stops the send thread after it sends the datagrams already queued. Later
+     * sends, and sends waiting for queue space, throw IOException.
+     */
+    void close() {
+        Thread theThread;
+        synchronized (this) {
+            closed = true;
+            running = false;
+            theThread = thread;
+        }
+        if (null != theThread) {
+            LockSupport.unpark(theThread);
+        }
+        synchronized (spaceLock) {
+            spaceLock.notifyAll();
+        }
+    }
+    
+    /**
+     * Waits for the send thread to finish after close() has been called.
+     * @param timeoutMillis the maximum time to wait, in milliseconds.
+     * @return true if the send thread has finished or never started, or false if
+     *         the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        Thread theThread;
+        synchronized (this) {
+            theThread = thread;
+        }
+        if (null == theThread || Thread.currentThread() == theThread) {
+            return true;
+        }
+        theThread.join(Math.max(1, timeoutMillis));
+        return !theThread.isAlive();
+    }
+    
+    /**
+     * @return the number of datagrams and Geomessage elements waiting to be sent.
+     */
+    int getQueueDepth() {
+        return depth.get();
+    }
+    
+    /**
+     * @return the number of datagrams written to the socket. A datagram sent to
+     *         several destinations counts once per destination.
+     */
+    long getSentCount() {
+        return sentCount.get();
+    }
+    
+    /**
+     * @return the number of datagrams that could not be written to the socket.
+     */
+    long getSendErrorCount() {
+        return sendErrorCount.get();
+    }
+    
+    /**
+     * @return the number of bytes written to the socket, counted once per
+     *         destination.
+     */
+    long getSentByteCount() {
+        return sentByteCount.get();
+    }
+    
+    /**
+     * @return the time that datagrams and Geomessage elements spent between being
+     *         queued and being written to the socket or packed into a datagram.
+     */
+    LatencyStats getSendLatency() {
+        return sendLatency;
+    }
+    
+}
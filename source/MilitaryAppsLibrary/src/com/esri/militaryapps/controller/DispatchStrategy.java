@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A strategy for delivering MessageController events to listeners. Use one of the
+ * static factory methods to get a strategy that delivers events on a bounded pool
+ * of worker threads, on the thread that received the datagram, or on an Executor
+ * of your choice (for example, a virtual-thread-per-task executor on Java 21 and
+ * higher).
+ * @see MessageController#setDispatchStrategy(DispatchStrategy)
+ */
+public abstract class DispatchStrategy {
+
+    /**
+     * What a DispatchStrategy or a listener queue does when it has no room to queue
+     * a task or datagram.
+     */
+    public enum DropPolicy {
+        /**
+         * Block the receiving thread until there is room. The operating system then
+         * buffers (and eventually drops) inbound datagrams, which throttles the
+         * receive loop to the speed of the listeners.
+         */
+        BLOCK,
+        /**
+         * Reject the task or datagram being queued.
+         */
+        DROP_NEWEST,
+        /**
+         * For a listener queue, drop the oldest queued datagram to make room for the
+         * datagram being queued. A boundedPool strategy never evicts a queued task,
+         * so for a strategy this is the same as DROP_NEWEST.
+         */
+        DROP_OLDEST
+    }
+
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+
+    /**
+     * Runs or schedules a task that delivers events to a listener.
+     * @param task the task.
+     * @return true if the task was run or queued, or false if it was rejected.
+     *         MessageController keeps a rejected task's datagrams queued and
+     *         dispatches it again shortly, so no events are lost.
+     */
+    public abstract boolean dispatch(Runnable task);
+
+    /**
+     * Stops accepting new tasks. Tasks that have already been queued still run.
+     * The default implementation does nothing.
+     */
+    public void shutdown() {
+
+    }
+
+    /**
+     * Waits for queued tasks to finish after shutdown() has been called. The default
+     * implementation returns true immediately.
+     * @param timeout the maximum time to wait.
+     * @param unit the unit of the timeout argument.
+     * @return true if all tasks finished, or false if the timeout elapsed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks this strategy has rejected. Each rejection delays
+     * a listener's events but does not lose them.
+     * @return the number of tasks this strategy has rejected.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of tasks currently waiting to run, if known.
+     * @return the number of tasks currently waiting to run, or zero if unknown.
+     */
+    public int getQueuedCount() {
+        return 0;
+    }
+
+    /**
+     * Records a rejected task. Subclasses call this method whenever dispatch
+     * returns false.
+     */
+    protected void taskRejected() {
+        rejectedCount.incrementAndGet();
+    }
+
+    /**
+     * Returns a strategy that runs each task immediately on the dispatching thread,
+     * which is the thread that received the datagram. No threads are created, but
+     * a slow listener delays the receiving of subsequent datagrams.
+     * @return a same-thread strategy.
+     */
+    public static DispatchStrategy sameThread() {
+        return new DispatchStrategy() {
+
+            @Override
+            public boolean dispatch(Runnable task) {
+                task.run();
+                return true;
+            }
+
+        };
+    }
+
+    /**
+     * Returns a strategy that runs tasks on a fixed number of daemon worker threads,
+     * queueing at most queueCapacity tasks. Each task drains one listener's delivery
+     * queue, so a queued task is never discarded to make room: with DROP_OLDEST or
+     * DROP_NEWEST, a task that does not fit is rejected, its listener keeps its
+     * queued datagrams, and MessageController dispatches the listener again shortly.
+     * Which datagrams a falling-behind listener loses is decided by the listener
+     * queue's own drop policy.
+     * @param threadCount the number of worker threads.
+     * @param queueCapacity the maximum number of queued tasks.
+     * @param dropPolicy what to do with a task when the queue is full.
+     * @return a bounded worker pool strategy.
+     * @see MessageController#setListenerQueueCapacity(int, DropPolicy)
+     */
+    public static DispatchStrategy boundedPool(int threadCount, int queueCapacity, DropPolicy dropPolicy) {
+        return new BoundedPoolStrategy(threadCount, queueCapacity, dropPolicy);
+    }
+
+    /**
+     * Returns a strategy that hands each task to the specified Executor. Tasks that
+     * the Executor rejects are rejected by the strategy.
+     * @param executor the Executor. If it is an ExecutorService, calling shutdown()
+     *                 on the returned strategy shuts down the ExecutorService.
+     * @return an Executor-backed strategy.
+     */
+    public static DispatchStrategy forExecutor(final Executor executor) {
+        return new DispatchStrategy() {
+
+            @Override
+            public boolean dispatch(Runnable task) {
+                try {
+                    executor.execute(task);
+                    return true;
+                } catch (RejectedExecutionException ree) {
+                    taskRejected();
+                    return false;
+                }
+            }
+
+            @Override
+            public void shutdown() {
+                if (executor instanceof ExecutorService) {
+                    ((ExecutorService) executor).shutdown();
+                }
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+                if (executor instanceof ExecutorService) {
+                    return ((ExecutorService) executor).awaitTermination(timeout, unit);
+                } else {
+                    return true;
+                }
+            }
+
+        };
+    }
+
+    private static class BoundedPoolStrategy extends DispatchStrategy {
+
+        private final ThreadPoolExecutor executor;
+
+        BoundedPoolStrategy(int threadCount, int queueCapacity, final DropPolicy dropPolicy) {
+            final AtomicInteger threadNumber = new AtomicInteger(0);
+            executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "MessageDispatch-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+
+                    },
+                    new RejectedExecutionHandler() {
+
+                        @Override
+                        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                            if (executor.isShutdown()) {
+                                taskRejected();
+                                throw new RejectedExecutionException("Dispatch strategy has been shut down");
+                            }
+                            switch (dropPolicy) {
+                                case BLOCK: {
+                                    try {
+                                        executor.getQueue().put(r);
+                                    } catch (InterruptedException ie) {
+                                        Thread.currentThread().interrupt();
+                                        taskRejected();
+                                        throw new RejectedExecutionException(ie);
+                                    }
+                                    break;
+                                }
+                                case DROP_OLDEST:
+                                    //Evicting a queued task would strand its listener
+                                case DROP_NEWEST:
+                                default: {
+                                    taskRejected();
+                                    throw new RejectedExecutionException("Dispatch queue is full");
+                                }
+                            }
+                        }
+
+                    });
+            //Workers must exist before BLOCK puts tasks directly into the queue
+            executor.prestartAllCoreThreads();
+        }
+
+        @Override
+        public boolean dispatch(Runnable task) {
+            try {
+                executor.execute(task);
+                return true;
+            } catch (RejectedExecutionException ree) {
+                return false;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+
+        @Override
+        public int getQueuedCount() {
+            return executor.getQueue().size();
+        }
+
+    }
+
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Detects inbound datagrams and Geomessages that have already been received,
+ * for example through a broadcast relay or on a second network interface, and
+ * Geomessages that are older than one already received for the same ID.
+ * <br/>
+ * <br/>
+ * Two bounded caches remember what was received within a time window. The first
+ * holds a 64-bit hash of each datagram's bytes, so that a repeated datagram is
+ * dropped before it is parsed. The second holds the datetimesubmitted and
+ * _action of the latest Geomessage for each _id, so that a parsed Geomessage is
+ * dropped if it repeats that Geomessage or was submitted before it. Geomessages
+ * without an _id or datetimesubmitted are never dropped. A DuplicateFilter is
+ * not thread-safe; MessageController confines it to the receive thread.
+ */
+class DuplicateFilter {
+    
+    private static final String DATETIMESUBMITTED_FIELD_NAME = "datetimesubmitted";
+    private static final int TIMESTAMP_LENGTH = 19;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    private static final class LatestMessage {
+        
+        final String submitted;
+        final String action;
+        final long receivedMillis;
+
+        LatestMessage(String submitted, String action, long receivedMillis) {
+            this.submitted = submitted;
+            this.action = action;
+            this.receivedMillis = receivedMillis;
+        }
+        
+    }
+    
+    //Both maps are in order of arrival, so the oldest entries are evicted first
+    private final LinkedHashMap<Long, Long> payloadHashes = new LinkedHashMap<Long, Long>();
+    private final LinkedHashMap<String, LatestMessage> latestMessages = new LinkedHashMap<String, LatestMessage>();
+    private final int maxEntries;
+    
+    private volatile long windowMillis = 0;
+    private volatile long duplicateDatagramCount = 0;
+    private volatile long duplicateGeomessageCount = 0;
+    private volatile long staleGeomessageCount = 0;
+    
+    /**
+     * Creates a new DuplicateFilter, initially disabled.
+     * @param maxEntries the most datagrams, and separately the most Geomessage IDs,
+     *                   to remember.
+     */
+    DuplicateFilter(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+    
+    /**
+     * Sets how long datagrams and Geomessages are remembered. Zero disables the
+     * filter. May be called on any thread.
+     * @param windowMillis the window, in milliseconds.
+     */
+    void setWindowMillis(long windowMillis) {
+        this.windowMillis = Math.max(0, windowMillis);
+    }
+    
+    /**
+     * @return how long datagrams and Geomessages are remembered, in milliseconds,
+     *         or zero if the filter is disabled.
+     */
+    long getWindowMillis() {
+        return windowMillis;
+    }
+    
+    /**
+     * @return true if the filter is enabled.
+     */
+    boolean isEnabled() {
+        return 0 < windowMillis;
+    }
+    
+    /**
+     * Checks whether a datagram has the same bytes as one received within the
+     * window, and remembers it if not. While the filter is disabled, this method
+     * forgets everything remembered and returns false.
+     * @param datagram the datagram. Its position is not changed.
+     * @param nowMillis the current time.
+     * @return true if the datagram is a duplicate.
+     */
+    boolean isDuplicateDatagram(ByteBuffer datagram, long nowMillis) {
+        long window = windowMillis;
+        if (0 == window) {
+            clear();
+            return false;
+        }
+        evict(payloadHashes.entrySet().iterator(), nowMillis - window);
+        Long hash = hash(datagram);
+        Long receivedMillis = payloadHashes.get(hash);
+        if (null != receivedMillis) {
+            duplicateDatagramCount++;
+            return true;
+        }
+        payloadHashes.put(hash, nowMillis);
+        if (maxEntries < payloadHashes.size()) {
+            Iterator<Long> iterator = payloadHashes.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        return false;
+    }
+    
+    /**
+     * Checks whether a Geomessage repeats, or was submitted before, the latest
+     * Geomessage received within the window for the same ID, and remembers it
+     * as the latest if not.
+     * @param geomessage the Geomessage.
+     * @param nowMillis the current time.
+     * @return true if the Geomessage is a duplicate or out of date.
+     */
+    boolean isDuplicateOrStale(Geomessage geomessage, long nowMillis) {
+        long window = windowMillis;
+        String id = geomessage.getId();
+        Object submittedValue = geomessage.getProperty(DATETIMESUBMITTED_FIELD_NAME);
+        if (0 == window || null == id || null == submittedValue) {
+            return false;
+        }
+        evictLatestMessages(nowMillis - window);
+        String submitted = submittedValue.toString();
+        Object actionValue = geomessage.getProperty(Geomessage.ACTION_FIELD_NAME);
+        String action = null == actionValue ? null : actionValue.toString();
+        LatestMessage latest = latestMessages.get(id);
+        if (null != latest) {
+            int order = compareTimestamps(submitted, latest.submitted);
+            if (0 > order) {
+                staleGeomessageCount++;
+                return true;
+            }
+            if (0 == order && (null == action ? null == latest.action : action.equals(latest.action))) {
+                duplicateGeomessageCount++;
+                return true;
+            }
+            latestMessages.remove(id);
+        }
+        latestMessages.put(id, new LatestMessage(submitted, action, nowMillis));
+        if (maxEntries < latestMessages.size()) {
+            Iterator<String> iterator = latestMessages.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        return false;
+    }
+    
+    /**
+     * Compares two timestamps in the yyyy-MM-dd HH:mm:ss form, which sorts like
+     * its text. Returns zero for equal text and 1 for any other text that is not
+     * in that form, so that it is never considered stale.
+     */
+    private static int compareTimestamps(String a, String b) {
+        if (a.equals(b)) {
+            return 0;
+        }
+        if (TIMESTAMP_LENGTH != a.length() || TIMESTAMP_LENGTH != b.length()) {
+            return 1;
+        }
+        return 0 > a.compareTo(b) ? -1 : 1;
+    }
+    
+    private void evict(Iterator<Map.Entry<Long, Long>> iterator, long oldestMillis) {
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue() >= oldestMillis) {
+                return;
+            }
+            iterator.remove();
+        }
+    }
+    
+    private void evictLatestMessages(long oldestMillis) {
+        Iterator<LatestMessage> iterator = latestMessages.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().receivedMillis >= oldestMillis) {
+                return;
+            }
+            iterator.remove();
+        }
+    }
+    
+    private void clear() {
+        if (!payloadHashes.isEmpty() || !latestMessages.isEmpty()) {
+            payloadHashes.clear();
+            latestMessages.clear();
+        }
+    }
+    
+    /**
+     * Computes a 64-bit FNV-1a hash of the remaining bytes, finished with a mixing
+     * step so that the low bits used by HashMap are well distributed.
+     */
+    private static long hash(ByteBuffer datagram) {
+        long hash = FNV_OFFSET_BASIS;
+        int limit = datagram.limit();
+        for (int i = datagram.position(); i < limit; i++) {
+            hash ^= datagram.get(i) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+    
+    /**
+     * @return the number of datagrams dropped as duplicates.
+     */
+    long getDuplicateDatagramCount() {
+        return duplicateDatagramCount;
+    }
+    
+    /**
+     * @return the number of Geomessages dropped as duplicates.
+     */
+    long getDuplicateGeomessageCount() {
+        return duplicateGeomessageCount;
+    }
+    
+    /**
+     * @return the number of Geomessages dropped as out of date.
+     */
+    long getStaleGeomessageCount() {
+        return staleGeomessageCount;
+    }
+    
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reassembles payloads from fragment datagrams. Partly received payloads are held
+ * in a bounded buffer: a payload is discarded if its fragments stop arriving for
+ * longer than the timeout, and the oldest partial payloads are discarded when the
+ * buffer holds too many payloads or bytes. The bytes held include each payload's
+ * table of fragment slots, whose size comes from the fragment count in the
+ * header, so a forged count cannot make the buffer outgrow its limit. A
+ * FragmentReassembler is not
+ * thread-safe; MessageController confines it to the receive thread.
+ * @see DatagramFraming
+ */
+class FragmentReassembler {
+    
+    private static final Logger logger = Logger.getLogger(FragmentReassembler.class.getName());
+    
+    //What one fragment slot costs, counted as if it were fragment bytes
+    private static final int SLOT_BYTES = 8;
+    
+    private static final class Key {
+        
+        private final SocketAddress source;
+        private final int messageId;
+
+        Key(SocketAddress source, int messageId) {
+            this.source = source;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return messageId == other.messageId && source.equals(other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * source.hashCode() + messageId;
+        }
+        
+    }
+    
+    private static final class PartialPayload {
+        
+        final byte[][] fragments;
+        int receivedCount = 0;
+        int byteCount = 0;
+        long lastFragmentNanos;
+
+        PartialPayload(int fragmentCount) {
+            fragments = new byte[fragmentCount][];
+        }
+        
+        /**
+         * @return the fragment bytes held plus the cost of the fragment slots.
+         */
+        int heldBytes() {
+            return byteCount + fragments.length * SLOT_BYTES;
+        }
+        
+    }
+    
+    private final LinkedHashMap<Key, PartialPayload> partialPayloads = new LinkedHashMap<Key, PartialPayload>();
+    private final int maxPartialPayloads;
+    private final int maxPartialBytes;
+    private final long timeoutNanos;
+    
+    private int partialBytes = 0;
+    //Counters are read by other threads for metrics
+    private volatile long reassembledCount = 0;
+    private volatile long discardedCount = 0;
+    
+    /**
+     * Creates a new FragmentReassembler.
+     * @param maxPartialPayloads the most payloads that may be partly received at once.
+     * @param maxPartialBytes the most fragment bytes that may be held at once,
+     *                        counting each fragment slot as a few bytes. This also
+     *                        limits the length of one payload.
+     * @param timeoutMillis how long a partly received payload waits for its next
+     *                      fragment before it is discarded.
+     */
+    FragmentReassembler(int maxPartialPayloads, int maxPartialBytes, long timeoutMillis) {
+        this.maxPartialPayloads = maxPartialPayloads;
+        this.maxPartialBytes = maxPartialBytes;
+        this.timeoutNanos = timeoutMillis * 1000000L;
+    }
+    
+    /**
+     * Adds a fragment datagram.
+     * @param source the address of the sender.
+     * @param datagram the fragment datagram, starting with its header. The datagram
+     *                 is copied as needed, and its position is advanced to its limit.
+     * @return the reassembled payload if this was its last missing fragment, or null.
+     */
+    byte[] add(SocketAddress source, ByteBuffer datagram) {
+        //Not the wall clock, so that clock changes neither expire nor keep payloads
+        long now = System.nanoTime();
+        discardExpired(now);
+        if (DatagramFraming.FRAGMENT_HEADER_LENGTH > datagram.remaining()) {
+            logger.fine("Fragment datagram is too short");
+            datagram.position(datagram.limit());
+            return null;
+        }
+        datagram.position(datagram.position() + 2);
+        int messageId = datagram.getInt();
+        int index = datagram.getShort() & 0xFFFF;
+        int count = datagram.getShort() & 0xFFFF;
+        byte[] fragment = new byte[datagram.remaining()];
+        datagram.get(fragment);
+        if (index >= count) {
+            logger.log(Level.FINE, "Fragment index {0} is out of range for {1} fragments", new Object[] { index, count });
+            return null;
+        }
+        if (1 == count) {
+            reassembledCount++;
+            return fragment;
+        }
+        
+        Key key = new Key(source, messageId);
+        PartialPayload partial = partialPayloads.get(key);
+        if (null == partial) {
+            if ((long) count * SLOT_BYTES + fragment.length > maxPartialBytes) {
+                logger.log(Level.FINE, "Message {0} has too many fragments ({1}) to buffer",
+                        new Object[] { messageId, count });
+                discardedCount++;
+                return null;
+            }
+            partial = new PartialPayload(count);
+            partialPayloads.put(key, partial);
+            partialBytes += count * SLOT_BYTES;
+        } else if (partial.fragments.length != count) {
+            logger.log(Level.FINE, "Fragment count changed for message {0}", messageId);
+            discard(key, partial);
+            return null;
+        }
+        partial.lastFragmentNanos = now;
+        if (null == partial.fragments[index]) {
+            partial.fragments[index] = fragment;
+            partial.receivedCount++;
+            partial.byteCount += fragment.length;
+            partialBytes += fragment.length;
+        }
+        
+        if (partial.receivedCount == count) {
+            partialPayloads.remove(key);
+            partialBytes -= partial.heldBytes();
+            byte[] payload = new byte[partial.byteCount];
+            int offset = 0;
+            for (byte[] part : partial.fragments) {
+                System.arraycopy(part, 0, payload, offset, part.length);
+                offset += part.length;
+            }
+            reassembledCount++;
+            return payload;
+        }
+        
+        //Enforce the bounds, discarding the oldest payloads first
+        Iterator<Key> keys = partialPayloads.keySet().iterator();
+        while ((partialPayloads.size() > maxPartialPayloads || partialBytes > maxPartialBytes) && keys.hasNext()) {
+            Key oldest = keys.next();
+            PartialPayload oldestPartial = partialPayloads.get(oldest);
+            keys.remove();
+            partialBytes -= oldestPartial.heldBytes();
+            discardedCount++;
+            logger.log(Level.FINE, "Discarded partial message {0} to make room", oldest.messageId);
+        }
+        return null;
+    }
+    
+    private void discardExpired(long now) {
+        Iterator<PartialPayload> partials = partialPayloads.values().iterator();
+        while (partials.hasNext()) {
+            PartialPayload partial = partials.next();
+            if (now - partial.lastFragmentNanos > timeoutNanos) {
+                partials.remove();
+                partialBytes -= partial.heldBytes();
+                discardedCount++;
+            }
+        }
+    }
+    
+    private void discard(Key key, PartialPayload partial) {
+        partialPayloads.remove(key);
+        partialBytes -= partial.heldBytes();
+        discardedCount++;
+    }
+    
+    /**
+     * @return the number of payloads partly received.
+     */
+    int getPartialCount() {
+        return partialPayloads.size();
+    }
+    
+    /**
+     * @return the number of payloads reassembled.
+     */
+    long getReassembledCount() {
+        return reassembledCount;
+    }
+    
+    /**
+     * @return the number of partly received payloads discarded because they timed
+     *         out or did not fit in the buffer, including those that could not
+     *         fit at all.
+     */
+    long getDiscardedCount() {
+        return discardedCount;
+    }
+    
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A MessageControllerListener that sits between a MessageController and another
+ * listener and passes on only the latest update for each _id per tick. When
+ * hundreds of units report every second but the display refreshes a few times a
+ * second, this makes the downstream work scale with the number of entities
+ * rather than the number of messages.<br/>
+ * <br/>
+ * Geomessages received during a tick are held until the end of the tick. An
+ * "update" Geomessage, or one with no _action, replaces the held update with the
+ * same _id, keeping that update's place in line. Any other Geomessage, such as
+ * a "select," "un-select" or "remove," never replaces or is replaced: it is held
+ * in arrival order after the updates before it, and an update that arrives after
+ * it is held after it, so the target sees every change of selection or
+ * existence in order and ends the tick with the latest position. Geomessages
+ * without an _id are all kept. At the end of each tick, the held Geomessages are
+ * delivered to the target listener on the coalescer's own thread. If the target
+ * is a BatchMessageControllerListener, each tick's Geomessages are delivered as
+ * one batch. Calls to datagramReceived are passed straight through on the
+ * calling thread.<br/>
+ * <br/>
+ * Add the coalescer, not the target, to the MessageController, and call close()
+ * when it is no longer needed.
+ */
+public class GeomessageCoalescer implements BatchMessageControllerListener {
+    
+    private static final Logger logger = Logger.getLogger(GeomessageCoalescer.class.getName());
+    
+    private final MessageControllerListener target;
+    private final BatchMessageControllerListener batchTarget;
+    private final long tickMillis;
+    private final Object pendingLock = new Object();
+    private final Object deliveryLock = new Object();
+    private final AtomicLong receivedCount = new AtomicLong(0);
+    private final AtomicLong deliveredCount = new AtomicLong(0);
+    
+    //Held Geomessages in delivery order
+    private ArrayList<Geomessage> pending = new ArrayList<Geomessage>();
+    //The index in pending of the update that the next update for each _id replaces
+    private final HashMap<String, Integer> pendingUpdates = new HashMap<String, Integer>();
+    //Only touched under deliveryLock; swapped with pending on each tick
+    private ArrayList<Geomessage> delivering = new ArrayList<Geomessage>();
+    private Timer timer = null;
+    private boolean closed = false;
+
+    /**
+     * Creates a new GeomessageCoalescer.
+     * @param target the listener that receives the coalesced Geomessages.
+     * @param tickMillis the tick length, in milliseconds, such as 100 for a display
+     *                   that refreshes at 10 Hz.
+     */
+    public GeomessageCoalescer(MessageControllerListener target, long tickMillis) {
+        if (0 >= tickMillis) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        this.target = target;
+        this.batchTarget = target instanceof BatchMessageControllerListener
+                ? (BatchMessageControllerListener) target : null;
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Holds a Geomessage until the end of the current tick. An update replaces any
+     * held update with the same _id that no other Geomessage has followed.
+     * @param geomessage the Geomessage.
+     */
+    @Override
+    public void geomessageReceived(Geomessage geomessage) {
+        synchronized (pendingLock) {
+            if (closed) {
+                return;
+            }
+            startIfNeeded();
+            hold(geomessage);
+        }
+        receivedCount.incrementAndGet();
+    }
+
+    /**
+     * Holds a batch of Geomessages until the end of the current tick, coalescing
+     * updates as geomessageReceived does.
+     * @param geomessages the Geomessages.
+     */
+    @Override
+    public void geomessagesReceived(List<Geomessage> geomessages) {
+        synchronized (pendingLock) {
+            if (closed) {
+                return;
+            }
+            startIfNeeded();
+            for (Geomessage geomessage : geomessages) {
+                hold(geomessage);
+            }
+        }
+        receivedCount.addAndGet(geomessages.size());
+    }
+    
+    private void hold(Geomessage geomessage) {
+        String id = geomessage.getId();
+        if (null == id) {
+            pending.add(geomessage);
+            return;
+        }
+        Object action = geomessage.getProperty(Geomessage.ACTION_FIELD_NAME);
+        if (null == action || "update".equalsIgnoreCase(action.toString())) {
+            Integer index = pendingUpdates.get(id);
+            if (null != index) {
+                pending.set(index, geomessage);
+            } else {
+                pendingUpdates.put(id, pending.size());
+                pending.add(geomessage);
+            }
+        } else {
+            //Later updates must not jump back in front of this Geomessage
+            pendingUpdates.remove(id);
+            pending.add(geomessage);
+        }
+    }
+
+    /**
+     * Passes the datagram straight through to the target listener.
+     * @param contents the datagram contents.
+     */
+    @Override
+    public void datagramReceived(String contents) {
+        target.datagramReceived(contents);
+    }
+    
+    private void startIfNeeded() {
+        if (null == timer) {
+            timer = new Timer("GeomessageCoalescer", true);
+            timer.scheduleAtFixedRate(new TimerTask() {
+
+                @Override
+                public void run() {
+                    flush();
+                }
+
+            }, tickMillis, tickMillis);
+        }
+    }
+    
+    /**
+     * Delivers the held Geomessages to the target listener now, on the calling
+     * thread, instead of at the end of the tick.
+     */
+    public void flush() {
+        synchronized (deliveryLock) {
+            synchronized (pendingLock) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                ArrayList<Geomessage> swap = delivering;
+                delivering = pending;
+                pending = swap;
+                pendingUpdates.clear();
+            }
+            try {
+                if (null != batchTarget) {
+                    batchTarget.geomessagesReceived(new ArrayList<Geomessage>(delivering));
+                } else {
+                    for (Geomessage geomessage : delivering) {
+                        target.geomessageReceived(geomessage);
+                    }
+                }
+            } catch (RuntimeException re) {
+                //Keep the timer thread alive for the next tick
+                logger.log(Level.SEVERE, "MessageControllerListener failed", re);
+            } finally {
+                deliveredCount.addAndGet(delivering.size());
+                delivering.clear();
+            }
+        }
+    }
+    
+    /**
+     * Delivers the held Geomessages and stops the coalescer's thread. Geomessages
+     * received afterwards are ignored.
+     */
+    public void close() {
+        Timer theTimer;
+        synchronized (pendingLock) {
+            closed = true;
+            theTimer = timer;
+            timer = null;
+        }
+        if (null != theTimer) {
+            theTimer.cancel();
+        }
+        flush();
+    }
+    
+    /**
+     * @return the tick length, in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+    
+    /**
+     * @return the number of Geomessages this coalescer has received.
+     */
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+    
+    /**
+     * @return the number of Geomessages this coalescer has delivered to the
+     *         target listener. The difference from getReceivedCount() is the
+     *         number coalesced away or still held.
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+    
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Packs encoded Geomessages into datagrams no longer than a maximum length. Each
+ * datagram is the packer's prefix, one or more Geomessages, and the packer's
+ * suffix: for XML, &lt;geomessage&gt; elements between &lt;geomessages&gt; tags.
+ * With a linger time of zero, every element is sent in its own datagram as soon
+ * as it is added. With a positive linger time, an element waits up to that long
+ * for more elements to share its datagram, and a datagram is sent early when the
+ * next element would not fit. A GeomessagePacker is not thread-safe;
+ * DatagramSender confines it to the send thread, which calls flushIfDue when the
+ * deadline passes.
+ */
+class GeomessagePacker {
+    
+    /**
+     * Receives packed datagrams.
+     */
+    interface Sink {
+        
+        /**
+         * Sends a datagram. The buffer is only valid until this method returns.
+         * @param datagram the datagram, whose remaining bytes are the contents.
+         * @throws IOException if the datagram cannot be sent.
+         */
+        void send(ByteBuffer datagram) throws IOException;
+        
+    }
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /**
+     * The prefix of an XML Geomessages datagram.
+     */
+    static final byte[] GEOMESSAGES_START = "<geomessages>".getBytes(UTF8);
+    
+    /**
+     * The suffix of an XML Geomessages datagram.
+     */
+    static final byte[] GEOMESSAGES_END = "</geomessages>".getBytes(UTF8);
+    
+    private final Sink sink;
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private final ByteBuffer datagram;
+    
+    private int maxLength;
+    private int elementCount = 0;
+    private long deadlineNanos = 0;
+    
+    /**
+     * Creates a new GeomessagePacker for XML &lt;geomessage&gt; elements.
+     * @param maxLength the maximum length of a packed datagram, in bytes.
+     * @param sink the receiver of packed datagrams.
+     */
+    GeomessagePacker(int maxLength, Sink sink) {
+        this(maxLength, GEOMESSAGES_START, GEOMESSAGES_END, sink);
+    }
+    
+    /**
+     * Creates a new GeomessagePacker.
+     * @param maxLength the maximum length of a packed datagram, in bytes.
+     * @param prefix the bytes that start each datagram.
+     * @param suffix the bytes that end each datagram.
+     * @param sink the receiver of packed datagrams.
+     */
+    GeomessagePacker(int maxLength, byte[] prefix, byte[] suffix, Sink sink) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.sink = sink;
+        this.datagram = ByteBuffer.allocateDirect(maxLength);
+        this.maxLength = maxLength;
+    }
+    
+    /**
+     * Changes the maximum length of a packed datagram, starting with the next
+     * element added.
+     * @param maxLength the maximum length, no greater than the length given to
+     *                  the constructor.
+     */
+    void setMaxLength(int maxLength) {
+        this.maxLength = Math.min(maxLength, datagram.capacity());
+    }
+    
+    /**
+     * Adds an encoded Geomessage. An element too long to be packed with the
+     * prefix and suffix into one datagram is sent by itself anyway.
+     * @param element the encoded Geomessage, whose remaining bytes are the contents.
+     *                The element is copied before this method returns.
+     * @param lingerNanos how long the element may wait for more elements.
+     * @throws IOException if a datagram cannot be sent.
+     */
+    void add(ByteBuffer element, long lingerNanos) throws IOException {
+        int elementLength = element.remaining();
+        if (0 < elementCount && datagram.position() + elementLength + suffix.length > maxLength) {
+            flush();
+        }
+        if (prefix.length + elementLength + suffix.length > maxLength) {
+            ByteBuffer oversized = ByteBuffer.allocate(prefix.length + elementLength + suffix.length);
+            oversized.put(prefix).put(element).put(suffix).flip();
+            sink.send(oversized);
+            return;
+        }
+        if (0 == elementCount) {
+            datagram.clear();
+            datagram.put(prefix);
+            deadlineNanos = System.nanoTime() + lingerNanos;
+        }
+        datagram.put(element);
+        elementCount++;
+        if (0 >= lingerNanos) {
+            flush();
+        }
+    }
+    
+    /**
+     * @return true if elements are waiting to be sent.
+     */
+    boolean hasPending() {
+        return 0 < elementCount;
+    }
+    
+    /**
+     * @return when the waiting elements are due to be sent, in System.nanoTime()
+     *         terms. Only meaningful when hasPending() is true.
+     */
+    long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+    
+    /**
+     * Sends the waiting elements if their deadline has passed.
+     * @param nowNanos the current System.nanoTime().
+     * @throws IOException if the datagram cannot be sent.
+     */
+    void flushIfDue(long nowNanos) throws IOException {
+        if (0 < elementCount && 0 <= nowNanos - deadlineNanos) {
+            flush();
+        }
+    }
+    
+    /**
+     * Sends waiting elements, if any, immediately.
+     * @throws IOException if the datagram cannot be sent.
+     */
+    void flush() throws IOException {
+        if (0 == elementCount) {
+            return;
+        }
+        elementCount = 0;
+        datagram.put(suffix);
+        datagram.flip();
+        sink.send(datagram);
+    }
+    
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.util.ByteBufferPool;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An inbound datagram and the Geomessages parsed from it, as queued for delivery
+ * to a MessageControllerListener. A datagram is urgent if any of its Geomessages
+ * is an emergency report (status911 is 1) or a "remove" Geomessage; urgent
+ * datagrams are delivered ahead of routine ones.<br/>
+ * <br/>
+ * Listeners may change the Geomessages they receive, and Geomessage is not
+ * thread-safe, so each listener queue gets its own copy of the datagram from
+ * copy(), which holds clones of the Geomessages. The creator makes every copy
+ * before offering the datagram to any queue, because a listener may start
+ * changing its Geomessages as soon as its queue has them. Apart from the
+ * Geomessages, an InboundDatagram and its copies are immutable and share
+ * everything, including the IDs captured when the datagram was created.<br/>
+ * <br/>
+ * For RawDatagramListeners, a datagram may also hold the buffer it was received
+ * into. Such a buffer is reference counted: the creator holds one reference, each
+ * listener queue that accepts the datagram or a copy of it takes another, and the
+ * buffer goes back to its pool when the last reference is released.
+ */
+class InboundDatagram {
+
+    private final String contents;
+    private final Geomessage[] geomessages;
+    private final String[] ids;
+    private final boolean urgent;
+    private final long receivedNanos;
+    private final ByteBuffer rawContents;
+    private final ByteBufferPool pool;
+    private final AtomicInteger pooledCount;
+    private final AtomicInteger references;
+
+    InboundDatagram(String contents, Geomessage[] geomessages) {
+        this(contents, geomessages, null, null, null);
+    }
+
+    /**
+     * Creates an InboundDatagram that holds its raw contents.
+     * @param contents the datagram contents, or null.
+     * @param geomessages the Geomessages parsed from the datagram.
+     * @param rawContents the raw datagram contents, or null. This class never
+     *                    changes the buffer's position or limit.
+     * @param pool the pool to which rawContents goes back when the last reference
+     *             is released, or null if rawContents is not pooled.
+     * @param pooledCount a count of pooled buffers held by datagrams, which this
+     *                    datagram decrements when it gives its buffer back to the
+     *                    pool, or null if rawContents is not pooled.
+     */
+    InboundDatagram(String contents, Geomessage[] geomessages,
+            ByteBuffer rawContents, ByteBufferPool pool, AtomicInteger pooledCount) {
+        this.contents = contents;
+        this.geomessages = geomessages;
+        this.ids = new String[geomessages.length];
+        for (int i = 0; i < geomessages.length; i++) {
+            ids[i] = geomessages[i].getId();
+        }
+        this.urgent = isUrgent(geomessages);
+        this.receivedNanos = System.nanoTime();
+        this.rawContents = rawContents;
+        this.pool = pool;
+        this.pooledCount = pooledCount;
+        this.references = new AtomicInteger(1);
+    }
+    
+    private InboundDatagram(InboundDatagram original, Geomessage[] geomessages) {
+        this.contents = original.contents;
+        this.geomessages = geomessages;
+        this.ids = original.ids;
+        this.urgent = original.urgent;
+        this.receivedNanos = original.receivedNanos;
+        this.rawContents = original.rawContents;
+        this.pool = original.pool;
+        this.pooledCount = original.pooledCount;
+        this.references = original.references;
+    }
+    
+    /**
+     * Returns a copy of this datagram with its own clones of the Geomessages, for
+     * another listener queue. Call this method before offering this datagram to any
+     * queue. The copy shares this datagram's raw contents and reference count, so
+     * the queue that accepts it takes a reference as usual.
+     * @return a copy of this datagram, or this datagram if it has no Geomessages.
+     */
+    InboundDatagram copy() {
+        if (0 == geomessages.length) {
+            return this;
+        }
+        Geomessage[] clones = new Geomessage[geomessages.length];
+        for (int i = 0; i < geomessages.length; i++) {
+            clones[i] = geomessages[i].clone();
+        }
+        return new InboundDatagram(this, clones);
+    }
+    
+    private static boolean isUrgent(Geomessage[] geomessages) {
+        for (Geomessage geomessage : geomessages) {
+            Object action = geomessage.getProperty(Geomessage.ACTION_FIELD_NAME);
+            if ("1".equals(geomessage.getProperty("status911"))
+                    || (null != action && "remove".equalsIgnoreCase(action.toString()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the datagram contents, or null for a binary datagram.
+     */
+    String getContents() {
+        return contents;
+    }
+
+    /**
+     * Returns a read-only view of the raw datagram contents. The view is valid
+     * only while the caller holds a reference to this datagram.
+     * @return a read-only view of the raw contents, or null if this datagram
+     *         does not hold them.
+     */
+    ByteBuffer getRawContents() {
+        return null == rawContents ? null : rawContents.asReadOnlyBuffer();
+    }
+
+    /**
+     * Takes a reference to this datagram's raw contents.
+     */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Releases a reference to this datagram's raw contents. Releasing the last
+     * reference returns a pooled buffer to its pool.
+     */
+    void release() {
+        if (null != pool && 0 == references.decrementAndGet()) {
+            pooledCount.decrementAndGet();
+            pool.release(rawContents);
+        }
+    }
+
+    /**
+     * @return the Geomessages parsed from the datagram, possibly empty. Only the
+     *         queue that holds this copy may touch them.
+     */
+    Geomessage[] getGeomessages() {
+        return geomessages;
+    }
+
+    /**
+     * @return the IDs of the Geomessages as they were when the datagram was
+     *         created, which any thread may read.
+     */
+    String[] getGeomessageIds() {
+        return ids;
+    }
+
+    /**
+     * @return true if this datagram contains an emergency or "remove" Geomessage.
+     */
+    boolean isUrgent() {
+        return urgent;
+    }
+
+    /**
+     * @return when this datagram was parsed, in System.nanoTime() terms.
+     */
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+}
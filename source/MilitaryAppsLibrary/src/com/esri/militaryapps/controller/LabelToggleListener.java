@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+/**
+ * A listener for the progress of AdvancedSymbolController.setShowLabels, which
+ * redraws existing symbols incrementally. The methods are called on the thread
+ * that runs the redraw's time slices, except that labelToggleFinished may be called
+ * on the thread that superseded the toggle. Calls for one toggle never overlap, and
+ * labelToggleProgress is never called after labelToggleFinished.
+ * @see AdvancedSymbolController#setShowLabels(boolean, LabelToggleListener)
+ */
+public interface LabelToggleListener {
+
+    /**
+     * Called after each time slice in which symbols were redrawn.
+     * @param showLabels the label setting being applied.
+     * @param completedCount the number of symbols checked so far, including those
+     *                       that already matched the setting.
+     * @param totalCount the number of symbols to check.
+     */
+    public void labelToggleProgress(boolean showLabels, int completedCount, int totalCount);
+
+    /**
+     * Called once when the toggle ends.
+     * @param showLabels the label setting that was being applied.
+     * @param superseded true if another call to setShowLabels stopped this toggle
+     *                   before it finished. The newer call redraws the remaining
+     *                   symbols.
+     */
+    public void labelToggleFinished(boolean showLabels, boolean superseded);
+
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe, lock-free running statistics for a stream of latency samples: the
+ * number of samples, their total, the largest, and a histogram with one bucket
+ * per power of two nanoseconds.
+ * @see MessageControllerMetrics.Latency
+ */
+class LatencyStats {
+    
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong totalNanos = new AtomicLong(0);
+    private final AtomicLong maxNanos = new AtomicLong(0);
+    private final AtomicLongArray buckets = new AtomicLongArray(MessageControllerMetrics.Latency.BUCKET_COUNT);
+    
+    /**
+     * Records a sample.
+     * @param latencyNanos the latency, in nanoseconds.
+     */
+    void record(long latencyNanos) {
+        latencyNanos = Math.max(0, latencyNanos);
+        totalNanos.addAndGet(latencyNanos);
+        count.incrementAndGet();
+        buckets.incrementAndGet(MessageControllerMetrics.Latency.getBucket(latencyNanos));
+        long max;
+        while (latencyNanos > (max = maxNanos.get())
+                && !maxNanos.compareAndSet(max, latencyNanos)) {
+            //Retry until the maximum is updated or no longer smaller
+        }
+    }
+    
+    /**
+     * @return the number of samples recorded.
+     */
+    long getCount() {
+        return count.get();
+    }
+    
+    /**
+     * @return the mean of the samples recorded, in nanoseconds, or zero if none
+     *         have been recorded.
+     */
+    long getMeanNanos() {
+        long samples = count.get();
+        return 0 == samples ? 0 : totalNanos.get() / samples;
+    }
+    
+    /**
+     * @return the largest sample recorded, in nanoseconds.
+     */
+    long getMaxNanos() {
+        return maxNanos.get();
+    }
+    
+    /**
+     * @return a copy of the statistics. Samples recorded while the copy is made
+     *         may be partly included.
+     */
+    MessageControllerMetrics.Latency snapshot() {
+        long[] bucketCounts = new long[buckets.length()];
+        for (int i = 0; i < bucketCounts.length; i++) {
+            bucketCounts[i] = buckets.get(i);
+        }
+        return new MessageControllerMetrics.Latency(count.get(), totalNanos.get(), maxNanos.get(), bucketCounts);
+    }
+    
+}
@@ -0,0 +1,440 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single-consumer delivery queue for one MessageControllerListener. Any number
+ * of threads may offer datagrams without locking; at most one drain task per
+ * listener is scheduled on the DispatchStrategy at a time, so the listener sees
+ * datagrams in arrival order, apart from the urgent lane described below, and is
+ * never called concurrently. Each drain task
+ * delivers a bounded batch and then reschedules itself, so that a slow listener
+ * occupies at most one worker and cannot stall the other listeners. If the
+ * strategy rejects a drain task, the datagrams stay queued and the queue
+ * dispatches again after a short delay. For a
+ * BatchMessageControllerListener, the Geomessages from each drain are collected
+ * into one batch, optionally held open for a time window.<br/>
+ * <br/>
+ * Urgent datagrams (see InboundDatagram.isUrgent()) have their own lane: each
+ * drain delivers every queued urgent datagram before any routine one, a full
+ * queue makes room for an urgent datagram by dropping the oldest routine one
+ * unless the drop policy is BLOCK, and an urgent Geomessage closes the current
+ * batch window early. An urgent datagram only overtakes routine datagrams for
+ * other Geomessage IDs: if a routine datagram for one of its IDs is still queued,
+ * it joins the routine lane behind it, so that, for example, a queued update
+ * cannot bring back a track after its "remove." Delivery latency is recorded
+ * separately for each kind of datagram.<br/>
+ * <br/>
+ * A queue holds a reference to each datagram it accepts and releases it once the
+ * datagram has been delivered, dropped or discarded.
+ */
+class ListenerQueue implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(ListenerQueue.class.getName());
+    private static final long DISPATCH_RETRY_MILLIS = 5;
+    private static final Timer timer = new Timer("ListenerQueueTimer", true);
+
+    private final MessageControllerListener listener;
+    private final BatchMessageControllerListener batchListener;
+    private final RawDatagramListener rawListener;
+    private final ConcurrentLinkedQueue<InboundDatagram> datagrams = new ConcurrentLinkedQueue<InboundDatagram>();
+    private final ConcurrentLinkedQueue<InboundDatagram> urgentDatagrams = new ConcurrentLinkedQueue<InboundDatagram>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final Object slotLock = new Object();
+    private final AtomicInteger waitingOffers = new AtomicInteger(0);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicBoolean retryScheduled = new AtomicBoolean(false);
+    private final AtomicInteger droppedCount = new AtomicInteger(0);
+    private final int capacity;
+    private final DispatchStrategy.DropPolicy dropPolicy;
+    private final int maxBatchSize;
+    private final LatencyStats urgentLatency;
+    private final LatencyStats routineLatency;
+
+    private volatile DispatchStrategy strategy = null;
+    private volatile boolean closed = false;
+    private volatile long batchMaxDelayMillis = 0;
+    private volatile int batchMaxCount = 0;
+    
+    private volatile boolean batchTimerScheduled = false;
+    private volatile boolean batchWindowElapsed = false;
+    
+    //Only touched by the drain task, which never runs concurrently with itself
+    private ArrayList<Geomessage> pendingBatch = null;
+    private long pendingBatchStartMillis = 0;
+    private boolean pendingBatchUrgent = false;
+
+    /**
+     * Creates a new ListenerQueue.
+     * @param listener the listener.
+     * @param capacity the maximum number of queued datagrams.
+     * @param dropPolicy what to do with a datagram when the queue is full.
+     * @param maxBatchSize the maximum number of datagrams delivered by one drain task.
+     * @param urgentLatency where to record the delivery latency of urgent datagrams.
+     * @param routineLatency where to record the delivery latency of routine datagrams.
+     */
+    ListenerQueue(MessageControllerListener listener, int capacity,
+            DispatchStrategy.DropPolicy dropPolicy, int maxBatchSize,
+            LatencyStats urgentLatency, LatencyStats routineLatency) {
+        this.listener = listener;
+        this.batchListener = listener instanceof BatchMessageControllerListener
+                ? (BatchMessageControllerListener) listener : null;
+        this.rawListener = listener instanceof RawDatagramListener
+                ? (RawDatagramListener) listener : null;
+        this.capacity = capacity;
+        this.dropPolicy = dropPolicy;
+        this.maxBatchSize = maxBatchSize;
+        this.urgentLatency = urgentLatency;
+        this.routineLatency = routineLatency;
+    }
+
+    /**
+     * @return the listener served by this queue.
+     */
+    MessageControllerListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return true if the listener receives datagrams as raw bytes instead of Strings.
+     */
+    boolean isRaw() {
+        return null != rawListener;
+    }
+
+    /**
+     * Sets the batch window for a BatchMessageControllerListener. This method has
+     * no effect on the batching of other listeners.
+     * @param maxDelayMillis the longest time a Geomessage waits for its batch to
+     *                       be delivered, or zero to deliver a batch at the end of
+     *                       each drain.
+     * @param maxCount the most Geomessages in a batch, or zero for no limit.
+     */
+    void setBatchWindow(long maxDelayMillis, int maxCount) {
+        batchMaxDelayMillis = Math.max(0, maxDelayMillis);
+        batchMaxCount = Math.max(0, maxCount);
+    }
+
+    /**
+     * Queues a datagram for delivery and schedules a drain task if none is scheduled.
+     * @param datagram the datagram.
+     * @param dispatchStrategy the strategy on which to run the drain task.
+     */
+    void offer(InboundDatagram datagram, DispatchStrategy dispatchStrategy) {
+        if (closed) {
+            return;
+        }
+        strategy = dispatchStrategy;
+        boolean urgent = datagram.isUrgent() && !hasQueuedRoutine(datagram.getGeomessageIds());
+        if (!reserveSlot(urgent)) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        datagram.retain();
+        (urgent ? urgentDatagrams : datagrams).offer(datagram);
+        if (closed) {
+            //close() may have drained the queue before this datagram arrived
+            close();
+            return;
+        }
+        schedule();
+    }
+
+    /**
+     * Returns true if a queued routine datagram has a Geomessage with one of the
+     * specified IDs. Only called for urgent datagrams, which
+     * are rare, so routine datagrams cost nothing extra.
+     */
+    private boolean hasQueuedRoutine(String[] ids) {
+        for (InboundDatagram queued : datagrams) {
+            //Compare captured IDs, since the drain task may be delivering a queued datagram
+            for (String queuedId : queued.getGeomessageIds()) {
+                for (String id : ids) {
+                    if (null == id ? null == queuedId : id.equals(queuedId)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean reserveSlot(boolean urgent) {
+        while (true) {
+            int current = size.get();
+            if (current < capacity) {
+                if (size.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            } else if (urgent && DispatchStrategy.DropPolicy.BLOCK != dropPolicy && drop(datagrams.poll())) {
+                //Made room by dropping the oldest routine datagram
+            } else {
+                switch (dropPolicy) {
+                    case DROP_OLDEST: {
+                        //Routine datagrams never displace urgent ones
+                        if (!drop(urgent ? urgentDatagrams.poll() : datagrams.poll()) && !urgent) {
+                            return false;
+                        }
+                        break;
+                    }
+                    case BLOCK: {
+                        if (!awaitSlot()) {
+                            return false;
+                        }
+                        break;
+                    }
+                    case DROP_NEWEST:
+                    default: {
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until a drain task frees a slot or the queue is closed.
+     * @return false if the queue was closed or the thread was interrupted.
+     */
+    private boolean awaitSlot() {
+        synchronized (slotLock) {
+            //Count this thread before checking, so that the drain task cannot
+            //free a slot without seeing that someone needs to be woken
+            waitingOffers.incrementAndGet();
+            try {
+                while (capacity <= size.get() && !closed) {
+                    slotLock.wait();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waitingOffers.decrementAndGet();
+            }
+        }
+        return !closed;
+    }
+
+    /**
+     * Called by the drain task each time it takes a datagram off the queue.
+     */
+    private void slotFreed() {
+        size.decrementAndGet();
+        if (0 < waitingOffers.get()) {
+            synchronized (slotLock) {
+                slotLock.notify();
+            }
+        }
+    }
+
+    private boolean drop(InboundDatagram datagram) {
+        if (null == datagram) {
+            return false;
+        }
+        size.decrementAndGet();
+        droppedCount.incrementAndGet();
+        datagram.release();
+        return true;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            if (!strategy.dispatch(this)) {
+                //The strategy had no room for the drain task; the datagrams stay
+                //queued, so try again even if no more datagrams arrive
+                scheduled.set(false);
+                scheduleRetry();
+            }
+        }
+    }
+    
+    private void scheduleRetry() {
+        if (closed || !retryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                retryScheduled.set(false);
+                if (!closed && (0 < size.get() || batchWindowElapsed)) {
+                    schedule();
+                }
+            }
+
+        }, DISPATCH_RETRY_MILLIS);
+    }
+
+    /**
+     * Delivers up to maxBatchSize queued datagrams to the listener. Called by the
+     * DispatchStrategy; do not call directly.
+     */
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; i < maxBatchSize && !closed; i++) {
+                InboundDatagram datagram = urgentDatagrams.poll();
+                if (null == datagram) {
+                    datagram = datagrams.poll();
+                    if (null == datagram) {
+                        break;
+                    }
+                }
+                slotFreed();
+                try {
+                    deliver(datagram);
+                } finally {
+                    datagram.release();
+                }
+            }
+            if (null != batchListener && !closed) {
+                deliverBatchIfDue();
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        if (!closed && (!urgentDatagrams.isEmpty() || !datagrams.isEmpty() || batchWindowElapsed)) {
+            schedule();
+        }
+    }
+
+    private void deliver(InboundDatagram datagram) {
+        try {
+            if (null != rawListener) {
+                ByteBuffer contents = datagram.getRawContents();
+                if (null != contents) {
+                    rawListener.datagramReceived(contents);
+                }
+            } else if (null != datagram.getContents()) {
+                listener.datagramReceived(datagram.getContents());
+            }
+            if (null == batchListener) {
+                for (Geomessage message : datagram.getGeomessages()) {
+                    listener.geomessageReceived(message);
+                }
+            } else {
+                pendingBatchUrgent |= datagram.isUrgent();
+                addToBatch(datagram.getGeomessages());
+            }
+        } catch (RuntimeException re) {
+            logger.log(Level.SEVERE, "MessageControllerListener failed", re);
+        }
+        long latency = System.nanoTime() - datagram.getReceivedNanos();
+        (datagram.isUrgent() ? urgentLatency : routineLatency).record(latency);
+    }
+    
+    private void addToBatch(Geomessage[] messages) {
+        int maxCount = batchMaxCount;
+        for (Geomessage message : messages) {
+            if (null == pendingBatch) {
+                pendingBatch = new ArrayList<Geomessage>();
+                pendingBatchStartMillis = System.currentTimeMillis();
+            }
+            pendingBatch.add(message);
+            if (0 < maxCount && maxCount <= pendingBatch.size()) {
+                deliverBatch();
+            }
+        }
+    }
+    
+    private void deliverBatchIfDue() {
+        batchWindowElapsed = false;
+        if (null == pendingBatch) {
+            return;
+        }
+        long maxDelay = batchMaxDelayMillis;
+        long waited = System.currentTimeMillis() - pendingBatchStartMillis;
+        if (0 == maxDelay || maxDelay <= waited || pendingBatchUrgent) {
+            deliverBatch();
+        } else if (!batchTimerScheduled) {
+            batchTimerScheduled = true;
+            timer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    //Let a drain task deliver the batch, so that delivery stays serial
+                    batchTimerScheduled = false;
+                    batchWindowElapsed = true;
+                    if (!closed) {
+                        schedule();
+                    }
+                }
+
+            }, maxDelay - waited);
+        }
+    }
+    
+    private void deliverBatch() {
+        ArrayList<Geomessage> batch = pendingBatch;
+        pendingBatch = null;
+        pendingBatchUrgent = false;
+        try {
+            batchListener.geomessagesReceived(batch);
+        } catch (RuntimeException re) {
+            logger.log(Level.SEVERE, "BatchMessageControllerListener failed", re);
+        }
+    }
+
+    /**
+     * Stops delivering datagrams to the listener and discards queued datagrams.
+     */
+    void close() {
+        closed = true;
+        InboundDatagram datagram;
+        while (null != (datagram = urgentDatagrams.poll()) || null != (datagram = datagrams.poll())) {
+            datagram.release();
+        }
+        size.set(0);
+        synchronized (slotLock) {
+            slotLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if no datagrams are queued or being delivered and no batch is
+     *         waiting for its window to close.
+     */
+    boolean isIdle() {
+        return 0 == size.get() && !scheduled.get() && !batchTimerScheduled && !batchWindowElapsed
+                && !retryScheduled.get();
+    }
+
+    /**
+     * @return the number of datagrams waiting to be delivered.
+     */
+    int getQueuedCount() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of datagrams this queue has dropped.
+     */
+    int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+}
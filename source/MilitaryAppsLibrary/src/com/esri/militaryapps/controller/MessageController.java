@@ -16,42 +16,210 @@
 package com.esri.militaryapps.controller;
 
 import com.esri.militaryapps.model.Geomessage;
-import com.esri.militaryapps.model.GeomessagesReader;
+import com.esri.militaryapps.model.GeomessageBinaryCodec;
+import com.esri.militaryapps.model.GeomessageParser;
 import com.esri.militaryapps.util.Utilities;
+import com.esri.militaryapps.util.ByteBufferPool;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.util.HashSet;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.MembershipKey;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 /**
  * A controller that sends messages to listening clients and receives inbound messages.
- * This implementation sends and receives UDP broadcasts.
+ * This implementation sends and receives UDP broadcasts. Inbound datagrams are read
+ * by a single selector thread, which can service the messaging port as well as any
+ * additional ports or interfaces added with addReceiveAddress(InetSocketAddress).
+ * By default messages are broadcast to 255.255.255.255. A controller can instead,
+ * or in addition, send to a multicast group that it also joins for receiving, and
+ * to a list of unicast destinations, so that only subscribed nodes pay the cost
+ * of receiving and parsing messages.
+ * Datagrams longer than 6000 bytes are split into fragments and reassembled by
+ * the receiving MessageControllers.
+ * Outbound datagrams are queued without locking and written by a single send
+ * thread, so threads that send messages do not wait for the socket or for each
+ * other.
+ * Geomessages can be sent as XML or in a compact binary form for low-bandwidth
+ * links, and datagrams can be compressed; every MessageController receives all
+ * of these forms.
+ * A MessageController holds sockets and threads until it is closed; close it
+ * with close() or a try-with-resources statement when it is no longer needed.
  */
-public class MessageController {
+public class MessageController implements AutoCloseable {
+    
+    /**
+     * The encodings in which Geomessages sent with sendGeomessage can go on the
+     * wire. Each datagram identifies its own encoding, so receivers accept both
+     * regardless of their own setting.
+     * @see MessageController#setWireFormat(WireFormat)
+     */
+    public enum WireFormat {
+        
+        /**
+         * &lt;geomessage&gt; elements in a &lt;geomessages&gt; XML document.
+         */
+        XML,
+        
+        /**
+         * Geomessages encoded with GeomessageBinaryCodec, typically 5 to 10 times
+         * smaller than XML. Only MessageControllers can read binary datagrams.
+         * @see GeomessageBinaryCodec
+         */
+        BINARY
+        
+    }
+    
+    /**
+     * The delivery lanes of inbound datagrams. Each listener's queue delivers
+     * urgent datagrams ahead of routine ones, so emergency reports and removals
+     * do not wait behind queued routine updates for other units. An urgent
+     * datagram never overtakes a queued routine datagram with the same Geomessage
+     * ID, so each ID's Geomessages are always delivered in arrival order.
+     * @see MessageController#getMeanDeliveryLatencyNanos(Lane)
+     */
+    public enum Lane {
+        
+        /**
+         * Datagrams containing a Geomessage whose status911 is 1 or whose _action
+         * is "remove".
+         */
+        URGENT,
+        
+        /**
+         * All other datagrams.
+         */
+        ROUTINE
+        
+    }
+    
+    /**
+     * The lifecycle states of a MessageController. A controller starts out STOPPED,
+     * moves between STOPPED and RECEIVING with startReceiving() and stopReceiving(),
+     * and becomes CLOSED, permanently, when it is closed.
+     * @see MessageController#getState()
+     */
+    public enum State {
+        
+        /**
+         * Not receiving. The controller can still send messages.
+         */
+        STOPPED,
+        
+        /**
+         * Receiving messages and delivering them to listeners.
+         */
+        RECEIVING,
+        
+        /**
+         * Closed. The controller's sockets and threads have been released, and it
+         * can neither send nor receive messages.
+         */
+        CLOSED
+        
+    }
+    
+    /**
+     * The default maximum number of datagrams queued for each listener.
+     */
+    public static final int DEFAULT_LISTENER_QUEUE_CAPACITY = 10000;
+    
+    /**
+     * The default SO_RCVBUF size, in bytes, requested for inbound UDP channels.
+     */
+    public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    
+    /**
+     * The default time-to-live for outbound multicast datagrams, which keeps them
+     * on the local subnet.
+     */
+    public static final int DEFAULT_MULTICAST_TIME_TO_LIVE = 1;
+    
+    /**
+     * How long close() waits, in milliseconds, for queued datagrams to be sent and
+     * delivered.
+     */
+    public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 5000;
     
     private static final int MAX_MESSAGE_LENGTH = 6000;
+    private static final int MAX_IDLE_INBOUND_BUFFERS = 64;
+    //Beyond this many receive buffers held for RawDatagramListeners, datagrams are copied
+    private static final int MAX_HELD_INBOUND_BUFFERS = 256;
+    private static final int MAX_IDLE_OUTBOUND_BUFFERS = 64;
+    private static final int MAX_PARTIAL_MESSAGES = 64;
+    private static final int MAX_PARTIAL_MESSAGE_BYTES = 4 * 1024 * 1024;
+    private static final long FRAGMENT_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_REMEMBERED_DUPLICATES = 10000;
+    private static final int OUTBOUND_QUEUE_CAPACITY = 10000;
+    private static final String BROADCAST_ADDRESS = "255.255.255.255";
+    private static final int DEFAULT_DISPATCH_QUEUE_CAPACITY = 10000;
+    private static final int MAX_DELIVERY_BATCH_SIZE = 64;
+    private static final long RECEIVE_STOP_TIMEOUT_MILLIS = 1000;
+    private static final long CLOSE_POLL_MILLIS = 10;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private static final Logger logger = Logger.getLogger(MessageController.class.getName());
 
-    private final DatagramSocket outboundUdpSocket;
-    private final DatagramPacket outboundPacket;
-    private final DatagramPacket inboundPacket;  
-    private final Set<MessageControllerListener> listeners = new HashSet<MessageControllerListener>();
-    private final GeomessagesReader reader;
+    private final DatagramSender sender;
+    private final ByteBufferPool outboundBufferPool = new ByteBufferPool(MAX_MESSAGE_LENGTH, MAX_IDLE_OUTBOUND_BUFFERS);
+    //One spare byte shows whether a datagram was longer than MAX_MESSAGE_LENGTH
+    private final ByteBufferPool inboundBufferPool = new ByteBufferPool(MAX_MESSAGE_LENGTH + 1, MAX_IDLE_INBOUND_BUFFERS);
+    private final FragmentReassembler reassembler = new FragmentReassembler(
+            MAX_PARTIAL_MESSAGES, MAX_PARTIAL_MESSAGE_BYTES, FRAGMENT_TIMEOUT_MILLIS);
+    private final DatagramCompressor decompressor = new DatagramCompressor();
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter(MAX_REMEMBERED_DUPLICATES);
+    private final LatencyStats urgentDeliveryLatency = new LatencyStats();
+    private final LatencyStats routineDeliveryLatency = new LatencyStats();
+    private final CopyOnWriteArrayList<ListenerQueue> listenerQueues = new CopyOnWriteArrayList<ListenerQueue>();
+    private final AtomicInteger heldInboundBufferCount = new AtomicInteger(0);
+    private final Set<InetSocketAddress> additionalReceiveAddresses = new LinkedHashSet<InetSocketAddress>();
+    private final GeomessageParser parser = new GeomessageParser();
     private final Object inboundLock = new Object();
     
-    private Thread inboundThread = null;
-    private DatagramSocket inboundUdpSocket = null;
-    private int port;
+    private DatagramReceiver receiver = null;
+    //Written under inboundLock; read without it on the receive thread
+    private volatile DispatchStrategy dispatchStrategy = null;
+    private boolean ownsDispatchStrategy = false;
+    private boolean closed = false;
+    private int listenerQueueCapacity = DEFAULT_LISTENER_QUEUE_CAPACITY;
+    private DispatchStrategy.DropPolicy listenerQueueDropPolicy = DispatchStrategy.DropPolicy.DROP_OLDEST;
+    private long batchMaxDelayMillis = 0;
+    private int batchMaxCount = 0;
+    private int receiveBufferSize = DEFAULT_RECEIVE_BUFFER_SIZE;
+    private volatile int port;
+    private volatile boolean hasStringListener = false;
+    private volatile boolean hasRawListener = false;
+    //Only written by the receive thread; read by getMetrics()
+    private volatile long receivedDatagramCount = 0;
+    private volatile long receivedByteCount = 0;
+    private volatile long truncatedDatagramCount = 0;
+    private volatile long parsedDatagramCount = 0;
+    private volatile long parseFailureCount = 0;
+    private volatile long receivedGeomessageCount = 0;
+    //Guarded by inboundLock; run by close()
+    private final List<Runnable> closeActions = new ArrayList<Runnable>();
+    private boolean broadcastEnabled = true;
+    private InetAddress multicastGroup = null;
+    private NetworkInterface multicastInterface = null;
+    private int multicastTimeToLive = DEFAULT_MULTICAST_TIME_TO_LIVE;
+    private MembershipKey multicastMembership = null;
+    private final List<InetSocketAddress> unicastDestinations = new ArrayList<InetSocketAddress>();
 
     /**
      * Creates a MessageController for the given UDP port.
@@ -61,46 +229,32 @@ public class MessageController {
      */
     public MessageController(int messagingPort) {
         port = messagingPort;
-        DatagramSocket theSocket = null;
-        DatagramPacket thePacket = null;
-        try {
-            theSocket = new DatagramSocket();
-            thePacket = new DatagramPacket(new byte[0], 0, InetAddress.getByName("255.255.255.255"), messagingPort);
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, null, ex);
-        }
-        outboundUdpSocket = theSocket;
-        outboundPacket = thePacket;
-        
-        byte[] byteArray = new byte[MAX_MESSAGE_LENGTH];
-        inboundPacket = new DatagramPacket(byteArray, MAX_MESSAGE_LENGTH);
-        
-        GeomessagesReader theReader = null;
-        try {
-            theReader = new GeomessagesReader();
-        } catch (ParserConfigurationException ex) {
-            logger.log(Level.SEVERE, null, ex);
-        } catch (SAXException ex) {
-            logger.log(Level.SEVERE, null, ex);
-        }
-        reader = theReader;
+        sender = new DatagramSender(outboundBufferPool, MAX_MESSAGE_LENGTH, OUTBOUND_QUEUE_CAPACITY,
+                new InetSocketAddress[] { new InetSocketAddress(BROADCAST_ADDRESS, messagingPort) });
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        stopReceiving();
-        super.finalize();
-    }
-    
+
     /**
-     * Adds a listener to this controller.
+     * Adds a listener to this controller. Each listener has its own delivery queue,
+     * so it receives datagrams and Geomessages in arrival order, one call at a time,
+     * and a slow listener does not delay the others. The exception is that urgent
+     * datagrams skip ahead of queued routine datagrams for other Geomessage IDs.
+     * @see Lane
      * @param listener the listener to add. If this controller already has this listener,
      *                 this method has no effect.
      * @return true if this controller did not already have this listener.
      */
     public boolean addListener(MessageControllerListener listener) {
-        synchronized (listeners) {
-            return listeners.add(listener);
+        synchronized (listenerQueues) {
+            if (null != findListenerQueue(listener)) {
+                return false;
+            }
+            ListenerQueue queue = new ListenerQueue(listener, listenerQueueCapacity, listenerQueueDropPolicy,
+                    MAX_DELIVERY_BATCH_SIZE, urgentDeliveryLatency, routineDeliveryLatency);
+            queue.setBatchWindow(batchMaxDelayMillis, batchMaxCount);
+            listenerQueues.add(queue);
+            updateListenerKinds();
+            return true;
         }
     }
     
@@ -111,8 +265,118 @@ public class MessageController {
      * @return true if this controller had this listener.
      */
     public boolean removeListener(MessageControllerListener listener) {
-        synchronized (listeners) {
-            return listeners.remove(listener);
+        synchronized (listenerQueues) {
+            ListenerQueue queue = findListenerQueue(listener);
+            if (null == queue) {
+                return false;
+            }
+            queue.close();
+            listenerQueues.remove(queue);
+            updateListenerKinds();
+            return true;
+        }
+    }
+    
+    private void updateListenerKinds() {
+        boolean string = false;
+        boolean raw = false;
+        for (ListenerQueue queue : listenerQueues) {
+            if (queue.isRaw()) {
+                raw = true;
+            } else {
+                string = true;
+            }
+        }
+        hasStringListener = string;
+        hasRawListener = raw;
+    }
+    
+    private ListenerQueue findListenerQueue(MessageControllerListener listener) {
+        for (ListenerQueue queue : listenerQueues) {
+            if (queue.getListener().equals(listener)) {
+                return queue;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Sets the capacity of the delivery queue for each listener added after this
+     * method is called, and what to do when a listener's queue is full.
+     * @param capacity the maximum number of datagrams queued for each listener.
+     * @param dropPolicy what to do with a datagram when a listener's queue is full.
+     */
+    public void setListenerQueueCapacity(int capacity, DispatchStrategy.DropPolicy dropPolicy) {
+        synchronized (listenerQueues) {
+            listenerQueueCapacity = capacity;
+            listenerQueueDropPolicy = dropPolicy;
+        }
+    }
+    
+    /**
+     * Sets how Geomessages are batched for listeners that implement
+     * BatchMessageControllerListener. By default, each batch contains the Geomessages
+     * from the datagrams that were waiting for the listener, so a batch contains
+     * at least every Geomessage from one datagram. With a positive maxDelayMillis,
+     * Geomessages are collected from subsequent datagrams until maxDelayMillis has
+     * passed since the first Geomessage in the batch arrived. This setting applies
+     * to current and future listeners.
+     * @param maxDelayMillis the longest time a Geomessage waits for its batch to be
+     *                       delivered, or zero to deliver without waiting.
+     * @param maxCount the most Geomessages in a batch; a full batch is delivered
+     *                 immediately. Use zero for no limit.
+     * @see BatchMessageControllerListener
+     */
+    public void setBatchWindow(long maxDelayMillis, int maxCount) {
+        synchronized (listenerQueues) {
+            batchMaxDelayMillis = maxDelayMillis;
+            batchMaxCount = maxCount;
+            for (ListenerQueue queue : listenerQueues) {
+                queue.setBatchWindow(maxDelayMillis, maxCount);
+            }
+        }
+    }
+    
+    /**
+     * Returns the strategy this controller uses to deliver events to its listeners.
+     * Unless setDispatchStrategy(DispatchStrategy) has been called, this is a bounded
+     * pool with one worker thread per available processor, and at least two, that
+     * rejects drain tasks when its queue is full. A rejected listener keeps its
+     * queued events and is dispatched again shortly.
+     * @see DispatchStrategy#boundedPool(int, int, DispatchStrategy.DropPolicy)
+     * @return the strategy this controller uses to deliver events to its listeners.
+     */
+    public DispatchStrategy getDispatchStrategy() {
+        DispatchStrategy strategy = dispatchStrategy;
+        if (null != strategy) {
+            return strategy;
+        }
+        synchronized (inboundLock) {
+            if (null == dispatchStrategy) {
+                dispatchStrategy = DispatchStrategy.boundedPool(
+                        Math.max(2, Runtime.getRuntime().availableProcessors()),
+                        DEFAULT_DISPATCH_QUEUE_CAPACITY,
+                        DispatchStrategy.DropPolicy.DROP_NEWEST);
+                ownsDispatchStrategy = true;
+            }
+            return dispatchStrategy;
+        }
+    }
+    
+    /**
+     * Sets the strategy this controller uses to deliver events to its listeners.
+     * If the previous strategy was this controller's default strategy, it is shut
+     * down after its queued events are delivered; otherwise the caller remains
+     * responsible for shutting it down.
+     * @param dispatchStrategy the new strategy (not null).
+     */
+    public void setDispatchStrategy(DispatchStrategy dispatchStrategy) {
+        synchronized (inboundLock) {
+            if (ownsDispatchStrategy && null != this.dispatchStrategy) {
+                this.dispatchStrategy.shutdown();
+            }
+            this.dispatchStrategy = dispatchStrategy;
+            ownsDispatchStrategy = false;
         }
     }
     
@@ -121,103 +385,920 @@ public class MessageController {
      * @param doc the DOM document to be converted to a string and broadcast.
      */
     public void sendMessage(Document doc) throws TransformerException, IOException {
-        sendMessage(Utilities.documentToString(doc).getBytes());
+        sendMessage(Utilities.documentToString(doc).getBytes(UTF8));
     }
     
     /**
-     * Sends a UDP broadcast.
+     * Sends a UDP broadcast. The message is queued and sent by this controller's
+     * send thread, so this method does not wait for the socket.
      * @param bytes the message.
-     * @throws IOException if the message cannot be sent.
+     * @throws IOException if the message cannot be queued.
+     * @see #sendMessage(byte[], int, int)
      */
     public void sendMessage(byte[] bytes) throws IOException {
-        synchronized (outboundPacket) {
-            outboundPacket.setData(bytes);
-            outboundPacket.setLength(bytes.length);
-            outboundUdpSocket.send(outboundPacket);
+        sendMessage(bytes, 0, bytes.length);
+    }
+    
+    /**
+     * Sends part of a byte array as a UDP broadcast. The bytes are copied to the
+     * send queue before this method returns, so the caller may reuse the array
+     * afterwards, for example the buffer of a GeomessageWriter. If the send queue
+     * is full, this method waits for space.<br/>
+     * <br/>
+     * The message is written to the socket later, on this controller's send
+     * thread, so socket errors are not thrown by this method. They are logged and
+     * counted in MessageControllerMetrics.getSendErrorCount().
+     * @param bytes the array containing the message.
+     * @param offset the offset of the message in the array.
+     * @param length the length of the message.
+     * @throws IOException if the message cannot be queued because this controller
+     *                     has been closed, or if interrupted while waiting for
+     *                     space in the send queue.
+     * @see #getMetrics()
+     * @see com.esri.militaryapps.model.GeomessageWriter
+     */
+    public void sendMessage(byte[] bytes, int offset, int length) throws IOException {
+        sender.send(bytes, offset, length);
+    }
+    
+    /**
+     * Sends a single &lt;geomessage&gt; element, such as one written by
+     * GeomessageWriter without the enclosing &lt;geomessages&gt; tags. The element
+     * is wrapped in a &lt;geomessages&gt; element before it is sent. If the outbound
+     * linger time is positive, elements sent within the linger time of each other
+     * are packed into one datagram of up to 6000 bytes. The element is copied
+     * before this method returns, so the caller may reuse the array afterwards.
+     * As with sendMessage(byte[], int, int), socket errors are not thrown by this
+     * method but logged and counted.
+     * @param element the array containing the UTF-8 element.
+     * @param offset the offset of the element in the array.
+     * @param length the length of the element.
+     * @throws IOException if the element cannot be queued because this controller
+     *                     has been closed, or if interrupted while waiting for
+     *                     space in the send queue.
+     * @see #setOutboundLinger(long)
+     */
+    public void sendGeomessage(byte[] element, int offset, int length) throws IOException {
+        sender.sendGeomessage(element, offset, length);
+    }
+    
+    /**
+     * Sets how long a Geomessage sent with sendGeomessage may wait for more
+     * Geomessages to share its datagram. Packing reduces the number of datagrams,
+     * for example when a gateway relays many position reports, at the cost of up
+     * to this much added latency. The default is zero, which sends every
+     * Geomessage in its own datagram immediately.
+     * @param lingerMillis the linger time, in milliseconds.
+     * @throws IOException if this controller has been closed and the linger time
+     *                     is set to zero, so waiting Geomessages cannot be flushed.
+     * @see #sendGeomessage(byte[], int, int)
+     */
+    public void setOutboundLinger(long lingerMillis) throws IOException {
+        sender.setLinger(lingerMillis);
+    }
+    
+    /**
+     * @return how long a Geomessage sent with sendGeomessage may wait for more
+     *         Geomessages to share its datagram, in milliseconds.
+     */
+    public long getOutboundLinger() {
+        return sender.getLinger();
+    }
+    
+    /**
+     * Sends any Geomessages that are waiting for their outbound linger time to
+     * pass.
+     * @throws IOException if the flush cannot be queued because this controller
+     *                     has been closed.
+     */
+    public void flushGeomessages() throws IOException {
+        sender.flush();
+    }
+    
+    /**
+     * Sets the encoding of Geomessages sent with sendGeomessage. The default is
+     * XML. Use BINARY when every receiver is a MessageController and bandwidth is
+     * scarce. In BINARY form, control point coordinates keep seven decimal places
+     * and timestamps keep whole seconds. Datagrams sent with sendMessage are
+     * always sent as given.
+     * @param wireFormat the wire format.
+     * @see #sendGeomessage(byte[], int, int)
+     */
+    public void setWireFormat(WireFormat wireFormat) {
+        sender.setBinaryGeomessages(WireFormat.BINARY == wireFormat);
+    }
+    
+    /**
+     * @return the encoding of Geomessages sent with sendGeomessage.
+     */
+    public WireFormat getWireFormat() {
+        return sender.isBinaryGeomessages() ? WireFormat.BINARY : WireFormat.XML;
+    }
+    
+    /**
+     * Sets whether outbound datagrams are compressed with DEFLATE and a preset
+     * dictionary of common Geomessage text. With compression enabled, Geomessages
+     * sent with sendGeomessage are packed into larger batches that still usually
+     * fit in one datagram once compressed. Compression is disabled by default.
+     * Enable it only if every receiver is a MessageController that supports it.
+     * @param compressionEnabled true to compress outbound datagrams.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        sender.setCompressionEnabled(compressionEnabled);
+    }
+    
+    /**
+     * @return true if outbound datagrams are compressed.
+     */
+    public boolean isCompressionEnabled() {
+        return sender.isCompressionEnabled();
+    }
+    
+    /**
+     * Sets whether outbound datagrams longer than 6000 bytes are split into
+     * fragments, which MessageControllers reassemble when they receive them.
+     * Fragmentation is enabled by default. Disable it only if the receivers are
+     * not MessageControllers and can receive long datagrams.
+     * @param fragmentationEnabled true to split long datagrams into fragments.
+     */
+    public void setFragmentationEnabled(boolean fragmentationEnabled) {
+        sender.setFragmentationEnabled(fragmentationEnabled);
+    }
+    
+    /**
+     * @return true if outbound datagrams longer than 6000 bytes are split into
+     *         fragments.
+     */
+    public boolean isFragmentationEnabled() {
+        return sender.isFragmentationEnabled();
+    }
+    
+    /**
+     * @return the number of outbound datagrams and Geomessages waiting for the
+     *         send thread.
+     */
+    public int getOutboundQueueDepth() {
+        return sender.getQueueDepth();
+    }
+    
+    /**
+     * @return the number of datagrams this controller has sent.
+     */
+    public long getSentDatagramCount() {
+        return sender.getSentCount();
+    }
+    
+    /**
+     * @return the number of datagrams this controller's send thread could not send.
+     */
+    public long getSendErrorCount() {
+        return sender.getSendErrorCount();
+    }
+    
+    /**
+     * Returns the mean time between queuing an outbound datagram or Geomessage and
+     * handing it to the socket. For a Geomessage sent with sendGeomessage, this
+     * excludes the outbound linger time.
+     * @return the mean send latency, in nanoseconds, or zero if nothing has been sent.
+     */
+    public long getMeanSendLatencyNanos() {
+        return sender.getSendLatency().getMeanNanos();
+    }
+    
+    /**
+     * @return the longest time, in nanoseconds, between queuing an outbound datagram
+     *         or Geomessage and handing it to the socket.
+     * @see #getMeanSendLatencyNanos()
+     */
+    public long getMaxSendLatencyNanos() {
+        return sender.getSendLatency().getMaxNanos();
+    }
+    
+    /**
+     * @param lane the delivery lane.
+     * @return the number of inbound datagrams in the lane delivered to listeners.
+     *         A datagram delivered to several listeners counts once per listener.
+     */
+    public long getDeliveredDatagramCount(Lane lane) {
+        return getDeliveryLatency(lane).getCount();
+    }
+    
+    /**
+     * Returns the mean time between parsing an inbound datagram and delivering it
+     * to a listener, for the datagrams in one lane. Under load, the urgent lane's
+     * latency stays close to the time a listener takes to handle one drain, while
+     * the routine lane's latency grows with its queue.
+     * @param lane the delivery lane.
+     * @return the mean delivery latency, in nanoseconds, or zero if nothing has
+     *         been delivered in the lane.
+     */
+    public long getMeanDeliveryLatencyNanos(Lane lane) {
+        return getDeliveryLatency(lane).getMeanNanos();
+    }
+    
+    /**
+     * @param lane the delivery lane.
+     * @return the longest time, in nanoseconds, between parsing an inbound datagram
+     *         in the lane and delivering it to a listener.
+     * @see #getMeanDeliveryLatencyNanos(Lane)
+     */
+    public long getMaxDeliveryLatencyNanos(Lane lane) {
+        return getDeliveryLatency(lane).getMaxNanos();
+    }
+    
+    private LatencyStats getDeliveryLatency(Lane lane) {
+        return Lane.URGENT == lane ? urgentDeliveryLatency : routineDeliveryLatency;
+    }
+    
+    /**
+     * Returns a snapshot of this controller's counters, queue depths, and latency
+     * histograms. Taking a snapshot is cheap and does not block sending or
+     * receiving, so it can be polled, for example once a second.
+     * @return a new snapshot.
+     * @see MessageControllerMonitor#register(MessageController)
+     */
+    public MessageControllerMetrics getMetrics() {
+        MessageControllerMetrics metrics = new MessageControllerMetrics();
+        metrics.timestampMillis = System.currentTimeMillis();
+        metrics.receivedDatagramCount = receivedDatagramCount;
+        metrics.receivedByteCount = receivedByteCount;
+        metrics.truncatedDatagramCount = truncatedDatagramCount;
+        metrics.duplicateDatagramCount = duplicateFilter.getDuplicateDatagramCount();
+        metrics.duplicateGeomessageCount = duplicateFilter.getDuplicateGeomessageCount();
+        metrics.staleGeomessageCount = duplicateFilter.getStaleGeomessageCount();
+        metrics.reassembledPayloadCount = reassembler.getReassembledCount();
+        metrics.discardedPayloadCount = reassembler.getDiscardedCount();
+        metrics.partialPayloadCount = reassembler.getPartialCount();
+        metrics.parsedDatagramCount = parsedDatagramCount;
+        metrics.parseFailureCount = parseFailureCount;
+        metrics.receivedGeomessageCount = receivedGeomessageCount;
+        metrics.sentDatagramCount = sender.getSentCount();
+        metrics.sentByteCount = sender.getSentByteCount();
+        metrics.sendErrorCount = sender.getSendErrorCount();
+        metrics.outboundQueueDepth = sender.getQueueDepth();
+        for (ListenerQueue queue : listenerQueues) {
+            metrics.listenerQueueDepth += queue.getQueuedCount();
+            metrics.listenerDroppedCount += queue.getDroppedCount();
+        }
+        DispatchStrategy strategy = dispatchStrategy;
+        if (null != strategy) {
+            metrics.dispatchQueueDepth = strategy.getQueuedCount();
+            metrics.dispatchRejectedCount = strategy.getRejectedCount();
+        }
+        metrics.sendLatency = sender.getSendLatency().snapshot();
+        metrics.urgentDeliveryLatency = urgentDeliveryLatency.snapshot();
+        metrics.routineDeliveryLatency = routineDeliveryLatency.snapshot();
+        return metrics;
+    }
+    
+    /**
+     * Adds an action for close() to run after it has shut down this controller.
+     * @param action the action.
+     * @return false, adding nothing, if this controller is already closed.
+     */
+    boolean addCloseAction(Runnable action) {
+        synchronized (inboundLock) {
+            return !closed && closeActions.add(action);
+        }
+    }
+    
+    /**
+     * Removes an action added with addCloseAction.
+     * @param action the action.
+     */
+    void removeCloseAction(Runnable action) {
+        synchronized (inboundLock) {
+            closeActions.remove(action);
         }
     }
     
     /**
      * Tells this controller to bind a socket to the specified port and start
      * receiving messages, notifying this controller's listeners as appropriate.
+     * If this controller is already receiving messages, this method has no effect.
+     * @throws IllegalStateException if this controller has been closed.
      */
     public void startReceiving() {
         synchronized (inboundLock) {
-            inboundThread = new Thread() {
-
-                @Override
-                public void run() {
-                    try {
-                        inboundUdpSocket = new DatagramSocket(port);
-                        while (true) {
-                            try {
-                                inboundUdpSocket.receive(inboundPacket);
-                            } catch (SocketException se) {
-                                //This probably means the socket was closed and it's time to stop receiving.
-                                break;
-                            }
-                            final String msgString = new String(inboundPacket.getData(), inboundPacket.getOffset(), inboundPacket.getLength());
-                            synchronized (listeners) {
-                                for (final MessageControllerListener listener : listeners) {
-                                    new Thread() {
-
-                                        @Override
-                                        public void run() {
-                                            listener.datagramReceived(msgString);
-                                        }
-
-                                    }.start();
-                                }
-                            }
-                            try {
-                                List<Geomessage> messages = reader.parseMessages(msgString);
-                                for (final Geomessage message : messages) {
-                                    synchronized (listeners) {
-                                        for (final MessageControllerListener listener : listeners) {
-                                            new Thread() {
-
-                                                @Override
-                                                public void run() {
-                                                    listener.geomessageReceived(message);
-                                                }
+            if (closed) {
+                throw new IllegalStateException("The MessageController is closed");
+            }
+            if (null != receiver) {
+                if (receiver.isRunning()) {
+                    return;
+                }
+                //The receive thread failed; replace it
+                receiver.stop();
+                receiver = null;
+            }
+            try {
+                receiver = new DatagramReceiver(inboundBufferPool, new DatagramReceiver.Handler() {
 
-                                            }.start();                                    
-                                        }
-                                    }
-                                }
-                            } catch (SAXException ex) {
-                                logger.log(Level.FINE, "Couldn't get Geomessages from string: '" + msgString + "'", ex);
-                            } catch (IOException ex) {
-                                logger.log(Level.FINE, "Couldn't get Geomessages from string: '" + msgString + "'", ex);
-                            }
-                        }
-                    } catch (IOException ex) {
-                        logger.log(Level.SEVERE, null, ex);
+                    @Override
+                    public void datagramReceived(ByteBuffer datagram, SocketAddress source) {
+                        receiveDatagram(datagram, source);
                     }
-                }
 
-                @Override
-                public void interrupt() {
-                    synchronized (inboundLock) {
-                        inboundUdpSocket.close();
+                }, receiveBufferSize);
+                receiver.bind(new InetSocketAddress(port), null != multicastGroup);
+                for (InetSocketAddress address : additionalReceiveAddresses) {
+                    receiver.bind(address, isMulticast(address));
+                }
+                joinMulticastMembership();
+                receiver.start();
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, null, ex);
+                if (null != receiver) {
+                    receiver.stop();
+                    receiver = null;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Called on the receive thread for each datagram. Reassembles fragmented
+     * payloads, decompresses compressed payloads, and discards truncated and
+     * duplicate datagrams.
+     */
+    private void receiveDatagram(ByteBuffer datagram, SocketAddress source) {
+        receivedDatagramCount++;
+        receivedByteCount += datagram.remaining();
+        if (MAX_MESSAGE_LENGTH < datagram.remaining()) {
+            inboundBufferPool.release(datagram);
+            if (1 == ++truncatedDatagramCount) {
+                logger.log(Level.WARNING, "Discarded a datagram from {0} longer than {1} bytes; "
+                        + "the sender should fragment long datagrams", new Object[] { source, MAX_MESSAGE_LENGTH });
+            }
+            return;
+        }
+        if (duplicateFilter.isDuplicateDatagram(datagram, System.currentTimeMillis())) {
+            inboundBufferPool.release(datagram);
+            return;
+        }
+        if (DatagramFraming.TYPE_FRAGMENT == DatagramFraming.getFrameType(datagram)) {
+            byte[] payload;
+            try {
+                payload = reassembler.add(source, datagram);
+            } finally {
+                inboundBufferPool.release(datagram);
+            }
+            if (null != payload) {
+                handlePayload(ByteBuffer.wrap(payload));
+            }
+            return;
+        }
+        handlePayload(datagram);
+    }
+    
+    private void handlePayload(ByteBuffer payload) {
+        if (DatagramFraming.TYPE_COMPRESSED == DatagramFraming.getFrameType(payload)) {
+            byte[] decompressed;
+            try {
+                decompressed = decompressor.decompress(payload, MAX_PARTIAL_MESSAGE_BYTES);
+            } catch (IOException ex) {
+                parseFailureCount++;
+                logger.log(Level.FINE, "Couldn't decompress datagram", ex);
+                return;
+            } finally {
+                inboundBufferPool.release(payload);
+            }
+            payload = ByteBuffer.wrap(decompressed);
+        }
+        handleDatagram(payload);
+    }
+    
+    private void handleDatagram(ByteBuffer datagram) {
+        if (listenerQueues.isEmpty()) {
+            inboundBufferPool.release(datagram);
+            return;
+        }
+        String msgString = null;
+        List<Geomessage> parsedMessages = null;
+        boolean keepBuffer = false;
+        try {
+            //Decode from duplicates so that the datagram's position stays put for RawDatagramListeners
+            if (DatagramFraming.TYPE_BINARY == DatagramFraming.getFrameType(datagram)) {
+                ByteBuffer body = datagram.duplicate();
+                body.position(body.position() + 2);
+                try {
+                    parsedMessages = GeomessageBinaryCodec.decode(body);
+                } catch (IOException ex) {
+                    parseFailureCount++;
+                    logger.log(Level.FINE, "Couldn't decode binary Geomessages", ex);
+                    return;
+                }
+            } else {
+                //Parse straight from the receive buffer; the String is only for datagramReceived(String)
+                try {
+                    parsedMessages = parser.parse(datagram);
+                } catch (SAXException ex) {
+                    parseFailureCount++;
+                    logger.log(Level.FINE, "Couldn't get Geomessages from datagram", ex);
+                }
+                if (hasStringListener) {
+                    msgString = UTF8.decode(datagram.duplicate()).toString();
+                }
+            }
+            if (null != parsedMessages) {
+                parsedDatagramCount++;
+            }
+            if (null != parsedMessages && !parsedMessages.isEmpty() && duplicateFilter.isEnabled()) {
+                long now = System.currentTimeMillis();
+                Iterator<Geomessage> iterator = parsedMessages.iterator();
+                while (iterator.hasNext()) {
+                    if (duplicateFilter.isDuplicateOrStale(iterator.next(), now)) {
+                        iterator.remove();
                     }
-                    super.interrupt();
                 }
-                
-            };
-            inboundThread.start();
+                if (parsedMessages.isEmpty()) {
+                    //Every Geomessage was already received, so the datagram was too
+                    return;
+                }
+            }
+            Geomessage[] messages = null == parsedMessages
+                    ? new Geomessage[0] : parsedMessages.toArray(new Geomessage[parsedMessages.size()]);
+            receivedGeomessageCount += messages.length;
+
+            InboundDatagram inbound;
+            if (!hasRawListener) {
+                inbound = new InboundDatagram(msgString, messages);
+            } else if (!datagram.isDirect()) {
+                //A reassembled or decompressed payload on the heap; nothing to give back
+                inbound = new InboundDatagram(msgString, messages, datagram, null, null);
+            } else if (MAX_HELD_INBOUND_BUFFERS > heldInboundBufferCount.getAndIncrement()) {
+                //Lend the receive buffer to the listener queues until they have all released it
+                keepBuffer = true;
+                inbound = new InboundDatagram(msgString, messages, datagram, inboundBufferPool, heldInboundBufferCount);
+            } else {
+                //Too many receive buffers are held by slow listeners; copy instead
+                heldInboundBufferCount.decrementAndGet();
+                ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+                copy.put(datagram.duplicate()).flip();
+                inbound = new InboundDatagram(msgString, messages, copy, null, null);
+            }
+            DispatchStrategy strategy = getDispatchStrategy();
+            //Listeners may change their Geomessages, so each queue after the first
+            //gets its own clones, all made before any listener can see the originals
+            Object[] queues = listenerQueues.toArray();
+            InboundDatagram[] copies = new InboundDatagram[queues.length];
+            for (int i = 0; i < queues.length; i++) {
+                copies[i] = 0 == i ? inbound : inbound.copy();
+            }
+            for (int i = 0; i < queues.length; i++) {
+                ((ListenerQueue) queues[i]).offer(copies[i], strategy);
+            }
+            //Drop this method's reference; the buffer goes back to the pool once every queue is done
+            inbound.release();
+        } finally {
+            if (!keepBuffer) {
+                inboundBufferPool.release(datagram);
+            }
         }
     }
     
     /**
-     * Tells this controller to stop receiving messages, closing the socket in use.
+     * Tells this controller to stop receiving messages, closing the sockets in use.
+     * When this method returns, the receive thread has finished, unless it is
+     * blocked for more than a second; listeners and datagrams already queued for
+     * them are kept.
      */
     public void stopReceiving() {
-        if (null != inboundThread) {
-            inboundThread.interrupt();
+        DatagramReceiver stopped;
+        synchronized (inboundLock) {
+            stopped = receiver;
+            if (null != receiver) {
+                //Closing the channels leaves the multicast group
+                multicastMembership = null;
+                receiver.stop();
+                receiver = null;
+            }
+        }
+        if (null != stopped) {
+            //Wait outside the lock, which the receive thread takes to dispatch
+            try {
+                if (!stopped.awaitTermination(RECEIVE_STOP_TIMEOUT_MILLIS)) {
+                    logger.log(Level.WARNING, "The receive thread did not stop within {0} ms",
+                            RECEIVE_STOP_TIMEOUT_MILLIS);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Closes this controller, waiting up to DEFAULT_CLOSE_TIMEOUT_MILLIS for queued
+     * datagrams to be sent and delivered.
+     * @see #close(long, TimeUnit)
+     */
+    @Override
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Closes this controller. It stops receiving, sends the datagrams already
+     * queued for sending, and delivers the datagrams already queued for its
+     * listeners, waiting no longer than the timeout for the sending and delivery
+     * to finish. It then removes its listeners, shuts down its default dispatch
+     * strategy if it is using one, and unregisters the MBean that
+     * MessageControllerMonitor.register registered for it, if any. A closed controller
+     * cannot be restarted; sending on it throws IOException. If this controller is
+     * already closed, this method returns true immediately.
+     * @param timeout the maximum time to wait for queued datagrams.
+     * @param unit the unit of the timeout argument.
+     * @return true if every queued datagram was sent or delivered, or false if the
+     *         timeout elapsed first or the calling thread was interrupted.
+     */
+    public boolean close(long timeout, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (inboundLock) {
+            if (closed) {
+                return true;
+            }
+            closed = true;
+        }
+        stopReceiving();
+        sender.close();
+        boolean drained = true;
+        try {
+            drained = sender.awaitTermination(remainingMillis(deadlineNanos));
+            while (!listenerQueuesIdle()) {
+                if (0 >= remainingMillis(deadlineNanos)) {
+                    drained = false;
+                    break;
+                }
+                Thread.sleep(CLOSE_POLL_MILLIS);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        synchronized (listenerQueues) {
+            for (ListenerQueue queue : listenerQueues) {
+                queue.close();
+            }
+            listenerQueues.clear();
+            updateListenerKinds();
+        }
+        DispatchStrategy ownedStrategy = null;
+        List<Runnable> actions;
+        synchronized (inboundLock) {
+            if (ownsDispatchStrategy) {
+                ownedStrategy = dispatchStrategy;
+            }
+            actions = new ArrayList<Runnable>(closeActions);
+            closeActions.clear();
+        }
+        //Outside the lock, since an action may call back into this controller
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (RuntimeException re) {
+                logger.log(Level.SEVERE, "Close action failed", re);
+            }
+        }
+        if (null != ownedStrategy) {
+            ownedStrategy.shutdown();
+            try {
+                drained &= ownedStrategy.awaitTermination(remainingMillis(deadlineNanos), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                drained = false;
+            }
+        }
+        return drained;
+    }
+    
+    private static long remainingMillis(long deadlineNanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+    
+    private boolean listenerQueuesIdle() {
+        for (ListenerQueue queue : listenerQueues) {
+            if (!queue.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Returns this controller's lifecycle state.
+     * @return this controller's lifecycle state.
+     */
+    public State getState() {
+        synchronized (inboundLock) {
+            return closed ? State.CLOSED
+                    : null != receiver && receiver.isRunning() ? State.RECEIVING : State.STOPPED;
+        }
+    }
+    
+    /**
+     * Tells this controller to also receive messages on the specified address, in
+     * addition to this controller's UDP port. The same receive thread services
+     * all addresses. If this controller is currently receiving messages, it binds
+     * to the address immediately; otherwise it binds when startReceiving() is called.
+     * @param address the address, which can specify a port and/or a local interface.
+     * @throws IOException if this controller is receiving messages and cannot bind
+     *                     to the address.
+     */
+    public void addReceiveAddress(InetSocketAddress address) throws IOException {
+        synchronized (inboundLock) {
+            if (null != receiver) {
+                receiver.bind(address, isMulticast(address));
+            }
+            additionalReceiveAddresses.add(address);
+        }
+    }
+    
+    private static boolean isMulticast(InetSocketAddress address) {
+        return null != address.getAddress() && address.getAddress().isMulticastAddress();
+    }
+    
+    /**
+     * Tells this controller to stop receiving messages on an address that was added
+     * with addReceiveAddress(InetSocketAddress).
+     * @param address the address.
+     * @return true if the address had been added.
+     */
+    public boolean removeReceiveAddress(InetSocketAddress address) {
+        synchronized (inboundLock) {
+            boolean removed = additionalReceiveAddresses.remove(address);
+            if (removed && null != receiver) {
+                receiver.unbind(address);
+            }
+            return removed;
+        }
+    }
+    
+    /**
+     * Sets how long this controller remembers inbound datagrams and Geomessages in
+     * order to drop duplicates and out-of-date Geomessages, which broadcast relays
+     * and multiple network interfaces can cause. Within the window, a datagram with
+     * the same bytes as an earlier one is dropped before it is parsed, and a
+     * Geomessage is dropped if an earlier one with the same _id had the same
+     * datetimesubmitted and _action or a later datetimesubmitted. Geomessages
+     * without an _id or datetimesubmitted are never dropped. A datagram is only
+     * passed to datagramReceived if it has Geomessages left or had none to begin
+     * with. Suppression is disabled by default.
+     * @param windowMillis the window, in milliseconds, or zero to disable
+     *                     suppression.
+     */
+    public void setDuplicateSuppressionWindow(long windowMillis) {
+        duplicateFilter.setWindowMillis(windowMillis);
+    }
+    
+    /**
+     * @return how long this controller remembers inbound datagrams and Geomessages
+     *         to drop duplicates, in milliseconds, or zero if suppression is
+     *         disabled.
+     */
+    public long getDuplicateSuppressionWindow() {
+        return duplicateFilter.getWindowMillis();
+    }
+    
+    /**
+     * @return the number of inbound datagrams dropped because they repeated an
+     *         earlier datagram, plus the number of Geomessages dropped because
+     *         they repeated an earlier Geomessage.
+     */
+    public long getSuppressedDuplicateCount() {
+        return duplicateFilter.getDuplicateDatagramCount() + duplicateFilter.getDuplicateGeomessageCount();
+    }
+    
+    /**
+     * @return the number of inbound Geomessages dropped because a Geomessage with
+     *         the same _id and a later datetimesubmitted was received first.
+     */
+    public long getSuppressedStaleCount() {
+        return duplicateFilter.getStaleGeomessageCount();
+    }
+    
+    /**
+     * Sets whether this controller broadcasts outbound messages to 255.255.255.255.
+     * Broadcasting is enabled by default. Disable it when using only a multicast
+     * group and/or unicast destinations. This setting does not affect receiving.
+     * @param broadcastEnabled true to broadcast outbound messages.
+     */
+    public void setBroadcastEnabled(boolean broadcastEnabled) {
+        synchronized (inboundLock) {
+            this.broadcastEnabled = broadcastEnabled;
+            updateDestinations();
         }
     }
     
+    /**
+     * @return true if this controller broadcasts outbound messages.
+     */
+    public boolean isBroadcastEnabled() {
+        synchronized (inboundLock) {
+            return broadcastEnabled;
+        }
+    }
+    
+    /**
+     * Joins a multicast group. This controller sends outbound messages to the group
+     * on its port, and while it is receiving messages, it receives datagrams sent to
+     * the group on its port. A controller belongs to at most one group at a time;
+     * joining a group leaves the previous group.
+     * @param group the multicast group address, such as 239.255.0.1.
+     * @param networkInterface the interface on which to join the group and send to
+     *                         it, or null to choose an interface that is up and
+     *                         supports multicast.
+     * @throws IOException if this controller is receiving messages and cannot join
+     *                     the group, or if no suitable interface is found.
+     * @throws IllegalArgumentException if group is not a multicast address.
+     */
+    public void joinMulticastGroup(InetAddress group, NetworkInterface networkInterface) throws IOException {
+        if (!group.isMulticastAddress()) {
+            throw new IllegalArgumentException(group + " is not a multicast address");
+        }
+        if (null == networkInterface) {
+            networkInterface = findMulticastInterface();
+        }
+        synchronized (inboundLock) {
+            dropMulticastMembership();
+            multicastGroup = group;
+            multicastInterface = networkInterface;
+            sender.setMulticastOptions(multicastInterface, multicastTimeToLive);
+            updateDestinations();
+            joinMulticastMembership();
+        }
+    }
+    
+    /**
+     * Leaves the multicast group joined with joinMulticastGroup, if any, and stops
+     * sending outbound messages to it.
+     */
+    public void leaveMulticastGroup() {
+        synchronized (inboundLock) {
+            dropMulticastMembership();
+            multicastGroup = null;
+            multicastInterface = null;
+            updateDestinations();
+        }
+    }
+    
+    /**
+     * @return the multicast group this controller has joined, or null.
+     */
+    public InetAddress getMulticastGroup() {
+        synchronized (inboundLock) {
+            return multicastGroup;
+        }
+    }
+    
+    /**
+     * Sets the time-to-live of outbound multicast datagrams, i.e. how many routers
+     * they may cross. The default is DEFAULT_MULTICAST_TIME_TO_LIVE.
+     * @param timeToLive the time-to-live, from 0 to 255.
+     */
+    public void setMulticastTimeToLive(int timeToLive) {
+        if (0 > timeToLive || 255 < timeToLive) {
+            throw new IllegalArgumentException("Time-to-live must be from 0 to 255: " + timeToLive);
+        }
+        synchronized (inboundLock) {
+            multicastTimeToLive = timeToLive;
+            sender.setMulticastOptions(multicastInterface, multicastTimeToLive);
+        }
+    }
+    
+    /**
+     * @return the time-to-live of outbound multicast datagrams.
+     */
+    public int getMulticastTimeToLive() {
+        synchronized (inboundLock) {
+            return multicastTimeToLive;
+        }
+    }
+    
+    /**
+     * Adds a unicast destination. Every outbound message is sent to each unicast
+     * destination as well as to the broadcast address and multicast group, if
+     * enabled.
+     * @param destination the destination address and port.
+     * @return true if the destination was not already added.
+     */
+    public boolean addUnicastDestination(InetSocketAddress destination) {
+        synchronized (inboundLock) {
+            if (unicastDestinations.contains(destination)) {
+                return false;
+            }
+            unicastDestinations.add(destination);
+            updateDestinations();
+            return true;
+        }
+    }
+    
+    /**
+     * Removes a unicast destination added with addUnicastDestination.
+     * @param destination the destination address and port.
+     * @return true if the destination had been added.
+     */
+    public boolean removeUnicastDestination(InetSocketAddress destination) {
+        synchronized (inboundLock) {
+            boolean removed = unicastDestinations.remove(destination);
+            if (removed) {
+                updateDestinations();
+            }
+            return removed;
+        }
+    }
+    
+    /**
+     * @return a copy of this controller's unicast destinations.
+     */
+    public List<InetSocketAddress> getUnicastDestinations() {
+        synchronized (inboundLock) {
+            return new ArrayList<InetSocketAddress>(unicastDestinations);
+        }
+    }
+    
+    /**
+     * Gives the sender a new destination array. Must hold inboundLock.
+     */
+    private void updateDestinations() {
+        ArrayList<InetSocketAddress> destinations = new ArrayList<InetSocketAddress>();
+        if (broadcastEnabled) {
+            destinations.add(new InetSocketAddress(BROADCAST_ADDRESS, port));
+        }
+        if (null != multicastGroup) {
+            destinations.add(new InetSocketAddress(multicastGroup, port));
+        }
+        destinations.addAll(unicastDestinations);
+        sender.setDestinations(destinations.toArray(new InetSocketAddress[destinations.size()]));
+    }
+    
+    /**
+     * Joins the multicast group on the port's channel if this controller is
+     * receiving and has a group. Must hold inboundLock.
+     */
+    private void joinMulticastMembership() throws IOException {
+        if (null != receiver && null != multicastGroup && null == multicastMembership) {
+            multicastMembership = receiver.joinGroup(new InetSocketAddress(port), multicastGroup, multicastInterface);
+        }
+    }
+    
+    /**
+     * Leaves the multicast group on the port's channel, if joined. Must hold inboundLock.
+     */
+    private void dropMulticastMembership() {
+        if (null != multicastMembership) {
+            multicastMembership.drop();
+            multicastMembership = null;
+        }
+    }
+    
+    private static NetworkInterface findMulticastInterface() throws IOException {
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (null != interfaces && interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+            if (networkInterface.isUp() && networkInterface.supportsMulticast()) {
+                if (!networkInterface.isLoopback()) {
+                    return networkInterface;
+                } else if (null == loopback) {
+                    loopback = networkInterface;
+                }
+            }
+        }
+        if (null == loopback) {
+            throw new IOException("No network interface supports multicast");
+        }
+        return loopback;
+    }
+    
+    /**
+     * Returns true if this controller is currently receiving messages.
+     * @return true if this controller is currently receiving messages.
+     */
+    public boolean isReceiving() {
+        synchronized (inboundLock) {
+            return null != receiver && receiver.isRunning();
+        }
+    }
+    
+    /**
+     * Returns the SO_RCVBUF size requested for inbound UDP channels.
+     * @return the SO_RCVBUF size requested for inbound UDP channels.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+    
+    /**
+     * Sets the SO_RCVBUF size requested for inbound UDP channels. A larger buffer
+     * lets the operating system hold bursts of datagrams while the receive thread
+     * is busy. The new size applies the next time this controller starts receiving.
+     * @param receiveBufferSize the size in bytes, or a non-positive number to use
+     *                          the system default.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+    
     /**
      * Returns this controller's UDP port.
      * @return this controller's UDP port.
@@ -227,26 +1308,61 @@ public class MessageController {
     }
     
     /**
-     * Sets this controller's UDP port. If the controller is currently receiving
-     * messages and the new port is different, the controller releases the old port
-     * and binds to the new port.
-     * @param port 
+     * Sets this controller's UDP port, as rebind(int) does, but logs a failure
+     * instead of throwing it. If the controller is receiving messages and cannot
+     * bind to the new port, it keeps receiving on its old port and getPort() still
+     * returns the old port.
+     * @param port the new UDP port.
+     * @see #rebind(int)
      */
     public void setPort(int port) {
+        try {
+            rebind(port);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Couldn't change to port " + port + "; using port " + this.port, ex);
+        }
+    }
+    
+    /**
+     * Sets this controller's UDP port. If the controller is currently receiving
+     * messages and the new port is different, the controller binds to the new port
+     * on its running receive thread before releasing the old port, so no thread is
+     * restarted, listeners and their queued datagrams are kept, and receiving does
+     * not pause. It joins the multicast group on the new port if this controller
+     * has one. Additional receive addresses and unicast destinations are not
+     * affected.
+     * @param port the new UDP port.
+     * @throws IOException if this controller is receiving messages and cannot bind
+     *                     to the new port, in which case it keeps receiving on its
+     *                     old port and getPort() still returns the old port; or if
+     *                     the port was changed but the multicast group could not be
+     *                     joined on it.
+     * @see #setPort(int)
+     */
+    public void rebind(int port) throws IOException {
         synchronized (inboundLock) {
-            boolean changed = this.port != port;
-            this.port = port;
-            outboundPacket.setPort(port);
-            if (changed && null != inboundThread && inboundThread.isAlive()) {
-                new Thread() {
-
-                    @Override
-                    public void run() {
-                        stopReceiving();
-                        startReceiving();
-                    }
-
-                }.start();
+            int oldPort = this.port;
+            IOException joinFailure = null;
+            if (oldPort != port && null != receiver) {
+                //Throws, leaving everything as it was, if the new port cannot be bound
+                receiver.bind(new InetSocketAddress(port), null != multicastGroup);
+                InetSocketAddress oldAddress = new InetSocketAddress(oldPort);
+                dropMulticastMembership();
+                if (!additionalReceiveAddresses.contains(oldAddress)) {
+                    receiver.unbind(oldAddress);
+                }
+                this.port = port;
+                try {
+                    joinMulticastMembership();
+                } catch (IOException ex) {
+                    joinFailure = ex;
+                }
+            } else {
+                this.port = port;
+            }
+            updateDestinations();
+            if (null != joinFailure) {
+                throw joinFailure;
             }
         }
     }
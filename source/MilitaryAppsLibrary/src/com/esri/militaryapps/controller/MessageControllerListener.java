@@ -19,12 +19,17 @@ import com.esri.militaryapps.model.Geomessage;
 
 /**
  * Interface for classes that listen for MessageController events, such as receiving
- * new messages.
+ * new messages. To receive Geomessages in batches, implement
+ * BatchMessageControllerListener instead. To receive datagrams as raw bytes,
+ * implement RawDatagramListener.
+ * @see BatchMessageControllerListener
+ * @see RawDatagramListener
  */
 public interface MessageControllerListener {
     
     /**
      * Called when a Geomessage is received. One datagram contains zero or more Geomessages.
+     * Each listener receives its own copy of the Geomessage, which it may change.
      * @param geomessage the Geomessage received.
      */
     void geomessageReceived(Geomessage geomessage);
@@ -32,7 +37,9 @@ public interface MessageControllerListener {
     /**
      * Called when a datagram is received. Ideally the datagram contains Geomessages
      * in XML, but the datagram may contain any text, which may or may not be in XML
-     * and may or may not be meaningful.
+     * and may or may not be meaningful. This method is not called for datagrams
+     * of Geomessages in binary form; their Geomessages are still delivered. It is
+     * also not called for a RawDatagramListener, which receives the raw bytes instead.
      * @param contents the datagram contents.
      */
     void datagramReceived(String contents);
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+/**
+ * The JMX management interface of a MessageController, registered with
+ * MessageControllerMonitor.register(MessageController). Each attribute is read from a fresh
+ * MessageControllerMetrics snapshot; latencies are in nanoseconds, and the
+ * histogram attributes hold the counts of MessageControllerMetrics.Latency's
+ * power-of-two buckets.
+ * @see MessageControllerMonitor#register(MessageController)
+ * @see MessageControllerMetrics
+ */
+public interface MessageControllerMXBean {
+    
+    /**
+     * @return the UDP port through which the controller sends and receives.
+     */
+    int getPort();
+    
+    /**
+     * @return true if the controller is receiving messages.
+     */
+    boolean isReceiving();
+    
+    /**
+     * @return the number of datagrams received.
+     * @see MessageControllerMetrics#getReceivedDatagramCount()
+     */
+    long getReceivedDatagramCount();
+    
+    /**
+     * @return the number of bytes received.
+     * @see MessageControllerMetrics#getReceivedByteCount()
+     */
+    long getReceivedByteCount();
+    
+    /**
+     * @return the number of datagrams discarded as too long.
+     * @see MessageControllerMetrics#getTruncatedDatagramCount()
+     */
+    long getTruncatedDatagramCount();
+    
+    /**
+     * @return the number of duplicate datagrams and Geomessages dropped.
+     */
+    long getDuplicateCount();
+    
+    /**
+     * @return the number of out-of-date Geomessages dropped.
+     * @see MessageControllerMetrics#getStaleGeomessageCount()
+     */
+    long getStaleGeomessageCount();
+    
+    /**
+     * @return the number of datagrams parsed.
+     * @see MessageControllerMetrics#getParsedDatagramCount()
+     */
+    long getParsedDatagramCount();
+    
+    /**
+     * @return the number of datagrams that could not be parsed.
+     * @see MessageControllerMetrics#getParseFailureCount()
+     */
+    long getParseFailureCount();
+    
+    /**
+     * @return the number of Geomessages received.
+     * @see MessageControllerMetrics#getReceivedGeomessageCount()
+     */
+    long getReceivedGeomessageCount();
+    
+    /**
+     * @return the number of payloads reassembled from fragments.
+     * @see MessageControllerMetrics#getReassembledPayloadCount()
+     */
+    long getReassembledPayloadCount();
+    
+    /**
+     * @return the number of partly received payloads discarded.
+     * @see MessageControllerMetrics#getDiscardedPayloadCount()
+     */
+    long getDiscardedPayloadCount();
+    
+    /**
+     * @return the number of datagrams sent.
+     * @see MessageControllerMetrics#getSentDatagramCount()
+     */
+    long getSentDatagramCount();
+    
+    /**
+     * @return the number of bytes sent.
+     * @see MessageControllerMetrics#getSentByteCount()
+     */
+    long getSentByteCount();
+    
+    /**
+     * @return the number of datagrams that could not be sent.
+     * @see MessageControllerMetrics#getSendErrorCount()
+     */
+    long getSendErrorCount();
+    
+    /**
+     * @return the number of outbound datagrams and Geomessages waiting to be sent.
+     * @see MessageControllerMetrics#getOutboundQueueDepth()
+     */
+    int getOutboundQueueDepth();
+    
+    /**
+     * @return the number of inbound datagrams waiting in listener queues.
+     * @see MessageControllerMetrics#getListenerQueueDepth()
+     */
+    int getListenerQueueDepth();
+    
+    /**
+     * @return the number of inbound datagrams dropped by full listener queues.
+     * @see MessageControllerMetrics#getListenerDroppedCount()
+     */
+    long getListenerDroppedCount();
+    
+    /**
+     * @return the mean send latency.
+     */
+    long getMeanSendLatencyNanos();
+    
+    /**
+     * @return the 99th percentile send latency, to within a factor of two.
+     */
+    long getP99SendLatencyNanos();
+    
+    /**
+     * @return the longest send latency.
+     */
+    long getMaxSendLatencyNanos();
+    
+    /**
+     * @return the mean delivery latency of urgent datagrams.
+     */
+    long getMeanUrgentDeliveryLatencyNanos();
+    
+    /**
+     * @return the 99th percentile delivery latency of urgent datagrams, to within
+     *         a factor of two.
+     */
+    long getP99UrgentDeliveryLatencyNanos();
+    
+    /**
+     * @return the mean delivery latency of routine datagrams.
+     */
+    long getMeanRoutineDeliveryLatencyNanos();
+    
+    /**
+     * @return the 99th percentile delivery latency of routine datagrams, to within
+     *         a factor of two.
+     */
+    long getP99RoutineDeliveryLatencyNanos();
+    
+    /**
+     * @return the send latency histogram.
+     */
+    long[] getSendLatencyHistogram();
+    
+    /**
+     * @return the delivery latency histogram of urgent datagrams.
+     */
+    long[] getUrgentDeliveryLatencyHistogram();
+    
+    /**
+     * @return the delivery latency histogram of routine datagrams.
+     */
+    long[] getRoutineDeliveryLatencyHistogram();
+    
+}
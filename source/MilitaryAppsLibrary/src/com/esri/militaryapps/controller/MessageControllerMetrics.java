@@ -0,0 +1,374 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+/**
+ * A point-in-time snapshot of a MessageController's counters, queue depths, and
+ * latency histograms, for monitoring UDP health. Counters are cumulative since
+ * the controller was created; take two snapshots and subtract to get rates.
+ * Instances are immutable once returned by MessageController.getMetrics().
+ * @see MessageController#getMetrics()
+ * @see MessageControllerMXBean
+ */
+public class MessageControllerMetrics {
+    
+    /**
+     * A snapshot of latency samples: their count, total, maximum, and a histogram
+     * with one bucket per power of two nanoseconds. Bucket 0 counts samples of
+     * zero nanoseconds, and bucket i counts samples from 2^(i-1) to 2^i - 1
+     * nanoseconds, so percentiles are accurate to within a factor of two.
+     */
+    public static class Latency {
+        
+        /**
+         * The number of histogram buckets.
+         */
+        public static final int BUCKET_COUNT = 64;
+        
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] bucketCounts;
+
+        Latency(long count, long totalNanos, long maxNanos, long[] bucketCounts) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.bucketCounts = bucketCounts;
+        }
+        
+        /**
+         * Returns the histogram bucket for a latency.
+         * @param latencyNanos the latency, in nanoseconds, not negative.
+         * @return the bucket index, from 0 to BUCKET_COUNT - 1.
+         */
+        public static int getBucket(long latencyNanos) {
+            return 64 - Long.numberOfLeadingZeros(latencyNanos);
+        }
+        
+        /**
+         * @param bucket the bucket index.
+         * @return the largest latency, in nanoseconds, counted in the bucket.
+         */
+        public static long getBucketUpperBoundNanos(int bucket) {
+            return BUCKET_COUNT - 1 <= bucket ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+        
+        /**
+         * @return the number of samples.
+         */
+        public long getCount() {
+            return count;
+        }
+        
+        /**
+         * @return the sum of the samples, in nanoseconds.
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+        
+        /**
+         * @return the mean of the samples, in nanoseconds, or zero if there are none.
+         */
+        public long getMeanNanos() {
+            return 0 == count ? 0 : totalNanos / count;
+        }
+        
+        /**
+         * @return the largest sample, in nanoseconds.
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+        
+        /**
+         * @return a copy of the histogram's bucket counts.
+         */
+        public long[] getBucketCounts() {
+            return bucketCounts.clone();
+        }
+        
+        /**
+         * Estimates a percentile from the histogram.
+         * @param percentile the percentile, from 0 to 100.
+         * @return the upper bound of the bucket that holds the percentile, no greater
+         *         than the largest sample, in nanoseconds, or zero if there are no
+         *         samples.
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            for (long bucketCount : bucketCounts) {
+                total += bucketCount;
+            }
+            if (0 == total) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+            long seen = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                seen += bucketCounts[i];
+                if (seen >= rank) {
+                    return Math.min(maxNanos, getBucketUpperBoundNanos(i));
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + getMeanNanos() + "ns p99=" + getPercentileNanos(99)
+                    + "ns max=" + maxNanos + "ns";
+        }
+        
+    }
+    
+    //Set by MessageController.getMetrics() before the snapshot is returned
+    long timestampMillis;
+    long receivedDatagramCount;
+    long receivedByteCount;
+    long truncatedDatagramCount;
+    long duplicateDatagramCount;
+    long duplicateGeomessageCount;
+    long staleGeomessageCount;
+    long reassembledPayloadCount;
+    long discardedPayloadCount;
+    int partialPayloadCount;
+    long parsedDatagramCount;
+    long parseFailureCount;
+    long receivedGeomessageCount;
+    long sentDatagramCount;
+    long sentByteCount;
+    long sendErrorCount;
+    int outboundQueueDepth;
+    int listenerQueueDepth;
+    long listenerDroppedCount;
+    int dispatchQueueDepth;
+    long dispatchRejectedCount;
+    Latency sendLatency;
+    Latency urgentDeliveryLatency;
+    Latency routineDeliveryLatency;
+    
+    MessageControllerMetrics() {
+    }
+
+    /**
+     * @return when this snapshot was taken, in System.currentTimeMillis() terms.
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * @return the number of datagrams received, including fragments, duplicates,
+     *         and truncated datagrams.
+     */
+    public long getReceivedDatagramCount() {
+        return receivedDatagramCount;
+    }
+
+    /**
+     * @return the number of bytes received in datagrams, as read from the socket.
+     */
+    public long getReceivedByteCount() {
+        return receivedByteCount;
+    }
+
+    /**
+     * @return the number of datagrams discarded because they were longer than the
+     *         maximum datagram length.
+     */
+    public long getTruncatedDatagramCount() {
+        return truncatedDatagramCount;
+    }
+
+    /**
+     * @return the number of datagrams dropped because they repeated an earlier
+     *         datagram.
+     * @see MessageController#setDuplicateSuppressionWindow(long)
+     */
+    public long getDuplicateDatagramCount() {
+        return duplicateDatagramCount;
+    }
+
+    /**
+     * @return the number of Geomessages dropped because they repeated an earlier
+     *         Geomessage.
+     */
+    public long getDuplicateGeomessageCount() {
+        return duplicateGeomessageCount;
+    }
+
+    /**
+     * @return the number of Geomessages dropped because they were out of date.
+     */
+    public long getStaleGeomessageCount() {
+        return staleGeomessageCount;
+    }
+
+    /**
+     * @return the number of payloads reassembled from fragments.
+     */
+    public long getReassembledPayloadCount() {
+        return reassembledPayloadCount;
+    }
+
+    /**
+     * @return the number of partly received payloads discarded because their
+     *         fragments stopped arriving or did not fit in the buffer.
+     */
+    public long getDiscardedPayloadCount() {
+        return discardedPayloadCount;
+    }
+
+    /**
+     * @return the number of payloads partly received when the snapshot was taken.
+     */
+    public int getPartialPayloadCount() {
+        return partialPayloadCount;
+    }
+
+    /**
+     * @return the number of datagrams successfully parsed as XML or decoded as
+     *         binary Geomessages, whether or not they contained any Geomessages.
+     */
+    public long getParsedDatagramCount() {
+        return parsedDatagramCount;
+    }
+
+    /**
+     * @return the number of datagrams that could not be parsed, decoded, or
+     *         decompressed. Plain text datagrams count here too.
+     */
+    public long getParseFailureCount() {
+        return parseFailureCount;
+    }
+
+    /**
+     * @return the number of Geomessages parsed from inbound datagrams, after
+     *         duplicate suppression.
+     */
+    public long getReceivedGeomessageCount() {
+        return receivedGeomessageCount;
+    }
+
+    /**
+     * @return the number of datagrams written to the socket. A datagram sent to
+     *         several destinations counts once per destination.
+     */
+    public long getSentDatagramCount() {
+        return sentDatagramCount;
+    }
+
+    /**
+     * @return the number of bytes written to the socket, counted once per
+     *         destination.
+     */
+    public long getSentByteCount() {
+        return sentByteCount;
+    }
+
+    /**
+     * @return the number of datagrams that could not be written to the socket.
+     */
+    public long getSendErrorCount() {
+        return sendErrorCount;
+    }
+
+    /**
+     * @return the number of outbound datagrams and Geomessages waiting for the
+     *         send thread.
+     */
+    public int getOutboundQueueDepth() {
+        return outboundQueueDepth;
+    }
+
+    /**
+     * @return the number of inbound datagrams waiting in all listener queues.
+     */
+    public int getListenerQueueDepth() {
+        return listenerQueueDepth;
+    }
+
+    /**
+     * @return the number of inbound datagrams dropped by the current listener
+     *         queues because they were full.
+     */
+    public long getListenerDroppedCount() {
+        return listenerDroppedCount;
+    }
+
+    /**
+     * @return the number of listener drain tasks waiting for a dispatch thread.
+     */
+    public int getDispatchQueueDepth() {
+        return dispatchQueueDepth;
+    }
+
+    /**
+     * @return the number of listener drain tasks the dispatch strategy rejected.
+     *         A rejected task is dispatched again shortly, so no events are lost.
+     */
+    public long getDispatchRejectedCount() {
+        return dispatchRejectedCount;
+    }
+
+    /**
+     * @return the time between queuing outbound datagrams and Geomessages and
+     *         handing them to the socket.
+     */
+    public Latency getSendLatency() {
+        return sendLatency;
+    }
+
+    /**
+     * @return the time between parsing urgent inbound datagrams and delivering
+     *         them to listeners.
+     * @see MessageController.Lane#URGENT
+     */
+    public Latency getUrgentDeliveryLatency() {
+        return urgentDeliveryLatency;
+    }
+
+    /**
+     * @return the time between parsing routine inbound datagrams and delivering
+     *         them to listeners.
+     * @see MessageController.Lane#ROUTINE
+     */
+    public Latency getRoutineDeliveryLatency() {
+        return routineDeliveryLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "received=" + receivedDatagramCount + " (" + receivedByteCount + " bytes)"
+                + " parsed=" + parsedDatagramCount + " parseFailures=" + parseFailureCount
+                + " geomessages=" + receivedGeomessageCount
+                + " truncated=" + truncatedDatagramCount
+                + " duplicates=" + (duplicateDatagramCount + duplicateGeomessageCount)
+                + " stale=" + staleGeomessageCount
+                + " reassembled=" + reassembledPayloadCount + " discardedPartial=" + discardedPayloadCount
+                + " sent=" + sentDatagramCount + " (" + sentByteCount + " bytes)"
+                + " sendErrors=" + sendErrorCount
+                + " outboundQueue=" + outboundQueueDepth
+                + " listenerQueue=" + listenerQueueDepth + " listenerDropped=" + listenerDroppedCount
+                + " dispatchQueue=" + dispatchQueueDepth + " dispatchRejected=" + dispatchRejectedCount
+                + " sendLatency[" + sendLatency + "]"
+                + " urgentLatency[" + urgentDeliveryLatency + "]"
+                + " routineLatency[" + routineDeliveryLatency + "]";
+    }
+    
+}
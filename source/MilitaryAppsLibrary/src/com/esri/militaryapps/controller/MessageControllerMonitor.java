@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.lang.management.ManagementFactory;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Publishes a MessageController's metrics over JMX, as a MessageControllerMXBean
+ * registered with the platform MBean server, so that JMX clients such as JConsole
+ * can watch them. JMX is kept out of MessageController itself because Android has
+ * no java.lang.management or javax.management; on Android, poll
+ * MessageController.getMetrics() instead and never load this class.
+ * @see MessageControllerMXBean
+ */
+public final class MessageControllerMonitor implements MessageControllerMXBean {
+    
+    private static final Logger logger = Logger.getLogger(MessageControllerMonitor.class.getName());
+    
+    private static final class Registration {
+        
+        final ObjectName name;
+        final Runnable closeAction;
+
+        Registration(ObjectName name, Runnable closeAction) {
+            this.name = name;
+            this.closeAction = closeAction;
+        }
+        
+    }
+    
+    //Guarded by itself
+    private static final Map<MessageController, Registration> registrations
+            = new IdentityHashMap<MessageController, Registration>();
+    
+    private final MessageController controller;
+
+    private MessageControllerMonitor(MessageController controller) {
+        this.controller = controller;
+    }
+    
+    /**
+     * Registers a MessageControllerMXBean for the specified controller with the
+     * platform MBean server. Closing the controller unregisters it. If the
+     * controller is already registered, this method has no effect.
+     * @param controller the controller.
+     * @return the MBean's name, in the com.esri.militaryapps domain.
+     * @throws JMException if the controller is closed or the MBean cannot be
+     *                     registered.
+     */
+    public static ObjectName register(final MessageController controller) throws JMException {
+        synchronized (registrations) {
+            Registration registration = registrations.get(controller);
+            if (null != registration) {
+                return registration.name;
+            }
+            ObjectName name = new ObjectName("com.esri.militaryapps:type=MessageController,port="
+                    + controller.getPort() + ",id=" + Integer.toHexString(System.identityHashCode(controller)));
+            Runnable closeAction = new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        unregister(controller);
+                    } catch (JMException ex) {
+                        logger.log(Level.FINE, "Couldn't unregister MBean", ex);
+                    }
+                }
+
+            };
+            if (!controller.addCloseAction(closeAction)) {
+                throw new JMException("The MessageController is closed");
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MessageControllerMonitor(controller), name);
+            } catch (JMException ex) {
+                controller.removeCloseAction(closeAction);
+                throw ex;
+            }
+            registrations.put(controller, new Registration(name, closeAction));
+            return name;
+        }
+    }
+    
+    /**
+     * Unregisters the specified controller's MessageControllerMXBean, if it is
+     * registered.
+     * @param controller the controller.
+     * @throws JMException if the MBean cannot be unregistered.
+     */
+    public static void unregister(MessageController controller) throws JMException {
+        Registration registration;
+        synchronized (registrations) {
+            registration = registrations.remove(controller);
+            if (null == registration) {
+                return;
+            }
+            controller.removeCloseAction(registration.closeAction);
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registration.name);
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return controller.getPort();
+    }
+
+    @Override
+    public boolean isReceiving() {
+        return controller.isReceiving();
+    }
+
+    @Override
+    public long getReceivedDatagramCount() {
+        return controller.getMetrics().getReceivedDatagramCount();
+    }
+
+    @Override
+    public long getReceivedByteCount() {
+        return controller.getMetrics().getReceivedByteCount();
+    }
+
+    @Override
+    public long getTruncatedDatagramCount() {
+        return controller.getMetrics().getTruncatedDatagramCount();
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        MessageControllerMetrics metrics = controller.getMetrics();
+        return metrics.getDuplicateDatagramCount() + metrics.getDuplicateGeomessageCount();
+    }
+
+    @Override
+    public long getStaleGeomessageCount() {
+        return controller.getMetrics().getStaleGeomessageCount();
+    }
+
+    @Override
+    public long getParsedDatagramCount() {
+        return controller.getMetrics().getParsedDatagramCount();
+    }
+
+    @Override
+    public long getParseFailureCount() {
+        return controller.getMetrics().getParseFailureCount();
+    }
+
+    @Override
+    public long getReceivedGeomessageCount() {
+        return controller.getMetrics().getReceivedGeomessageCount();
+    }
+
+    @Override
+    public long getReassembledPayloadCount() {
+        return controller.getMetrics().getReassembledPayloadCount();
+    }
+
+    @Override
+    public long getDiscardedPayloadCount() {
+        return controller.getMetrics().getDiscardedPayloadCount();
+    }
+
+    @Override
+    public long getSentDatagramCount() {
+        return controller.getMetrics().getSentDatagramCount();
+    }
+
+    @Override
+    public long getSentByteCount() {
+        return controller.getMetrics().getSentByteCount();
+    }
+
+    @Override
+    public long getSendErrorCount() {
+        return controller.getMetrics().getSendErrorCount();
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return controller.getMetrics().getOutboundQueueDepth();
+    }
+
+    @Override
+    public int getListenerQueueDepth() {
+        return controller.getMetrics().getListenerQueueDepth();
+    }
+
+    @Override
+    public long getListenerDroppedCount() {
+        return controller.getMetrics().getListenerDroppedCount();
+    }
+
+    @Override
+    public long getMeanSendLatencyNanos() {
+        return controller.getMetrics().getSendLatency().getMeanNanos();
+    }
+
+    @Override
+    public long getP99SendLatencyNanos() {
+        return controller.getMetrics().getSendLatency().getPercentileNanos(99);
+    }
+
+    @Override
+    public long getMaxSendLatencyNanos() {
+        return controller.getMetrics().getSendLatency().getMaxNanos();
+    }
+
+    @Override
+    public long getMeanUrgentDeliveryLatencyNanos() {
+        return controller.getMetrics().getUrgentDeliveryLatency().getMeanNanos();
+    }
+
+    @Override
+    public long getP99UrgentDeliveryLatencyNanos() {
+        return controller.getMetrics().getUrgentDeliveryLatency().getPercentileNanos(99);
+    }
+
+    @Override
+    public long getMeanRoutineDeliveryLatencyNanos() {
+        return controller.getMetrics().getRoutineDeliveryLatency().getMeanNanos();
+    }
+
+    @Override
+    public long getP99RoutineDeliveryLatencyNanos() {
+        return controller.getMetrics().getRoutineDeliveryLatency().getPercentileNanos(99);
+    }
+
+    @Override
+    public long[] getSendLatencyHistogram() {
+        return controller.getMetrics().getSendLatency().getBucketCounts();
+    }
+
+    @Override
+    public long[] getUrgentDeliveryLatencyHistogram() {
+        return controller.getMetrics().getUrgentDeliveryLatency().getBucketCounts();
+    }
+
+    @Override
+    public long[] getRoutineDeliveryLatencyHistogram() {
+        return controller.getMetrics().getRoutineDeliveryLatency().getBucketCounts();
+    }
+    
+}
@@ -15,18 +15,16 @@
  ******************************************************************************/
 package com.esri.militaryapps.controller;
 
-import com.esri.militaryapps.model.DomNodeAndDocument;
 import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageTemplate;
+import com.esri.militaryapps.model.GeomessageWriter;
 import com.esri.militaryapps.model.Location;
 import com.esri.militaryapps.model.LocationProvider;
-import com.esri.militaryapps.util.Utilities;
-import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 
 /**
  * A controller that broadcasts position reports including current location.
@@ -49,6 +47,11 @@ public class PositionReportController implements LocationListener {
     private final MessageController messageController;
     private final Object lastLocationLock = new Object();
     private final Timer periodTimer = new Timer(true);
+    //Guarded by lastLocationLock
+    private final GeomessageWriter writer = new GeomessageWriter();
+    //Guarded by lastLocationLock. Setters change a field and clear the template
+    //under that lock, so a report being built cannot store a stale template.
+    private GeomessageTemplate template = null;
 
     private boolean enabled = false;
     private int period = DEFAULT_PERIOD;
@@ -119,31 +122,18 @@ public class PositionReportController implements LocationListener {
             synchronized (lastLocationLock) {
                 if (null != lastLocation) {
                     try {
-                        DomNodeAndDocument nodeAndDocument = Utilities.createGeomessageDocument();
-                        Document doc = nodeAndDocument.getDocument();
-                        Node geomessageElement = nodeAndDocument.getNode();
+                        if (null == template) {
+                            template = createTemplate();
+                        }
+                        writer.reset().startGeomessage(template)
+                                .writeControlPoint(lastLocation.getLongitude(), lastLocation.getLatitude())
+                                .writeDateElement("datetimesubmitted", System.currentTimeMillis())
+                                .writeDateElement("datetimevalid", lastLocation.getTimestamp().getTimeInMillis())
+                                .writeElement("direction", Math.round(lastLocation.getHeading()))
+                                .writeElement("status911", status911 ? "1" : "0")
+                                .endGeomessage();
 
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.TYPE_FIELD_NAME, REPORT_TYPE);
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.ID_FIELD_NAME, uniqueId);
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.SIC_FIELD_NAME, symbolIdCode);
-                        Utilities.addTextElement(doc, geomessageElement, "type", vehicleType);
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.WKID_FIELD_NAME, WKID_WGS1984);
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.CONTROL_POINTS_FIELD_NAME, lastLocation.getLongitude() + "," + lastLocation.getLatitude());
-                        Utilities.addTextElement(doc, geomessageElement,
-                                Geomessage.ACTION_FIELD_NAME, "UPDATE");
-                        Utilities.addTextElement(doc, geomessageElement, "uniquedesignation", username);
-                        String dateString = Utilities.DATE_FORMAT_GEOMESSAGE.format(new Date());
-                        Utilities.addTextElement(doc, geomessageElement, "datetimesubmitted", dateString);
-                        Utilities.addTextElement(doc, geomessageElement, "datetimevalid", Utilities.DATE_FORMAT_GEOMESSAGE.format(lastLocation.getTimestamp().getTime()));
-                        Utilities.addTextElement(doc, geomessageElement, "direction", Long.toString(Math.round(lastLocation.getHeading())));
-                        Utilities.addTextElement(doc, geomessageElement, "status911", status911 ? "1" : "0");
-
-                        messageController.sendMessage(doc);
+                        messageController.sendGeomessage(writer.getBuffer(), 0, writer.size());
                     } catch (Throwable t) {
                         logger.log(Level.SEVERE, "Could not send position report", t);
                     }
@@ -152,6 +142,23 @@ public class PositionReportController implements LocationListener {
         }
     }
     
+    /**
+     * Serializes the elements that are the same in every position report until
+     * one of the properties they contain changes. Call while holding
+     * lastLocationLock.
+     */
+    private GeomessageTemplate createTemplate() {
+        LinkedHashMap<String, String> staticElements = new LinkedHashMap<String, String>();
+        staticElements.put(Geomessage.TYPE_FIELD_NAME, REPORT_TYPE);
+        staticElements.put(Geomessage.ID_FIELD_NAME, uniqueId);
+        staticElements.put(Geomessage.SIC_FIELD_NAME, symbolIdCode);
+        staticElements.put("type", vehicleType);
+        staticElements.put(Geomessage.WKID_FIELD_NAME, WKID_WGS1984);
+        staticElements.put(Geomessage.ACTION_FIELD_NAME, "UPDATE");
+        staticElements.put("uniquedesignation", username);
+        return new GeomessageTemplate(staticElements);
+    }
+    
     /**
      * Sets whether this controller should send position reports or not. If currently
      * disabled, enabling the controller immediately starts sending position reports
@@ -210,7 +217,10 @@ public class PositionReportController implements LocationListener {
      *                 to be human-readable and unique.
      */
     public void setUsername(String username) {
-        this.username = username;
+        synchronized (lastLocationLock) {
+            this.username = username;
+            template = null;
+        }
     }
 
     /**
@@ -224,7 +234,10 @@ public class PositionReportController implements LocationListener {
      * @param vehicleType the vehicle type used in position reports.
      */
     public void setVehicleType(String vehicleType) {
-        this.vehicleType = vehicleType;
+        synchronized (lastLocationLock) {
+            this.vehicleType = vehicleType;
+            template = null;
+        }
     }
 
     /**
@@ -242,7 +255,10 @@ public class PositionReportController implements LocationListener {
      *                 ID for a vehicle that does not have one.
      */
     public void setUniqueId(String uniqueId) {
-        this.uniqueId = uniqueId;
+        synchronized (lastLocationLock) {
+            this.uniqueId = uniqueId;
+            template = null;
+        }
     }
     
     /**
@@ -264,7 +280,10 @@ public class PositionReportController implements LocationListener {
      * @param symbolIdCode the symbol ID code (SIC or SIDC) for this controller's position reports.
      */
     public void setSymbolIdCode(String symbolIdCode) {
-        this.symbolIdCode = symbolIdCode;
+        synchronized (lastLocationLock) {
+            this.symbolIdCode = symbolIdCode;
+            template = null;
+        }
     }
 
     /**
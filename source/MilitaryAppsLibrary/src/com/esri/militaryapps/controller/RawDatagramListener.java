@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A MessageControllerListener that receives the raw bytes of each datagram instead
+ * of a String. When a listener implements this interface, MessageController calls
+ * datagramReceived(ByteBuffer) instead of datagramReceived(String), and if every
+ * listener implements this interface, MessageController does not decode datagrams
+ * into Strings at all. Geomessages are delivered as usual.
+ */
+public interface RawDatagramListener extends MessageControllerListener {
+
+    /**
+     * Called when a datagram is received, after any fragments have been reassembled
+     * and any compression has been undone. The buffer is a read-only view of the
+     * receive buffer, positioned at the start of the datagram with its limit at
+     * the end. It is valid only until this method returns; copy the bytes to keep
+     * them. Unlike datagramReceived(String), this method is also called for
+     * datagrams of Geomessages in binary form.
+     * @param contents a read-only view of the datagram contents.
+     */
+    void datagramReceived(ByteBuffer contents);
+
+}
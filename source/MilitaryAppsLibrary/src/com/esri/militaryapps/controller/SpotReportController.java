@@ -17,17 +17,13 @@
  */
 package com.esri.militaryapps.controller;
 
-import com.esri.militaryapps.model.DomNodeAndDocument;
 import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageWriter;
 import com.esri.militaryapps.model.SpotReport;
-import com.esri.militaryapps.util.Utilities;
 import java.io.IOException;
-import java.util.Date;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 
 /**
  * A controller that broadcasts spot reports.
@@ -79,7 +75,9 @@ public class SpotReportController {
             if (!isUpdate) {
                 spotReport.regenerateMessageId();
             }
-            messageController.sendMessage(getSpotReportAsString(spotReport, uniqueDesignation).getBytes());
+            GeomessageWriter writer = GeomessageWriter.getThreadLocalInstance().reset();
+            writeSpotReport(writer, spotReport, uniqueDesignation);
+            messageController.sendGeomessage(writer.getBuffer(), 0, writer.size());
         }
     }
 
@@ -95,52 +93,46 @@ public class SpotReportController {
      */
     public String getSpotReportAsString(SpotReport spotReport, String senderUniqueDesignation)
             throws ParserConfigurationException, TransformerException {
-        Date theTime;
+        GeomessageWriter writer = GeomessageWriter.getThreadLocalInstance().reset().startGeomessages();
+        writeSpotReport(writer, spotReport, senderUniqueDesignation);
+        return writer.endGeomessages().toString();
+    }
+    
+    private void writeSpotReport(GeomessageWriter writer, SpotReport spotReport, String senderUniqueDesignation) {
+        long theTime;
         if (null != spotReport.getTime()) {
-            theTime = spotReport.getTime().getTime();
+            theTime = spotReport.getTime().getTimeInMillis();
         } else {
-            theTime = new Date();
+            theTime = System.currentTimeMillis();
         }
 
-        DomNodeAndDocument nodeAndDocument = Utilities.createGeomessageDocument();
-        Document doc = nodeAndDocument.getDocument();
-        Node geomessageElement = nodeAndDocument.getNode();
-        
-        Utilities.addTextElement(doc, geomessageElement,
-                Geomessage.TYPE_FIELD_NAME, REPORT_TYPE);
-        Utilities.addTextElement(doc, geomessageElement,
-                Geomessage.ID_FIELD_NAME, spotReport.getMessageId());
-        Utilities.addTextElement(doc, geomessageElement,
-                Geomessage.WKID_FIELD_NAME,
-                Integer.toString(spotReport.getLocationWkid()));
-        Utilities.addTextElement(doc, geomessageElement,
-                Geomessage.CONTROL_POINTS_FIELD_NAME,
-                spotReport.getLocationX() + "," + spotReport.getLocationY());
-        Utilities.addTextElement(doc, geomessageElement,
-                Geomessage.ACTION_FIELD_NAME, "update");
+        writer.startGeomessage();
+        writer.writeElement(Geomessage.TYPE_FIELD_NAME, REPORT_TYPE);
+        writer.writeElement(Geomessage.ID_FIELD_NAME, spotReport.getMessageId());
+        writer.writeElement(Geomessage.WKID_FIELD_NAME, spotReport.getLocationWkid());
+        writer.writeControlPoint(spotReport.getLocationX(), spotReport.getLocationY());
+        writer.writeElement(Geomessage.ACTION_FIELD_NAME, "update");
         if (null != senderUniqueDesignation) {
-            Utilities.addTextElement(doc, geomessageElement, "uniquedesignation",
-                    senderUniqueDesignation);
+            writer.writeElement("uniquedesignation", senderUniqueDesignation);
         }
 
         // salute format attributes
-        Utilities.addTextElement(doc, geomessageElement, "size", spotReport.getSize().toString());
-        Utilities.addTextElement(doc, geomessageElement, "activity", spotReport.getActivity().toString());
-        Utilities.addTextElement(doc, geomessageElement, "location", mapController.pointToMgrs(
+        writer.writeElement("size", spotReport.getSize().toString());
+        writer.writeElement("activity", spotReport.getActivity().toString());
+        writer.writeElement("location", mapController.pointToMgrs(
                 spotReport.getLocationX(),
                 spotReport.getLocationY(),
                 spotReport.getLocationWkid()));
-        Utilities.addTextElement(doc, geomessageElement, "unit", spotReport.getUnit().toString());
-        Utilities.addTextElement(doc, geomessageElement, "equipment", spotReport.getEquipment().toString());
+        writer.writeElement("unit", spotReport.getUnit().toString());
+        writer.writeElement("equipment", spotReport.getEquipment().toString());
 
-        Utilities.addTextElement(doc, geomessageElement, "size_cat", Integer.toString(spotReport.getSize().getCode()));
-        Utilities.addTextElement(doc, geomessageElement, "activity_cat", spotReport.getActivity().getCode());
-        Utilities.addTextElement(doc, geomessageElement, "unit_cat", spotReport.getUnit().getCode());
-        Utilities.addTextElement(doc, geomessageElement, "equip_cat", spotReport.getEquipment().getCode());
-        Utilities.addTextElement(doc, geomessageElement, "timeobserved", Utilities.DATE_FORMAT_GEOMESSAGE.format(theTime));
-        Utilities.addTextElement(doc, geomessageElement, "datetimesubmitted", Utilities.DATE_FORMAT_GEOMESSAGE.format(new Date()));
-        
-        return Utilities.documentToString(doc);
+        writer.writeElement("size_cat", spotReport.getSize().getCode());
+        writer.writeElement("activity_cat", spotReport.getActivity().getCode());
+        writer.writeElement("unit_cat", spotReport.getUnit().getCode());
+        writer.writeElement("equip_cat", spotReport.getEquipment().getCode());
+        writer.writeDateElement("timeobserved", theTime);
+        writer.writeDateElement("datetimesubmitted", System.currentTimeMillis());
+        writer.endGeomessage();
     }
     
 }
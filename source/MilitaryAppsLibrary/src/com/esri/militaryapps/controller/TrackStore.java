@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent store of per-Geomessage-ID display state. The map from ID to
+ * Track is sharded, and each shard is a HashMap guarded by its own monitor, which
+ * is held only to look up, add or remove a Track. Each Track has its own
+ * reentrant lock: to update a track atomically, call acquire(id), update it, and
+ * call release(track). Threads working on different IDs never wait for each
+ * other, even while one of them is in a slow rendering callback.
+ */
+class TrackStore {
+
+    /**
+     * The display state of one Geomessage ID. Only read or write a Track between
+     * acquire and release.
+     */
+    static final class Track {
+        
+        private final String id;
+        private final ReentrantLock lock = new ReentrantLock();
+        //Guarded by lock and the shard monitor; set when the track leaves the map
+        private boolean removed = false;
+        
+        /**
+         * The latest Geomessage with this ID that was not a "remove," or null.
+         * Volatile so that getGeomessageIds can read it without the lock.
+         */
+        volatile Geomessage geomessage = null;
+        
+        /**
+         * True if the track is currently highlighted.
+         */
+        boolean highlighted = false;
+        
+        /**
+         * The ID of the graphic displaying this spot report, or null.
+         */
+        Integer spotReportGraphicId = null;
+        
+        /**
+         * True if the track was last drawn with labels.
+         */
+        boolean labelsShown = false;
+
+        private Track(String id) {
+            this.id = id;
+        }
+
+        private boolean isEmpty() {
+            return null == geomessage && !highlighted && null == spotReportGraphicId;
+        }
+        
+    }
+
+    private final HashMap<String, Track>[] shards;
+    private final int shardMask;
+
+    /**
+     * Creates a new TrackStore.
+     * @param shardCount the number of shards, rounded up to a power of two.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    TrackStore(int shardCount) {
+        int count = 1;
+        while (count < shardCount) {
+            count *= 2;
+        }
+        shards = new HashMap[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new HashMap<String, Track>();
+        }
+        shardMask = count - 1;
+    }
+
+    private HashMap<String, Track> shardFor(String id) {
+        int h = null == id ? 0 : id.hashCode();
+        return shards[(h ^ (h >>> 16)) & shardMask];
+    }
+
+    /**
+     * Locks the track with the specified ID, creating it if necessary. The calling
+     * thread may acquire a track it already holds; each acquire needs a release.
+     * @param id the Geomessage ID.
+     * @return the locked track.
+     */
+    Track acquire(String id) {
+        HashMap<String, Track> shard = shardFor(id);
+        while (true) {
+            Track track;
+            synchronized (shard) {
+                track = shard.get(id);
+                if (null == track) {
+                    track = new Track(id);
+                    shard.put(id, track);
+                }
+            }
+            track.lock.lock();
+            if (!track.removed) {
+                return track;
+            }
+            //The track was removed while this thread waited for it; start over
+            track.lock.unlock();
+        }
+    }
+
+    /**
+     * Unlocks a track locked with acquire. When the outermost acquire is released
+     * and the track no longer holds any state, the track is removed from the store.
+     * @param track the track.
+     */
+    void release(Track track) {
+        try {
+            if (1 == track.lock.getHoldCount() && track.isEmpty()) {
+                HashMap<String, Track> shard = shardFor(track.id);
+                synchronized (shard) {
+                    if (shard.get(track.id) == track) {
+                        shard.remove(track.id);
+                    }
+                    track.removed = true;
+                }
+            }
+        } finally {
+            track.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the IDs of the tracks that have a stored Geomessage. Each shard is
+     * locked only while its IDs are copied, so the result is not a snapshot of
+     * the whole store at one instant. A track's Geomessage is read without its
+     * lock, so callers must check it again after acquiring the track.
+     * @return a new list of IDs.
+     */
+    List<String> getGeomessageIds() {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (HashMap<String, Track> shard : shards) {
+            synchronized (shard) {
+                for (Map.Entry<String, Track> entry : shard.entrySet()) {
+                    if (null != entry.getValue().geomessage) {
+                        ids.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+}
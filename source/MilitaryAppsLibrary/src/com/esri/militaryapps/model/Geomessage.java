@@ -15,11 +15,39 @@
  ******************************************************************************/
 package com.esri.militaryapps.model;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * A Geomessage bean.
+ * A Geomessage bean.<br/>
+ * <br/>
+ * To keep large numbers of live Geomessages small, well-known fields (_type,
+ * _action, sic, _control_points, _wkid, datetimevalid and status911) are held in
+ * typed slots rather than a map, and other properties are held in a small
+ * open-addressed array whose property names are shared among all Geomessages.
+ * Common values, such as "UPDATE" and small numbers, are shared too. A value that
+ * does not fit its typed slot, such as a _wkid that is not an integer, is kept as
+ * an ordinary property, so getProperty always returns what was set.<br/>
+ * <br/>
+ * _control_points and _wkid are parsed once, when they are set, so that
+ * consumers can call getControlPoints() and getWkid() instead of parsing Strings.<br/>
+ * <br/>
+ * A clone shares its original's property array. After cloning, changes to either
+ * Geomessage go into a small override layer of its own, so a clone with a few
+ * changed properties costs little more than the Geomessage object itself.<br/>
+ * <br/>
+ * Geomessage is not thread-safe. Any number of threads may read a Geomessage at
+ * once, but a thread that changes one must not run concurrently with any other
+ * thread using it. Cloning counts as a read: it marks the shared property array
+ * read-only in a volatile field, so a thread that later changes the original sees
+ * the mark and leaves the clone's properties alone. To hand a Geomessage to
+ * several threads that may each change it, give each thread its own clone.
  */
 public class Geomessage implements Cloneable {
     
@@ -53,15 +81,108 @@ public class Geomessage implements Cloneable {
      */
     public static final String SIC_FIELD_NAME = "sic";
     
-    private final HashMap<String, Object> properties = new HashMap<String, Object>();
+    //A typed slot's index is its bit in typedFlags
+    private static final int TYPE_SLOT = 0;
+    private static final int ACTION_SLOT = 1;
+    private static final int SIC_SLOT = 2;
+    private static final int CONTROL_POINTS_SLOT = 3;
+    private static final int WKID_SLOT = 4;
+    private static final int DATETIMEVALID_SLOT = 5;
+    private static final int STATUS911_SLOT = 6;
+    private static final String[] TYPED_NAMES = {
+        TYPE_FIELD_NAME, ACTION_FIELD_NAME, SIC_FIELD_NAME, CONTROL_POINTS_FIELD_NAME,
+        WKID_FIELD_NAME, "datetimevalid", "status911"
+    };
+    
+    private static final int MAX_SHARED_STRINGS = 4096;
+    private static final int MAX_SHARED_VALUE_LENGTH = 32;
+    private static final ConcurrentHashMap<String, String> sharedNames = new ConcurrentHashMap<String, String>();
+    private static final ConcurrentHashMap<String, String> sharedValues = new ConcurrentHashMap<String, String>();
+    private static final HashMap<String, String> COMMON_VALUES = new HashMap<String, String>();
+    static {
+        String[] commonValues = {
+            "", "true", "false", "TRUE", "FALSE",
+            "UPDATE", "update", "REMOVE", "remove", "SELECT", "select", "UN-SELECT", "un-select",
+            "position_report", "spotrep", "spot_report", "chemlight", "trackrep"
+        };
+        for (String value : commonValues) {
+            COMMON_VALUES.put(value, value);
+        }
+        for (String name : TYPED_NAMES) {
+            sharedNames.put(name, name);
+        }
+    }
+    private static final String[] SMALL_NUMBERS = new String[1000];
+    
+    //Marks a removed entry in the custom property table
+    private static final String REMOVED = new String("<removed>");
+    //An override value that hides a property of the shared table
+    private static final Object DELETED = new Object();
+    private static final int MIN_CUSTOM_CAPACITY = 8;
+    private static final int MAX_OVERRIDES = 8;
     
     private String id;
     
+    private String type;
+    private String action;
+    private String sic;
+    //Null when it can be rendered from controlPointCoordinates
+    private String controlPoints;
+    private double[] controlPointCoordinates;
+    private long dateTimeValid;
+    private int wkid;
+    private byte status911;
+    private byte typedFlags = 0;
+    
+    //Open-addressed by name hash: names at even indexes, each value at the next index
+    private Object[] custom = null;
+    //True if custom is shared with clones, which makes it read-only. Volatile
+    //because clone() may set it on a thread that only reads this Geomessage.
+    private volatile boolean customShared = false;
+    //Name and value pairs layered over a shared custom table, in insertion order
+    private Object[] overrides = null;
+    private int overrideCount = 0;
+    //Live custom properties, including overrides
+    private int customCount = 0;
+    //Live and removed entries in an unshared table, which together bound probe lengths
+    private int customUsed = 0;
+    
+    /**
+     * Returns a copy of this Geomessage. The copy shares this Geomessage's
+     * property array until one of them changes a property, and even then each
+     * keeps its first few changes in a small override layer, so cloning and
+     * changing a few properties is cheap. Changes to one do not affect the other.
+     * Cloning does not change this Geomessage's properties, so it is safe while
+     * other threads read this Geomessage, but not while one changes it.
+     * @return a copy of this Geomessage.
+     */
     @Override
     public Geomessage clone() {
         Geomessage clone = new Geomessage();
-        clone.setId(id);
-        clone.properties.putAll(properties);
+        clone.id = id;
+        clone.type = type;
+        clone.action = action;
+        clone.sic = sic;
+        clone.controlPoints = controlPoints;
+        clone.controlPointCoordinates = controlPointCoordinates;
+        clone.dateTimeValid = dateTimeValid;
+        clone.wkid = wkid;
+        clone.status911 = status911;
+        clone.typedFlags = typedFlags;
+        if (null != overrides) {
+            //Give the clone one flat table rather than layering overrides on overrides
+            clone.custom = flattenCustom(customCount);
+            clone.customCount = customCount;
+            clone.customUsed = customCount;
+        } else if (null != custom) {
+            if (!customShared) {
+                customShared = true;
+            }
+            clone.custom = custom;
+            clone.customShared = true;
+            clone.customCount = customCount;
+            clone.customUsed = customUsed;
+        }
         return clone;
     }
     
@@ -87,7 +208,12 @@ public class Geomessage implements Cloneable {
      * @return the property value, or null if it does not exist.
      */
     public Object getProperty(String name) {
-        return properties.get(name);
+        int slot = typedSlot(name);
+        if (0 <= slot && hasTyped(slot)) {
+            return getTyped(slot);
+        }
+        Object value = customValue(name);
+        return DELETED == value ? null : value;
     }
     
     /**
@@ -96,14 +222,698 @@ public class Geomessage implements Cloneable {
      * @param value the property value (can be null).
      */
     public void setProperty(String name, Object value) {
-        properties.put(name, value);
+        int slot = typedSlot(name);
+        if (0 <= slot) {
+            if (setTyped(slot, value)) {
+                removeCustom(name);
+                return;
+            }
+            clearTyped(slot);
+        }
+        putCustom(share(sharedNames, name), shareValue(value));
+    }
+    
+    /**
+     * Removes a property of this Geomessage.
+     * @param name the property name (not null).
+     * @return the property's previous value, or null if it did not exist.
+     */
+    public Object removeProperty(String name) {
+        int slot = typedSlot(name);
+        if (0 <= slot && hasTyped(slot)) {
+            Object value = getTyped(slot);
+            clearTyped(slot);
+            return value;
+        }
+        return removeCustom(name);
+    }
+    
+    /**
+     * Returns true if this Geomessage has the specified property.
+     * @param name the property name (not null).
+     * @return true if this Geomessage has the property, even if its value is null.
+     */
+    public boolean hasProperty(String name) {
+        int slot = typedSlot(name);
+        return (0 <= slot && hasTyped(slot)) || DELETED != customValue(name);
     }
     
     /**
-     * Gets all properties (other than unique ID) of this Geomessage.
+     * Gets all properties (other than unique ID) of this Geomessage. The map is a
+     * live view: changes to it change this Geomessage, and vice versa. Values in
+     * typed slots are returned as Strings.
      */
     public Map<String, Object> getProperties() {
-        return properties;
+        return new PropertyMap();
+    }
+    
+    /**
+     * Returns the coordinates of this Geomessage's control points, parsed when
+     * _control_points was set. The coordinates are x1, y1, x2, y2 and so on, in
+     * the spatial reference given by getWkid(). Do not modify the array.
+     * @return the coordinates, or null if _control_points is absent or contains
+     *         something other than numbers separated by commas, semicolons or
+     *         spaces.
+     */
+    public double[] getControlPoints() {
+        return hasTyped(CONTROL_POINTS_SLOT) ? controlPointCoordinates : null;
+    }
+    
+    /**
+     * Returns this Geomessage's well-known ID (WKID), parsed when _wkid was set.
+     * @return the WKID, or -1 if _wkid is absent or is not an integer.
+     */
+    public int getWkid() {
+        return hasTyped(WKID_SLOT) ? wkid : -1;
+    }
+    
+    private static boolean isControlPointSeparator(char c) {
+        return ',' == c || ';' == c || ' ' == c;
+    }
+    
+    private static double[] parseControlPoints(String text) {
+        int length = text.length();
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (!isControlPointSeparator(text.charAt(i)) && (0 == i || isControlPointSeparator(text.charAt(i - 1)))) {
+                count++;
+            }
+        }
+        if (0 == count) {
+            return null;
+        }
+        double[] coordinates = new double[count];
+        int start = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                while (isControlPointSeparator(text.charAt(start))) {
+                    start++;
+                }
+                int end = start;
+                while (end < length && !isControlPointSeparator(text.charAt(end))) {
+                    end++;
+                }
+                coordinates[i] = Double.parseDouble(text.substring(start, end));
+                start = end;
+            }
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        return coordinates;
+    }
+    
+    /**
+     * Formats coordinates as "x1,y1;x2,y2".
+     */
+    private static String formatControlPoints(double[] coordinates) {
+        StringBuilder sb = new StringBuilder(coordinates.length * 16);
+        for (int i = 0; i < coordinates.length; i++) {
+            if (0 < i) {
+                sb.append(0 == i % 2 ? ';' : ',');
+            }
+            sb.append(coordinates[i]);
+        }
+        return sb.toString();
+    }
+    
+    private static int typedSlot(String name) {
+        for (int i = 0; i < TYPED_NAMES.length; i++) {
+            if (TYPED_NAMES[i] == name) {
+                return i;
+            }
+        }
+        for (int i = 0; i < TYPED_NAMES.length; i++) {
+            if (TYPED_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private boolean hasTyped(int slot) {
+        return 0 != (typedFlags & (1 << slot));
+    }
+    
+    private String getTyped(int slot) {
+        switch (slot) {
+            case TYPE_SLOT: {
+                return type;
+            }
+            case ACTION_SLOT: {
+                return action;
+            }
+            case SIC_SLOT: {
+                return sic;
+            }
+            case CONTROL_POINTS_SLOT: {
+                return null == controlPoints ? formatControlPoints(controlPointCoordinates) : controlPoints;
+            }
+            case WKID_SLOT: {
+                return Integer.toString(wkid);
+            }
+            case DATETIMEVALID_SLOT: {
+                byte[] bytes = new byte[GeomessageDates.TIMESTAMP_LENGTH];
+                GeomessageDates.format(dateTimeValid, bytes, 0);
+                char[] chars = new char[bytes.length];
+                for (int i = 0; i < bytes.length; i++) {
+                    chars[i] = (char) bytes[i];
+                }
+                return new String(chars);
+            }
+            case STATUS911_SLOT:
+            default: {
+                return 0 == status911 ? "0" : "1";
+            }
+        }
+    }
+    
+    /**
+     * Puts a value in a typed slot.
+     * @return false, changing nothing, if the value does not fit the slot.
+     */
+    private boolean setTyped(int slot, Object value) {
+        if (!(value instanceof String)) {
+            return false;
+        }
+        String string = (String) value;
+        switch (slot) {
+            case TYPE_SLOT: {
+                type = share(sharedValues, string);
+                break;
+            }
+            case ACTION_SLOT: {
+                action = share(sharedValues, string);
+                break;
+            }
+            case SIC_SLOT: {
+                sic = share(sharedValues, string);
+                break;
+            }
+            case CONTROL_POINTS_SLOT: {
+                controlPointCoordinates = parseControlPoints(string);
+                //Keep only the numbers if they reproduce the String
+                controlPoints = null != controlPointCoordinates
+                        && string.equals(formatControlPoints(controlPointCoordinates)) ? null : string;
+                break;
+            }
+            case WKID_SLOT: {
+                long parsed = parseCanonicalInt(string);
+                if (Long.MIN_VALUE == parsed) {
+                    return false;
+                }
+                wkid = (int) parsed;
+                break;
+            }
+            case DATETIMEVALID_SLOT: {
+                //A valid timestamp has exactly one form, so formatting restores the String
+                long millis = GeomessageDates.parse(string);
+                if (Long.MIN_VALUE == millis) {
+                    return false;
+                }
+                dateTimeValid = millis;
+                break;
+            }
+            case STATUS911_SLOT:
+            default: {
+                if ("0".equals(string)) {
+                    status911 = 0;
+                } else if ("1".equals(string)) {
+                    status911 = 1;
+                } else {
+                    return false;
+                }
+            }
+        }
+        typedFlags |= 1 << slot;
+        return true;
+    }
+    
+    private void clearTyped(int slot) {
+        typedFlags &= ~(1 << slot);
+        switch (slot) {
+            case TYPE_SLOT: {
+                type = null;
+                break;
+            }
+            case ACTION_SLOT: {
+                action = null;
+                break;
+            }
+            case SIC_SLOT: {
+                sic = null;
+                break;
+            }
+            case CONTROL_POINTS_SLOT: {
+                controlPoints = null;
+                controlPointCoordinates = null;
+                break;
+            }
+            default: {
+                //A primitive slot; the flag is enough
+            }
+        }
+    }
+    
+    /**
+     * Parses a decimal int that has no sign other than a leading minus and no
+     * leading zeros, so that Integer.toString restores the text.
+     * @return the int, or Long.MIN_VALUE if the text is not such an int.
+     */
+    private static long parseCanonicalInt(String text) {
+        int length = text.length();
+        int start = 0 < length && '-' == text.charAt(0) ? 1 : 0;
+        if (start == length || 11 < length || ('0' == text.charAt(start) && (1 < length || 1 == start))) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            if ('0' > c || '9' < c) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = 1 == start ? -value : value;
+        return Integer.MIN_VALUE <= value && Integer.MAX_VALUE >= value ? value : Long.MIN_VALUE;
+    }
+    
+    private static String share(ConcurrentHashMap<String, String> shared, String string) {
+        String existing = shared.get(string);
+        if (null != existing) {
+            return existing;
+        }
+        if (MAX_SHARED_STRINGS <= shared.size() || MAX_SHARED_VALUE_LENGTH < string.length()) {
+            return string;
+        }
+        existing = shared.putIfAbsent(string, string);
+        return null == existing ? string : existing;
+    }
+    
+    private static Object shareValue(Object value) {
+        if (!(value instanceof String)) {
+            return value;
+        }
+        String string = (String) value;
+        int length = string.length();
+        if (0 < length && 3 >= length && ('0' != string.charAt(0) || 1 == length)) {
+            int number = 0;
+            for (int i = 0; i < length && 0 <= number; i++) {
+                char c = string.charAt(i);
+                number = '0' <= c && '9' >= c ? number * 10 + (c - '0') : -1;
+            }
+            if (0 <= number) {
+                //Racing threads may each store an equal String, which is harmless
+                String shared = SMALL_NUMBERS[number];
+                if (null == shared) {
+                    SMALL_NUMBERS[number] = string;
+                    shared = string;
+                }
+                return shared;
+            }
+        }
+        String common = COMMON_VALUES.get(string);
+        return null == common ? string : common;
+    }
+    
+    private static int customHash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * @return the index of the name in the custom table, or -1 if it is absent.
+     */
+    private static int findCustom(Object[] table, String name) {
+        if (null == table) {
+            return -1;
+        }
+        int mask = table.length / 2 - 1;
+        int i = customHash(name) & mask;
+        while (true) {
+            Object key = table[2 * i];
+            if (null == key) {
+                return -1;
+            }
+            if (key == name || (REMOVED != key && key.equals(name))) {
+                return 2 * i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+    
+    /**
+     * @return the index of the name in the override pairs, or -1 if it is absent.
+     */
+    private static int findOverride(Object[] pairs, int count, String name) {
+        for (int i = 0; i < 2 * count; i += 2) {
+            if (pairs[i] == name) {
+                return i;
+            }
+        }
+        for (int i = 0; i < 2 * count; i += 2) {
+            if (pairs[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * @return the value of a custom property, or DELETED if it is absent.
+     */
+    private Object customValue(String name) {
+        if (null != overrides) {
+            int index = findOverride(overrides, overrideCount, name);
+            if (0 <= index) {
+                return overrides[index + 1];
+            }
+        }
+        int index = findCustom(custom, name);
+        return 0 > index ? DELETED : custom[index + 1];
+    }
+    
+    private void putCustom(String name, Object value) {
+        if (customShared) {
+            if (putOverride(name, value)) {
+                return;
+            }
+            rebuildCustom(customCount + 1);
+        }
+        int index = findCustom(custom, name);
+        if (0 <= index) {
+            custom[index + 1] = value;
+            return;
+        }
+        //Keep at least a quarter of the table empty so that probes stay short
+        if (null == custom || 3 * (custom.length / 2) < 4 * (customUsed + 1)) {
+            rebuildCustom(customCount + 1);
+        }
+        insertCustom(custom, name, value);
+        customCount++;
+        customUsed++;
+    }
+    
+    /**
+     * Sets a value, or DELETED, in the override layer over the shared table.
+     * @return false, changing nothing, if the override layer is full.
+     */
+    private boolean putOverride(String name, Object value) {
+        int index = null == overrides ? -1 : findOverride(overrides, overrideCount, name);
+        boolean wasPresent;
+        if (0 <= index) {
+            wasPresent = DELETED != overrides[index + 1];
+            overrides[index + 1] = value;
+        } else if (MAX_OVERRIDES > overrideCount) {
+            wasPresent = 0 <= findCustom(custom, name);
+            if (null == overrides) {
+                overrides = new Object[MAX_OVERRIDES];
+            } else if (overrides.length == 2 * overrideCount) {
+                Object[] newOverrides = new Object[2 * MAX_OVERRIDES];
+                System.arraycopy(overrides, 0, newOverrides, 0, overrides.length);
+                overrides = newOverrides;
+            }
+            overrides[2 * overrideCount] = name;
+            overrides[2 * overrideCount + 1] = value;
+            overrideCount++;
+        } else {
+            return false;
+        }
+        customCount += (DELETED != value ? 1 : 0) - (wasPresent ? 1 : 0);
+        return true;
+    }
+    
+    private static void insertCustom(Object[] table, String name, Object value) {
+        int mask = table.length / 2 - 1;
+        int i = customHash(name) & mask;
+        while (null != table[2 * i]) {
+            i = (i + 1) & mask;
+        }
+        table[2 * i] = name;
+        table[2 * i + 1] = value;
+    }
+    
+    /**
+     * Replaces the custom table with a new, unshared table that holds the live
+     * properties and overrides and has room for at least minCount properties.
+     */
+    private void rebuildCustom(int minCount) {
+        custom = flattenCustom(minCount);
+        customShared = false;
+        overrides = null;
+        overrideCount = 0;
+        customUsed = customCount;
+    }
+    
+    /**
+     * @return a new table that holds the live properties and overrides and has
+     *         room for at least minCount properties.
+     */
+    private Object[] flattenCustom(int minCount) {
+        int capacity = MIN_CUSTOM_CAPACITY;
+        while (3 * capacity < 4 * minCount) {
+            capacity *= 2;
+        }
+        Object[] table = new Object[2 * capacity];
+        if (null != custom) {
+            for (int i = 0; i < custom.length; i += 2) {
+                Object key = custom[i];
+                if (null != key && REMOVED != key
+                        && (null == overrides || 0 > findOverride(overrides, overrideCount, (String) key))) {
+                    insertCustom(table, (String) key, custom[i + 1]);
+                }
+            }
+        }
+        for (int i = 0; i < 2 * overrideCount; i += 2) {
+            if (DELETED != overrides[i + 1]) {
+                insertCustom(table, (String) overrides[i], overrides[i + 1]);
+            }
+        }
+        return table;
+    }
+    
+    private Object removeCustom(String name) {
+        Object value = customValue(name);
+        if (DELETED == value) {
+            return null;
+        }
+        if (1 == customCount) {
+            clearCustom();
+        } else if (customShared) {
+            if (!putOverride(name, DELETED)) {
+                rebuildCustom(customCount);
+                removeCustom(name);
+            }
+        } else {
+            //Leave a marker so that probes for later names do not stop here
+            int index = findCustom(custom, name);
+            custom[index] = REMOVED;
+            custom[index + 1] = null;
+            customCount--;
+        }
+        return value;
+    }
+    
+    private void clearCustom() {
+        custom = null;
+        customShared = false;
+        overrides = null;
+        overrideCount = 0;
+        customCount = 0;
+        customUsed = 0;
+    }
+    
+    /**
+     * A live view of a Geomessage's properties.
+     */
+    private final class PropertyMap extends AbstractMap<String, Object> {
+
+        @Override
+        public int size() {
+            return Integer.bitCount(typedFlags) + customCount;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && hasProperty((String) key);
+        }
+
+        @Override
+        public Object get(Object key) {
+            return key instanceof String ? getProperty((String) key) : null;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Object previous = getProperty(key);
+            setProperty(key, value);
+            return previous;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            return key instanceof String ? removeProperty((String) key) : null;
+        }
+
+        @Override
+        public void clear() {
+            for (int i = 0; i < TYPED_NAMES.length; i++) {
+                clearTyped(i);
+            }
+            clearCustom();
+        }
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new PropertyIterator();
+                }
+
+                @Override
+                public int size() {
+                    return PropertyMap.this.size();
+                }
+
+            };
+        }
+
+    }
+    
+    /**
+     * Iterates over the typed slots, then the overrides, then the custom table.
+     * The iterator keeps the arrays it started with, which are never rearranged:
+     * removing marks entries instead of moving them, and growing or flattening
+     * allocates new arrays. Changes made through the iterator therefore do not
+     * disturb it.
+     */
+    private final class PropertyIterator implements Iterator<Map.Entry<String, Object>> {
+        
+        private final Object[] table = custom;
+        private final Object[] pairs = overrides;
+        private final int pairCount = overrideCount;
+        private int typedNext = 0;
+        private int pairNext = 0;
+        private int tableNext = 0;
+        private String nextName = null;
+        private Object nextValue = null;
+        private String lastName = null;
+
+        PropertyIterator() {
+            advance();
+        }
+        
+        private void advance() {
+            nextName = null;
+            while (typedNext < TYPED_NAMES.length) {
+                int slot = typedNext++;
+                if (hasTyped(slot)) {
+                    nextName = TYPED_NAMES[slot];
+                    nextValue = getTyped(slot);
+                    return;
+                }
+            }
+            while (pairNext < 2 * pairCount) {
+                int index = pairNext;
+                pairNext += 2;
+                if (DELETED != pairs[index + 1]) {
+                    nextName = (String) pairs[index];
+                    nextValue = pairs[index + 1];
+                    return;
+                }
+            }
+            while (null != table && tableNext < table.length) {
+                int index = tableNext;
+                tableNext += 2;
+                Object key = table[index];
+                if (null != key && REMOVED != key
+                        && (null == pairs || 0 > findOverride(pairs, pairCount, (String) key))) {
+                    nextName = (String) key;
+                    nextValue = table[index + 1];
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return null != nextName;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (null == nextName) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, Object> entry = new PropertyEntry(nextName, nextValue);
+            lastName = nextName;
+            advance();
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            if (null == lastName) {
+                throw new IllegalStateException();
+            }
+            removeProperty(lastName);
+            lastName = null;
+        }
+        
+    }
+    
+    /**
+     * An entry of the properties view. Setting its value sets the property.
+     */
+    private final class PropertyEntry implements Map.Entry<String, Object> {
+        
+        private final String name;
+        private Object value;
+        
+        PropertyEntry(String name, Object value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return name;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object previous = this.value;
+            this.value = value;
+            setProperty(name, value);
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+            return (null == name ? null == other.getKey() : name.equals(other.getKey()))
+                    && (null == value ? null == other.getValue() : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (null == name ? 0 : name.hashCode()) ^ (null == value ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + value;
+        }
+        
     }
     
 }
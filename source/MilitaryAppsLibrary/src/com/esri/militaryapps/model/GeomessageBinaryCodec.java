@@ -0,0 +1,625 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Encodes Geomessages in a compact binary form and decodes them again. A
+ * position report that takes several hundred bytes as XML takes a few dozen
+ * bytes in binary form.
+ * <br/>
+ * <br/>
+ * An encoded block is a format version byte followed by any number of messages.
+ * Each message is a varint length followed by that many bytes of fields, and each
+ * field is a varint field ID followed by a value:
+ * <ul>
+ * <li>Well-known fields such as _id, _type, _wkid, _control_points, _action and
+ *     sic have their own field IDs, so their names are not sent.</li>
+ * <li>Integers, such as _wkid and direction, are zigzag varints.</li>
+ * <li>Control points are a varint point count followed by zigzag varint
+ *     coordinates in units of 1e-7, each coordinate after the first point
+ *     relative to the same coordinate of the previous point. Only control points
+ *     already written the way the decoder writes them, with one to seven
+ *     decimal places and no trailing zeros beyond the first, are sent this way.</li>
+ * <li>Timestamps in the yyyy-MM-dd HH:mm:ss format are zigzag varint seconds
+ *     since the epoch.</li>
+ * <li>Strings start with a varint header whose two low bits give the form. A
+ *     common value such as "position_report" or "UPDATE" is just the header,
+ *     holding the value's index in a fixed table. A UUID, with or without braces,
+ *     is the header followed by its 16 bytes. Any other string is the header,
+ *     holding the UTF-8 length, followed by the UTF-8 bytes.</li>
+ * <li>Field ID 0 is any other field: its name as a string, then its value as a
+ *     string.</li>
+ * </ul>
+ * A well-known field whose value does not fit its type, for example a _wkid that
+ * is not an integer or a control point with eight decimal places, is sent as
+ * field ID 0 instead, so such values survive unchanged.
+ * <br/>
+ * <br/>
+ * Decoding is thread-safe. Encoding writes into a reusable buffer, so a
+ * GeomessageBinaryCodec that encodes is not thread-safe; give each thread its own.
+ */
+public class GeomessageBinaryCodec {
+    
+    /**
+     * The format version written at the start of each encoded block.
+     */
+    public static final byte FORMAT_VERSION = 1;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long FIXED_POINT_SCALE = 10000000L;
+    private static final int FIXED_POINT_DECIMALS = 7;
+    
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_INTEGER = 1;
+    private static final int TYPE_POINTS = 2;
+    private static final int TYPE_TIMESTAMP = 3;
+    
+    private static final int OTHER_FIELD_ID = 0;
+    private static final int ID_FIELD_ID = 1;
+    
+    //Field IDs are indexes into these arrays; never reorder them, only append
+    private static final String[] FIELD_NAMES = {
+        null, Geomessage.ID_FIELD_NAME, Geomessage.TYPE_FIELD_NAME, Geomessage.WKID_FIELD_NAME,
+        Geomessage.CONTROL_POINTS_FIELD_NAME, Geomessage.ACTION_FIELD_NAME, Geomessage.SIC_FIELD_NAME,
+        "uniquedesignation", "type", "datetimesubmitted", "datetimevalid", "datetimemodified",
+        "timeobserved", "direction", "status911", "color", "speed", "quantity", "owningunit"
+    };
+    private static final int[] FIELD_TYPES = {
+        TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_INTEGER,
+        TYPE_POINTS, TYPE_STRING, TYPE_STRING,
+        TYPE_STRING, TYPE_STRING, TYPE_TIMESTAMP, TYPE_TIMESTAMP, TYPE_TIMESTAMP,
+        TYPE_TIMESTAMP, TYPE_INTEGER, TYPE_INTEGER, TYPE_STRING, TYPE_STRING, TYPE_INTEGER, TYPE_STRING
+    };
+    
+    private static final int STRING_LITERAL = 0;
+    private static final int STRING_COMMON = 1;
+    private static final int STRING_UUID = 2;
+    private static final int UUID_BRACES = 1;
+    private static final int UUID_UPPER_CASE = 2;
+    private static final char[] LOWER_HEX = "0123456789abcdef".toCharArray();
+    private static final char[] UPPER_HEX = "0123456789ABCDEF".toCharArray();
+    
+    //Common values are indexes into this array; never reorder it, only append
+    private static final String[] COMMON_VALUES = {
+        "position_report", "spotrep", "chemlight", "trackrep",
+        "UPDATE", "update", "REMOVE", "remove", "SELECT", "select", "UN-SELECT", "un-select",
+        "true", "false"
+    };
+    private static final HashMap<String, Integer> COMMON_VALUE_CODES = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < COMMON_VALUES.length; i++) {
+            COMMON_VALUE_CODES.put(COMMON_VALUES[i], i);
+        }
+    }
+    private static final HashMap<String, Integer> FIELD_IDS = new HashMap<String, Integer>();
+    static {
+        for (int i = 1; i < FIELD_NAMES.length; i++) {
+            FIELD_IDS.put(FIELD_NAMES[i], i);
+        }
+    }
+    
+    private byte[] buffer = new byte[256];
+    private int size = 0;
+    private long[] points = new long[16];
+    private final StringBuilder pointsText = new StringBuilder();
+    
+    /**
+     * Discards everything encoded so far, keeping the buffer for reuse.
+     * @return this codec.
+     */
+    public GeomessageBinaryCodec reset() {
+        size = 0;
+        return this;
+    }
+    
+    /**
+     * Writes the format version byte that starts an encoded block.
+     * @return this codec.
+     */
+    public GeomessageBinaryCodec writeHeader() {
+        ensureCapacity(1);
+        buffer[size++] = FORMAT_VERSION;
+        return this;
+    }
+    
+    /**
+     * Encodes a Geomessage, preceded by its length.
+     * @param geomessage the Geomessage.
+     * @return this codec.
+     */
+    public GeomessageBinaryCodec encode(Geomessage geomessage) {
+        //Reserve the longest possible length prefix and move the message up afterwards
+        ensureCapacity(5);
+        int lengthPosition = size;
+        size += 5;
+        int bodyStart = size;
+        if (null != geomessage.getId()) {
+            writeVarint(ID_FIELD_ID);
+            writeString(geomessage.getId());
+        }
+        for (Entry<String, Object> property : geomessage.getProperties().entrySet()) {
+            if (null != property.getValue()) {
+                writeField(property.getKey(), property.getValue().toString());
+            }
+        }
+        int bodyLength = size - bodyStart;
+        int prefixLength = varintLength(bodyLength);
+        System.arraycopy(buffer, bodyStart, buffer, lengthPosition + prefixLength, bodyLength);
+        size = lengthPosition;
+        writeVarint(bodyLength);
+        size += bodyLength;
+        return this;
+    }
+    
+    /**
+     * Returns the codec's buffer. Only the first size() bytes are valid.
+     * @return the codec's buffer.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+    
+    /**
+     * @return the number of bytes encoded since the last reset.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * @return a copy of the bytes encoded since the last reset.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        System.arraycopy(buffer, 0, bytes, 0, size);
+        return bytes;
+    }
+    
+    private void writeField(String name, String value) {
+        Integer fieldId = FIELD_IDS.get(name);
+        if (null != fieldId) {
+            int start = size;
+            writeVarint(fieldId);
+            if (writeTypedValue(FIELD_TYPES[fieldId], value)) {
+                return;
+            }
+            size = start;
+        }
+        writeVarint(OTHER_FIELD_ID);
+        writeString(name);
+        writeString(value);
+    }
+    
+    /**
+     * Writes a value in its field's type, or returns false if the value would not
+     * decode to an equivalent string.
+     */
+    private boolean writeTypedValue(int type, String value) {
+        switch (type) {
+            case TYPE_INTEGER: {
+                long number;
+                try {
+                    number = Long.parseLong(value);
+                } catch (NumberFormatException nfe) {
+                    return false;
+                }
+                if (!Long.toString(number).equals(value)) {
+                    return false;
+                }
+                writeVarint(zigzag(number));
+                return true;
+            }
+            case TYPE_TIMESTAMP: {
+                long millis = GeomessageDates.parse(value);
+                if (Long.MIN_VALUE == millis) {
+                    return false;
+                }
+                writeVarint(zigzag(millis / 1000));
+                return true;
+            }
+            case TYPE_POINTS: {
+                return writePoints(value);
+            }
+            case TYPE_STRING:
+            default: {
+                writeString(value);
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Writes control points in the x,y;x,y form, or returns false if the value is
+     * not in that form or would not decode to the same text.
+     */
+    private boolean writePoints(String value) {
+        int coordinateCount = 0;
+        int start = 0;
+        int length = value.length();
+        boolean expectX = true;
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? value.charAt(i) : ';';
+            if (',' == c || ';' == c) {
+                if (expectX != (',' == c)) {
+                    return false;
+                }
+                double coordinate;
+                try {
+                    coordinate = Double.parseDouble(value.substring(start, i));
+                } catch (NumberFormatException nfe) {
+                    return false;
+                }
+                if (Double.isNaN(coordinate) || Double.isInfinite(coordinate)
+                        || Long.MAX_VALUE / FIXED_POINT_SCALE < Math.abs(coordinate)) {
+                    return false;
+                }
+                if (coordinateCount == points.length) {
+                    long[] newPoints = new long[points.length * 2];
+                    System.arraycopy(points, 0, newPoints, 0, points.length);
+                    points = newPoints;
+                }
+                points[coordinateCount++] = Math.round(coordinate * FIXED_POINT_SCALE);
+                expectX = !expectX;
+                start = i + 1;
+            }
+        }
+        //Rounding to 1e-7 or reformatting, as in "34" becoming "34.0", would change the value
+        pointsText.setLength(0);
+        for (int i = 0; i < coordinateCount; i++) {
+            if (0 < i) {
+                pointsText.append(0 == i % 2 ? ';' : ',');
+            }
+            appendFixedPoint(pointsText, points[i]);
+        }
+        if (!value.contentEquals(pointsText)) {
+            return false;
+        }
+        writeVarint(coordinateCount / 2);
+        for (int i = 0; i < coordinateCount; i++) {
+            writeVarint(zigzag(2 > i ? points[i] : points[i] - points[i - 2]));
+        }
+        return true;
+    }
+    
+    private void writeString(String value) {
+        Integer common = COMMON_VALUE_CODES.get(value);
+        if (null != common) {
+            writeVarint(((long) common << 2) | STRING_COMMON);
+        } else if (!writeUuid(value)) {
+            writeLiteral(value);
+        }
+    }
+    
+    /**
+     * Writes a UUID in its 16-byte form, or returns false if the value is not a
+     * UUID in canonical form, optionally in braces and optionally upper case.
+     */
+    private boolean writeUuid(String value) {
+        int start = 0;
+        int flags = 0;
+        if (38 == value.length() && '{' == value.charAt(0) && '}' == value.charAt(37)) {
+            start = 1;
+            flags |= UUID_BRACES;
+        } else if (36 != value.length()) {
+            return false;
+        }
+        boolean lowerCase = false;
+        boolean upperCase = false;
+        ensureCapacity(17);
+        int position = size + 1;
+        int nibbles = 0;
+        int currentByte = 0;
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(start + i);
+            if (8 == i || 13 == i || 18 == i || 23 == i) {
+                if ('-' != c) {
+                    return false;
+                }
+                continue;
+            }
+            int digit;
+            if ('0' <= c && c <= '9') {
+                digit = c - '0';
+            } else if ('a' <= c && c <= 'f') {
+                digit = c - 'a' + 10;
+                lowerCase = true;
+            } else if ('A' <= c && c <= 'F') {
+                digit = c - 'A' + 10;
+                upperCase = true;
+            } else {
+                return false;
+            }
+            currentByte = (currentByte << 4) | digit;
+            if (0 == (++nibbles & 1)) {
+                buffer[position++] = (byte) currentByte;
+                currentByte = 0;
+            }
+        }
+        if (lowerCase && upperCase) {
+            return false;
+        }
+        if (upperCase) {
+            flags |= UUID_UPPER_CASE;
+        }
+        //The header is one byte because flags is less than 32
+        buffer[size] = (byte) ((flags << 2) | STRING_UUID);
+        size = position;
+        return true;
+    }
+    
+    private void writeLiteral(String value) {
+        //Encode first, then prefix the header
+        ensureCapacity(5 + value.length() * 3);
+        int lengthPosition = size;
+        int start = size + 5;
+        int end = start;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[end++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[end++] = (byte) (0xC0 | (c >> 6));
+                buffer[end++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[end++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[end++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[end++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[end++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[end++] = '?';
+            } else {
+                buffer[end++] = (byte) (0xE0 | (c >> 12));
+                buffer[end++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[end++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        int byteLength = end - start;
+        long header = ((long) byteLength << 2) | STRING_LITERAL;
+        int prefixLength = varintLength(header);
+        System.arraycopy(buffer, start, buffer, lengthPosition + prefixLength, byteLength);
+        size = lengthPosition;
+        writeVarint(header);
+        size += byteLength;
+    }
+    
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while (0 != (value & ~0x7FL)) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+    
+    private static int varintLength(long value) {
+        int length = 1;
+        while (0 != (value & ~0x7FL)) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+    
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    private void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + additional)];
+            System.arraycopy(buffer, 0, newBuffer, 0, size);
+            buffer = newBuffer;
+        }
+    }
+    
+    /**
+     * Decodes a block of encoded Geomessages, starting with its format version byte.
+     * @param block the encoded block. Its position is advanced past the block.
+     * @return the decoded Geomessages.
+     * @throws IOException if the block is not in a format this codec understands.
+     */
+    public static List<Geomessage> decode(ByteBuffer block) throws IOException {
+        if (!block.hasRemaining()) {
+            throw new IOException("Empty block");
+        }
+        byte version = block.get();
+        if (FORMAT_VERSION != version) {
+            throw new IOException("Unsupported binary Geomessage format version " + version);
+        }
+        ArrayList<Geomessage> messages = new ArrayList<Geomessage>();
+        try {
+            while (block.hasRemaining()) {
+                int length = (int) readVarint(block);
+                if (0 > length || length > block.remaining()) {
+                    throw new IOException("Message length " + length + " exceeds the block");
+                }
+                int end = block.position() + length;
+                Geomessage message = new Geomessage();
+                while (block.position() < end) {
+                    readField(block, message);
+                }
+                if (block.position() != end) {
+                    throw new IOException("Field overruns its message");
+                }
+                messages.add(message);
+            }
+        } catch (RuntimeException re) {
+            //For example, a BufferUnderflowException from a truncated varint
+            throw new IOException("Malformed binary Geomessage", re);
+        }
+        return messages;
+    }
+    
+    private static void readField(ByteBuffer block, Geomessage message) throws IOException {
+        long fieldId = readVarint(block);
+        if (OTHER_FIELD_ID == fieldId) {
+            String name = readString(block);
+            message.setProperty(name, readString(block));
+        } else if (ID_FIELD_ID == fieldId) {
+            message.setId(readString(block));
+        } else if (0 < fieldId && fieldId < FIELD_NAMES.length) {
+            int id = (int) fieldId;
+            message.setProperty(FIELD_NAMES[id], readTypedValue(block, FIELD_TYPES[id]));
+        } else {
+            throw new IOException("Unknown binary Geomessage field ID " + fieldId);
+        }
+    }
+    
+    private static String readTypedValue(ByteBuffer block, int type) throws IOException {
+        switch (type) {
+            case TYPE_INTEGER: {
+                return Long.toString(unzigzag(readVarint(block)));
+            }
+            case TYPE_TIMESTAMP: {
+                byte[] text = new byte[GeomessageDates.TIMESTAMP_LENGTH];
+                long millis = unzigzag(readVarint(block)) * 1000;
+                if (!GeomessageDates.format(millis, text, 0)) {
+                    throw new IOException("Timestamp out of range: " + millis);
+                }
+                return new String(text, 0, text.length, UTF8);
+            }
+            case TYPE_POINTS: {
+                int pointCount = (int) readVarint(block);
+                if (0 > pointCount || pointCount > block.remaining()) {
+                    throw new IOException("Point count " + pointCount + " exceeds the block");
+                }
+                StringBuilder sb = new StringBuilder(pointCount * 24);
+                long x = 0;
+                long y = 0;
+                for (int i = 0; i < pointCount; i++) {
+                    x = 0 == i ? unzigzag(readVarint(block)) : x + unzigzag(readVarint(block));
+                    y = 0 == i ? unzigzag(readVarint(block)) : y + unzigzag(readVarint(block));
+                    if (0 < i) {
+                        sb.append(';');
+                    }
+                    appendFixedPoint(sb, x);
+                    sb.append(',');
+                    appendFixedPoint(sb, y);
+                }
+                return sb.toString();
+            }
+            case TYPE_STRING:
+            default: {
+                return readString(block);
+            }
+        }
+    }
+    
+    private static void appendFixedPoint(StringBuilder sb, long value) {
+        if (0 > value) {
+            sb.append('-');
+            value = -value;
+        }
+        sb.append(value / FIXED_POINT_SCALE);
+        long fraction = value % FIXED_POINT_SCALE;
+        int decimals = FIXED_POINT_DECIMALS;
+        while (1 < decimals && 0 == fraction % 10) {
+            fraction /= 10;
+            decimals--;
+        }
+        sb.append('.');
+        String digits = Long.toString(fraction);
+        for (int i = digits.length(); i < decimals; i++) {
+            sb.append('0');
+        }
+        sb.append(digits);
+    }
+    
+    private static String readString(ByteBuffer block) throws IOException {
+        long header = readVarint(block);
+        switch ((int) (header & 3)) {
+            case STRING_LITERAL: {
+                return readLiteral(block, header >>> 2);
+            }
+            case STRING_COMMON: {
+                long index = header >>> 2;
+                if (COMMON_VALUES.length <= index) {
+                    throw new IOException("Unknown common value " + index);
+                }
+                return COMMON_VALUES[(int) index];
+            }
+            case STRING_UUID: {
+                return readUuid(block, (int) (header >>> 2));
+            }
+            default: {
+                throw new IOException("Unknown string form " + (header & 3));
+            }
+        }
+    }
+    
+    private static String readUuid(ByteBuffer block, int flags) {
+        char[] hex = 0 == (flags & UUID_UPPER_CASE) ? LOWER_HEX : UPPER_HEX;
+        boolean braces = 0 != (flags & UUID_BRACES);
+        StringBuilder sb = new StringBuilder(38);
+        if (braces) {
+            sb.append('{');
+        }
+        for (int i = 0; i < 16; i++) {
+            if (4 == i || 6 == i || 8 == i || 10 == i) {
+                sb.append('-');
+            }
+            int b = block.get() & 0xFF;
+            sb.append(hex[b >> 4]).append(hex[b & 0xF]);
+        }
+        if (braces) {
+            sb.append('}');
+        }
+        return sb.toString();
+    }
+    
+    private static String readLiteral(ByteBuffer block, long byteLength) throws IOException {
+        int length = (int) byteLength;
+        if (byteLength != length || 0 > length || length > block.remaining()) {
+            throw new IOException("String length " + length + " exceeds the block");
+        }
+        String value;
+        if (block.hasArray()) {
+            value = new String(block.array(), block.arrayOffset() + block.position(), length, UTF8);
+            block.position(block.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            block.get(bytes);
+            value = new String(bytes, UTF8);
+        }
+        return value;
+    }
+    
+    private static long readVarint(ByteBuffer block) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = block.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (0 == (b & 0x80)) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+    
+}
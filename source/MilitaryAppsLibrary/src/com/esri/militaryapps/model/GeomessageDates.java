@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+/**
+ * Allocation-free conversion between epoch milliseconds and the Geomessage
+ * timestamp format, yyyy-MM-dd HH:mm:ss in UTC, for the writer and binary codec.
+ */
+final class GeomessageDates {
+    
+    /**
+     * The length of a Geomessage timestamp with a four-digit year.
+     */
+    static final int TIMESTAMP_LENGTH = 19;
+    
+    /**
+     * The number of milliseconds in a day.
+     */
+    static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+    
+    private GeomessageDates() {
+    }
+    
+    /**
+     * Converts days since 1970-01-01 to a proleptic Gregorian date.
+     * @param days the number of days since 1970-01-01.
+     * @return the date as year * 10000 + month * 100 + day.
+     */
+    static long civilFromDays(long days) {
+        long z = days + 719468;
+        long era = (0 <= z ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthPrime = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthPrime + 2) / 5 + 1;
+        long month = monthPrime < 10 ? monthPrime + 3 : monthPrime - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+    
+    /**
+     * Converts a proleptic Gregorian date to days since 1970-01-01.
+     */
+    static long daysFromCivil(long year, long month, long day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (0 <= year ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+    
+    /**
+     * Parses a Geomessage timestamp with a four-digit year.
+     * @param text the text.
+     * @return the timestamp in milliseconds since the epoch, or Long.MIN_VALUE if
+     *         the text is not exactly a valid timestamp.
+     */
+    static long parse(CharSequence text) {
+        if (TIMESTAMP_LENGTH != text.length() || '-' != text.charAt(4) || '-' != text.charAt(7)
+                || ' ' != text.charAt(10) || ':' != text.charAt(13) || ':' != text.charAt(16)) {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        if (0 > year || 1 > month || 12 < month || 1 > day || 31 < day
+                || 0 > hour || 23 < hour || 0 > minute || 59 < minute || 0 > second || 59 < second) {
+            return Long.MIN_VALUE;
+        }
+        long days = daysFromCivil(year, month, day);
+        if (civilFromDays(days) != year * 10000L + month * 100 + day) {
+            //For example, February 30
+            return Long.MIN_VALUE;
+        }
+        return days * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * 1000L;
+    }
+    
+    private static int digits(CharSequence text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if ('0' > c || '9' < c) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+    
+    /**
+     * Formats a timestamp whose year has four digits.
+     * @param millis the timestamp in milliseconds since the epoch.
+     * @param out the array into which to write TIMESTAMP_LENGTH ASCII characters.
+     * @param offset the index at which to start writing.
+     * @return false, writing nothing, if the year does not have four digits.
+     */
+    static boolean format(long millis, byte[] out, int offset) {
+        long days = millis / MILLIS_PER_DAY;
+        long millisOfDay = millis % MILLIS_PER_DAY;
+        if (0 > millisOfDay) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+        long date = civilFromDays(days);
+        long year = date / 10000;
+        if (0 > year || 9999 < year) {
+            return false;
+        }
+        long seconds = millisOfDay / 1000;
+        putDigits(out, offset, year, 4);
+        out[offset + 4] = '-';
+        putDigits(out, offset + 5, (date / 100) % 100, 2);
+        out[offset + 7] = '-';
+        putDigits(out, offset + 8, date % 100, 2);
+        out[offset + 10] = ' ';
+        putDigits(out, offset + 11, seconds / 3600, 2);
+        out[offset + 13] = ':';
+        putDigits(out, offset + 14, (seconds / 60) % 60, 2);
+        out[offset + 16] = ':';
+        putDigits(out, offset + 17, seconds % 60, 2);
+        return true;
+    }
+    
+    private static void putDigits(byte[] out, int offset, long value, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            out[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+    }
+    
+}
@@ -0,0 +1,539 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.xml.sax.SAXException;
+
+/**
+ * A fast, thread-safe parser that reads Geomessages directly from UTF-8 encoded
+ * XML bytes. Unlike GeomessagesReader, it does not decode the bytes to a String
+ * first, uses no shared parser, and holds no lock, so any number of threads can
+ * use the same GeomessageParser at the same time.<br/>
+ * <br/>
+ * Each "geomessage" or "message" element becomes a Geomessage. Each element inside
+ * it that has text and no child elements becomes a property, except "_id", which
+ * becomes the Geomessage's ID. The parser handles comments, processing instructions,
+ * CDATA sections, character references, and the predefined entities, but not DTDs
+ * or custom entities.
+ */
+public class GeomessageParser {
+
+    /**
+     * Element names that are common in Geomessages. Parsed messages use these String
+     * instances as property names instead of allocating a new String per element.
+     */
+    private static final String[] KNOWN_NAMES = {
+        Geomessage.ID_FIELD_NAME,
+        Geomessage.TYPE_FIELD_NAME,
+        Geomessage.WKID_FIELD_NAME,
+        Geomessage.CONTROL_POINTS_FIELD_NAME,
+        Geomessage.ACTION_FIELD_NAME,
+        Geomessage.SIC_FIELD_NAME,
+        "uniquedesignation", "quantity", "direction", "type", "datetimevalid",
+        "datetimesubmitted", "datetimemodified", "speed", "owningunit", "status911",
+        "fuel_state", "rel_info", "color", "chemlight", "size", "activity", "location",
+        "unit", "equipment", "size_cat", "activity_cat", "unit_cat", "equip_cat",
+        "timeobserved", "additionalinformation"
+    };
+    private static final byte[][] KNOWN_NAME_BYTES = new byte[KNOWN_NAMES.length][];
+    static {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            KNOWN_NAME_BYTES[i] = asciiBytes(KNOWN_NAMES[i]);
+        }
+    }
+    private static final byte[] GEOMESSAGE_BYTES = asciiBytes("geomessage");
+    private static final byte[] MESSAGE_BYTES = asciiBytes("message");
+    private static final byte[] ID_BYTES = asciiBytes(Geomessage.ID_FIELD_NAME);
+
+    private static final ThreadLocal<byte[]> copyBuffers = new ThreadLocal<byte[]>();
+    private static final ThreadLocal<char[]> textBuffers = new ThreadLocal<char[]>() {
+
+        @Override
+        protected char[] initialValue() {
+            return new char[256];
+        }
+
+    };
+
+    private static byte[] asciiBytes(String string) {
+        byte[] bytes = new byte[string.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) string.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Parses UTF-8 encoded Geomessage XML.
+     * @param data the bytes.
+     * @param offset the index of the first byte to parse.
+     * @param length the number of bytes to parse.
+     * @return a new list of the Geomessages found, in document order.
+     * @throws SAXException if the bytes are not well-formed XML.
+     */
+    public List<Geomessage> parse(byte[] data, int offset, int length) throws SAXException {
+        return new Scanner(data, offset, offset + length).parseDocument();
+    }
+
+    /**
+     * Parses UTF-8 encoded Geomessage XML from the remaining bytes of a buffer. The
+     * buffer's position is not changed.
+     * @param buffer the buffer, which may be direct.
+     * @return a new list of the Geomessages found, in document order.
+     * @throws SAXException if the bytes are not well-formed XML.
+     */
+    public List<Geomessage> parse(ByteBuffer buffer) throws SAXException {
+        if (buffer.hasArray()) {
+            return parse(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        int length = buffer.remaining();
+        byte[] copy = copyBuffers.get();
+        if (null == copy || copy.length < length) {
+            copy = new byte[Math.max(length, 8192)];
+            copyBuffers.set(copy);
+        }
+        buffer.duplicate().get(copy, 0, length);
+        return parse(copy, 0, length);
+    }
+
+    /**
+     * The state of one parse. The element stack holds the offset and length of
+     * each open element's name, so that names are only turned into Strings when
+     * they become property names.
+     */
+    private static class Scanner {
+
+        private final byte[] data;
+        private final int end;
+        private final ArrayList<Geomessage> messages = new ArrayList<Geomessage>();
+
+        private int pos;
+        private int[] nameStarts = new int[16];
+        private int[] nameLengths = new int[16];
+        private int depth = 0;
+        private boolean rootSeen = false;
+
+        private Geomessage message = null;
+        private int messageDepth = -1;
+        private boolean leaf = false;
+        private char[] text = textBuffers.get();
+        private int textLength = 0;
+
+        Scanner(byte[] data, int offset, int end) {
+            this.data = data;
+            this.pos = offset;
+            this.end = end;
+        }
+
+        List<Geomessage> parseDocument() throws SAXException {
+            //Skip a UTF-8 byte order mark
+            if (pos + 2 < end && (data[pos] & 0xFF) == 0xEF && (data[pos + 1] & 0xFF) == 0xBB && (data[pos + 2] & 0xFF) == 0xBF) {
+                pos += 3;
+            }
+            while (pos < end) {
+                byte b = data[pos];
+                if ('<' == b) {
+                    parseMarkup();
+                } else if (0 < depth) {
+                    if ('&' == b) {
+                        parseReference();
+                    } else {
+                        appendUtf8();
+                    }
+                } else if (isWhitespace(b)) {
+                    pos++;
+                } else {
+                    throw new SAXException("Content is not allowed outside the root element");
+                }
+            }
+            if (0 < depth) {
+                throw new SAXException("XML document structures must start and end within the same entity");
+            }
+            if (!rootSeen) {
+                throw new SAXException("Premature end of file");
+            }
+            return messages;
+        }
+
+        private void parseMarkup() throws SAXException {
+            if (startsWith("<!--")) {
+                pos = indexOf("-->", pos + 4) + 3;
+            } else if (startsWith("<![CDATA[")) {
+                if (0 == depth) {
+                    throw new SAXException("CDATA is not allowed outside the root element");
+                }
+                int close = indexOf("]]>", pos + 9);
+                pos += 9;
+                while (pos < close) {
+                    appendUtf8();
+                }
+                pos = close + 3;
+            } else if (startsWith("<?")) {
+                pos = indexOf("?>", pos + 2) + 2;
+            } else if (startsWith("<!")) {
+                skipDeclaration();
+            } else if (startsWith("</")) {
+                parseEndTag();
+            } else {
+                parseStartTag();
+            }
+        }
+
+        private void parseStartTag() throws SAXException {
+            if (0 == depth && rootSeen) {
+                throw new SAXException("Markup following the root element must be well-formed");
+            }
+            pos++;
+            int nameStart = pos;
+            while (pos < end && !isWhitespace(data[pos]) && '>' != data[pos] && '/' != data[pos]) {
+                pos++;
+            }
+            int nameLength = pos - nameStart;
+            if (0 == nameLength) {
+                throw new SAXException("Element name expected");
+            }
+            //Skip attributes, taking care with quoted values that may contain '>'
+            boolean selfClosing = false;
+            while (true) {
+                if (pos >= end) {
+                    throw new SAXException("Unterminated start tag");
+                }
+                byte b = data[pos];
+                if ('"' == b || '\'' == b) {
+                    int close = indexOf(b, pos + 1);
+                    pos = close + 1;
+                } else if ('>' == b) {
+                    pos++;
+                    break;
+                } else if ('/' == b && pos + 1 < end && '>' == data[pos + 1]) {
+                    pos += 2;
+                    selfClosing = true;
+                    break;
+                } else {
+                    pos++;
+                }
+            }
+            rootSeen = true;
+            startElement(nameStart, nameLength);
+            if (selfClosing) {
+                endElement();
+            }
+        }
+
+        private void startElement(int nameStart, int nameLength) {
+            if (depth == nameStarts.length) {
+                int[] newStarts = new int[depth * 2];
+                int[] newLengths = new int[depth * 2];
+                System.arraycopy(nameStarts, 0, newStarts, 0, depth);
+                System.arraycopy(nameLengths, 0, newLengths, 0, depth);
+                nameStarts = newStarts;
+                nameLengths = newLengths;
+            }
+            nameStarts[depth] = nameStart;
+            nameLengths[depth] = nameLength;
+            depth++;
+            if (null == message) {
+                if (nameEqualsIgnoreCase(nameStart, nameLength, GEOMESSAGE_BYTES)
+                        || nameEqualsIgnoreCase(nameStart, nameLength, MESSAGE_BYTES)) {
+                    message = new Geomessage();
+                    messages.add(message);
+                    messageDepth = depth;
+                }
+            }
+            leaf = true;
+            textLength = 0;
+        }
+
+        private void parseEndTag() throws SAXException {
+            pos += 2;
+            int nameStart = pos;
+            while (pos < end && !isWhitespace(data[pos]) && '>' != data[pos]) {
+                pos++;
+            }
+            int nameLength = pos - nameStart;
+            pos = indexOf((byte) '>', pos) + 1;
+            if (0 == depth || !regionsEqual(nameStart, nameLength, nameStarts[depth - 1], nameLengths[depth - 1])) {
+                throw new SAXException("End tag does not match start tag");
+            }
+            endElement();
+        }
+
+        private void endElement() {
+            int nameStart = nameStarts[depth - 1];
+            int nameLength = nameLengths[depth - 1];
+            if (null != message) {
+                if (depth == messageDepth) {
+                    message = null;
+                    messageDepth = -1;
+                } else if (leaf && 0 < textLength) {
+                    String value = new String(text, 0, textLength);
+                    if (nameEqualsIgnoreCase(nameStart, nameLength, ID_BYTES)) {
+                        message.setId(value);
+                    } else {
+                        message.setProperty(toName(nameStart, nameLength), value);
+                    }
+                }
+            }
+            depth--;
+            leaf = false;
+            textLength = 0;
+        }
+
+        private void skipDeclaration() throws SAXException {
+            //e.g. <!DOCTYPE ...>, which may contain a bracketed internal subset
+            int brackets = 0;
+            pos += 2;
+            while (pos < end) {
+                byte b = data[pos++];
+                if ('[' == b) {
+                    brackets++;
+                } else if (']' == b) {
+                    brackets--;
+                } else if ('>' == b && 0 >= brackets) {
+                    return;
+                }
+            }
+            throw new SAXException("Unterminated declaration");
+        }
+
+        private void parseReference() throws SAXException {
+            int semicolon = indexOf((byte) ';', pos + 1);
+            int start = pos + 1;
+            int length = semicolon - start;
+            if (0 < length && '#' == data[start]) {
+                int codePoint = 0;
+                int radix = 10;
+                int i = start + 1;
+                if (i < semicolon && ('x' == data[i] || 'X' == data[i])) {
+                    radix = 16;
+                    i++;
+                }
+                if (i == semicolon) {
+                    throw new SAXException("Invalid character reference");
+                }
+                for (; i < semicolon; i++) {
+                    int digit = Character.digit(data[i], radix);
+                    if (0 > digit) {
+                        throw new SAXException("Invalid character reference");
+                    }
+                    codePoint = codePoint * radix + digit;
+                    if (Character.MAX_CODE_POINT < codePoint) {
+                        throw new SAXException("Invalid character reference");
+                    }
+                }
+                appendCodePoint(codePoint);
+            } else if (regionEquals(start, length, "lt")) {
+                appendChar('<');
+            } else if (regionEquals(start, length, "gt")) {
+                appendChar('>');
+            } else if (regionEquals(start, length, "amp")) {
+                appendChar('&');
+            } else if (regionEquals(start, length, "quot")) {
+                appendChar('"');
+            } else if (regionEquals(start, length, "apos")) {
+                appendChar('\'');
+            } else {
+                throw new SAXException("Undeclared entity");
+            }
+            pos = semicolon + 1;
+        }
+
+        /**
+         * Decodes one UTF-8 character at pos and appends it to the text buffer.
+         * Malformed sequences become U+FFFD.
+         */
+        private void appendUtf8() {
+            int b = data[pos] & 0xFF;
+            if (b < 0x80) {
+                pos++;
+                appendChar((char) b);
+                return;
+            }
+            int extraBytes;
+            int codePoint;
+            if (0xC0 == (b & 0xE0)) {
+                extraBytes = 1;
+                codePoint = b & 0x1F;
+            } else if (0xE0 == (b & 0xF0)) {
+                extraBytes = 2;
+                codePoint = b & 0x0F;
+            } else if (0xF0 == (b & 0xF8)) {
+                extraBytes = 3;
+                codePoint = b & 0x07;
+            } else {
+                pos++;
+                appendChar('\uFFFD');
+                return;
+            }
+            pos++;
+            for (int i = 0; i < extraBytes; i++) {
+                if (pos >= end || 0x80 != (data[pos] & 0xC0)) {
+                    appendChar('\uFFFD');
+                    return;
+                }
+                codePoint = (codePoint << 6) | (data[pos++] & 0x3F);
+            }
+            appendCodePoint(codePoint);
+        }
+
+        private void appendCodePoint(int codePoint) {
+            if (Character.MIN_SUPPLEMENTARY_CODE_POINT <= codePoint) {
+                codePoint -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+                appendChar((char) (0xD800 + (codePoint >>> 10)));
+                appendChar((char) (0xDC00 + (codePoint & 0x3FF)));
+            } else {
+                appendChar((char) codePoint);
+            }
+        }
+
+        private void appendChar(char c) {
+            if (textLength == text.length) {
+                char[] newText = new char[text.length * 2];
+                System.arraycopy(text, 0, newText, 0, textLength);
+                text = newText;
+                textBuffers.set(newText);
+            }
+            text[textLength++] = c;
+        }
+
+        private String toName(int nameStart, int nameLength) {
+            for (int i = 0; i < KNOWN_NAME_BYTES.length; i++) {
+                byte[] known = KNOWN_NAME_BYTES[i];
+                if (known.length == nameLength && regionEquals(nameStart, known)) {
+                    return KNOWN_NAMES[i];
+                }
+            }
+            char[] chars = new char[nameLength];
+            boolean ascii = true;
+            for (int i = 0; i < nameLength; i++) {
+                int b = data[nameStart + i];
+                if (0 > b) {
+                    ascii = false;
+                    break;
+                }
+                chars[i] = (char) b;
+            }
+            if (ascii) {
+                return new String(chars);
+            }
+            //Rare: a non-ASCII element name
+            int savedPos = pos;
+            int savedTextLength = textLength;
+            pos = nameStart;
+            while (pos < nameStart + nameLength) {
+                appendUtf8();
+            }
+            String name = new String(text, savedTextLength, textLength - savedTextLength);
+            pos = savedPos;
+            textLength = savedTextLength;
+            return name;
+        }
+
+        private boolean startsWith(String prefix) {
+            int length = prefix.length();
+            if (pos + length > end) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data[pos + i] != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int indexOf(String target, int from) throws SAXException {
+            int length = target.length();
+            outer:
+            for (int i = from; i + length <= end; i++) {
+                for (int j = 0; j < length; j++) {
+                    if (data[i + j] != target.charAt(j)) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            throw new SAXException("Expected '" + target + "'");
+        }
+
+        private int indexOf(byte target, int from) throws SAXException {
+            for (int i = from; i < end; i++) {
+                if (target == data[i]) {
+                    return i;
+                }
+            }
+            throw new SAXException("Expected '" + (char) target + "'");
+        }
+
+        private boolean regionEquals(int start, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (data[start + i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean regionEquals(int start, int length, String string) {
+            if (length != string.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data[start + i] != string.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean regionsEqual(int start1, int length1, int start2, int length2) {
+            if (length1 != length2) {
+                return false;
+            }
+            for (int i = 0; i < length1; i++) {
+                if (data[start1 + i] != data[start2 + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean nameEqualsIgnoreCase(int nameStart, int nameLength, byte[] lowerCaseName) {
+            if (nameLength != lowerCaseName.length) {
+                return false;
+            }
+            for (int i = 0; i < nameLength; i++) {
+                byte b = data[nameStart + i];
+                if ('A' <= b && 'Z' >= b) {
+                    b += 'a' - 'A';
+                }
+                if (b != lowerCaseName[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return ' ' == b || '\n' == b || '\r' == b || '\t' == b;
+        }
+
+    }
+
+}
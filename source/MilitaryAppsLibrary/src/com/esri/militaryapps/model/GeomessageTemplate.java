@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The static part of a kind of Geomessage, serialized once so that it can be
+ * copied into each outgoing message. For example, a vehicle's position reports
+ * all have the same type, ID, symbol ID code, and unique designation, and differ
+ * only in location, time, and status. A template holds the unchanging elements
+ * as encoded bytes; GeomessageWriter.startGeomessage(GeomessageTemplate) copies
+ * them into the writer's buffer, after which the caller writes the variable
+ * elements. Templates are immutable and may be shared between threads.
+ * @see GeomessageWriter#startGeomessage(GeomessageTemplate)
+ */
+public class GeomessageTemplate {
+    
+    private final byte[] startBytes;
+    
+    /**
+     * Creates a new GeomessageTemplate.
+     * @param staticElements the element names and text of the elements that are
+     *                       the same in every message. Use a LinkedHashMap to
+     *                       control the order of the elements. Elements whose
+     *                       text is null are written as empty elements.
+     */
+    public GeomessageTemplate(Map<String, String> staticElements) {
+        GeomessageWriter writer = new GeomessageWriter(256);
+        writer.startGeomessage();
+        for (Entry<String, String> entry : staticElements.entrySet()) {
+            writer.writeElement(entry.getKey(), entry.getValue());
+        }
+        startBytes = writer.toByteArray();
+    }
+    
+    /**
+     * @return the encoded start tag and static elements. Do not modify the array.
+     */
+    byte[] getStartBytes() {
+        return startBytes;
+    }
+    
+    /**
+     * @return the number of bytes this template contributes to each message.
+     */
+    public int getLength() {
+        return startBytes.length;
+    }
+    
+    /**
+     * @return the start tag and static elements as XML.
+     */
+    @Override
+    public String toString() {
+        GeomessageWriter writer = new GeomessageWriter(startBytes.length);
+        writer.writeRaw(startBytes);
+        return writer.toString();
+    }
+    
+}
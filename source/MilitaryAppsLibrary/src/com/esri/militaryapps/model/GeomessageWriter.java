@@ -0,0 +1,460 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Writes Geomessage XML as UTF-8 bytes straight into a reusable buffer, without
+ * building a DOM or running a Transformer. A typical use looks like this:<br/>
+ * <br/>
+ * <code>
+ * writer.reset().startGeomessages().startGeomessage();<br/>
+ * writer.writeElement(Geomessage.TYPE_FIELD_NAME, "position_report");<br/>
+ * writer.writeElement("datetimesubmitted", new Date());<br/>
+ * writer.endGeomessage().endGeomessages();<br/>
+ * messageController.sendMessage(writer.getBuffer(), 0, writer.size());
+ * </code><br/>
+ * <br/>
+ * Once its buffer has grown large enough, a GeomessageWriter writes strings,
+ * integers, dates, and most coordinates without allocating. A GeomessageWriter is
+ * not thread-safe; give each thread its own writer, for example by calling
+ * getThreadLocalInstance().
+ */
+public class GeomessageWriter {
+    
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    //Doubles print with up to this many significant digits and fraction digits
+    private static final int MAX_SIGNIFICANT_DIGITS = 15;
+    private static final int MAX_FRACTION_DIGITS = 10;
+    
+    private static final ThreadLocal<GeomessageWriter> threadLocalWriters = new ThreadLocal<GeomessageWriter>() {
+
+        @Override
+        protected GeomessageWriter initialValue() {
+            return new GeomessageWriter();
+        }
+        
+    };
+    
+    private byte[] buffer;
+    private int size = 0;
+    
+    /**
+     * Creates a new GeomessageWriter with a default initial capacity.
+     */
+    public GeomessageWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Creates a new GeomessageWriter.
+     * @param initialCapacity the initial buffer size in bytes. The buffer grows
+     *                        as needed.
+     */
+    public GeomessageWriter(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+    
+    /**
+     * Returns a GeomessageWriter that belongs to the calling thread, creating it
+     * the first time the thread calls this method.
+     * @return the calling thread's GeomessageWriter.
+     */
+    public static GeomessageWriter getThreadLocalInstance() {
+        return threadLocalWriters.get();
+    }
+    
+    /**
+     * Discards everything written so far, keeping the buffer for reuse.
+     * @return this writer.
+     */
+    public GeomessageWriter reset() {
+        size = 0;
+        return this;
+    }
+    
+    /**
+     * Writes a &lt;geomessages&gt; start tag.
+     * @return this writer.
+     */
+    public GeomessageWriter startGeomessages() {
+        writeAscii("<geomessages>");
+        return this;
+    }
+    
+    /**
+     * Writes a &lt;/geomessages&gt; end tag.
+     * @return this writer.
+     */
+    public GeomessageWriter endGeomessages() {
+        writeAscii("</geomessages>");
+        return this;
+    }
+    
+    /**
+     * Writes a &lt;geomessage v="1.0"&gt; start tag.
+     * @return this writer.
+     */
+    public GeomessageWriter startGeomessage() {
+        writeAscii("<geomessage v=\"1.0\">");
+        return this;
+    }
+    
+    /**
+     * Writes a &lt;geomessage v="1.0"&gt; start tag followed by a template's
+     * static elements, which the template serialized when it was created. Write
+     * the variable elements next and then call endGeomessage().
+     * @param template the template.
+     * @return this writer.
+     */
+    public GeomessageWriter startGeomessage(GeomessageTemplate template) {
+        writeRaw(template.getStartBytes());
+        return this;
+    }
+    
+    /**
+     * Writes a &lt;/geomessage&gt; end tag.
+     * @return this writer.
+     */
+    public GeomessageWriter endGeomessage() {
+        writeAscii("</geomessage>");
+        return this;
+    }
+    
+    /**
+     * Writes a text element, escaping the text as necessary.
+     * @param elementName the element name, which must be a valid XML name.
+     * @param elementText the text. If null, an empty element is written.
+     * @return this writer.
+     */
+    public GeomessageWriter writeElement(String elementName, String elementText) {
+        writeStartTag(elementName);
+        if (null != elementText) {
+            writeText(elementText);
+        }
+        writeEndTag(elementName);
+        return this;
+    }
+    
+    /**
+     * Writes a text element containing an integer.
+     * @param elementName the element name, which must be a valid XML name.
+     * @param value the value.
+     * @return this writer.
+     */
+    public GeomessageWriter writeElement(String elementName, long value) {
+        writeStartTag(elementName);
+        writeLong(value);
+        writeEndTag(elementName);
+        return this;
+    }
+    
+    /**
+     * Writes a text element containing a number.
+     * @param elementName the element name, which must be a valid XML name.
+     * @param value the value.
+     * @return this writer.
+     */
+    public GeomessageWriter writeElement(String elementName, double value) {
+        writeStartTag(elementName);
+        writeDouble(value);
+        writeEndTag(elementName);
+        return this;
+    }
+    
+    /**
+     * Writes a text element containing a UTC timestamp in the Geomessage date
+     * format, i.e. the format of Utilities.DATE_FORMAT_GEOMESSAGE.
+     * @param elementName the element name, which must be a valid XML name.
+     * @param date the timestamp. If null, an empty element is written.
+     * @return this writer.
+     */
+    public GeomessageWriter writeElement(String elementName, Date date) {
+        return null == date ? writeElement(elementName, (String) null) : writeDateElement(elementName, date.getTime());
+    }
+    
+    /**
+     * Writes a text element containing a UTC timestamp in the Geomessage date
+     * format, i.e. the format of Utilities.DATE_FORMAT_GEOMESSAGE.
+     * @param elementName the element name, which must be a valid XML name.
+     * @param millis the timestamp, in milliseconds since the epoch.
+     * @return this writer.
+     */
+    public GeomessageWriter writeDateElement(String elementName, long millis) {
+        writeStartTag(elementName);
+        writeDate(millis);
+        writeEndTag(elementName);
+        return this;
+    }
+    
+    /**
+     * Writes a control points element containing a single point, i.e. "x,y".
+     * @param x the X-coordinate.
+     * @param y the Y-coordinate.
+     * @return this writer.
+     */
+    public GeomessageWriter writeControlPoint(double x, double y) {
+        writeStartTag(Geomessage.CONTROL_POINTS_FIELD_NAME);
+        writeDouble(x);
+        writeByte(',');
+        writeDouble(y);
+        writeEndTag(Geomessage.CONTROL_POINTS_FIELD_NAME);
+        return this;
+    }
+    
+    /**
+     * Returns the writer's buffer. Only the first size() bytes are valid, and the
+     * buffer's contents change when this writer is reset and reused.
+     * @return the writer's buffer.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+    
+    /**
+     * @return the number of bytes written since the last reset.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * @return a copy of the bytes written since the last reset.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        System.arraycopy(buffer, 0, bytes, 0, size);
+        return bytes;
+    }
+    
+    /**
+     * Writes the bytes written since the last reset to a stream.
+     * @param out the stream.
+     * @throws IOException if the stream throws an IOException.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+    
+    /**
+     * @return the XML written since the last reset, as a string.
+     */
+    @Override
+    public String toString() {
+        try {
+            return new String(buffer, 0, size, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            //Every JVM supports UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private void writeStartTag(String elementName) {
+        writeByte('<');
+        writeAscii(elementName);
+        writeByte('>');
+    }
+    
+    private void writeEndTag(String elementName) {
+        writeByte('<');
+        writeByte('/');
+        writeAscii(elementName);
+        writeByte('>');
+    }
+    
+    private void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + additional)];
+            System.arraycopy(buffer, 0, newBuffer, 0, size);
+            buffer = newBuffer;
+        }
+    }
+    
+    /**
+     * Copies bytes that are already encoded and escaped.
+     */
+    void writeRaw(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+    
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+    
+    /**
+     * Writes markup or an element name. Non-ASCII characters are encoded as UTF-8
+     * but not escaped.
+     */
+    private void writeAscii(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else {
+                i = writeUtf8(s, i);
+                ensureCapacity(length - i);
+            }
+        }
+    }
+    
+    private void writeText(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&': writeAscii("&amp;"); break;
+                case '<': writeAscii("&lt;"); break;
+                case '>': writeAscii("&gt;"); break;
+                case '\r': writeAscii("&#13;"); break;
+                default: {
+                    if (c < 0x80) {
+                        if (c >= 0x20 || '\t' == c || '\n' == c) {
+                            writeByte(c);
+                        }
+                        //Other control characters are not allowed in XML 1.0
+                    } else {
+                        i = writeUtf8(s, i);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Encodes the non-ASCII character at index i, which may be the first half of a
+     * surrogate pair, as UTF-8.
+     * @return the index of the last char consumed.
+     */
+    private int writeUtf8(String s, int i) {
+        ensureCapacity(4);
+        char c = s.charAt(i);
+        if (c < 0x800) {
+            buffer[size++] = (byte) (0xC0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+            buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            //An unpaired surrogate cannot be encoded
+            buffer[size++] = '?';
+        } else {
+            buffer[size++] = (byte) (0xE0 | (c >> 12));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+    
+    private void writeLong(long value) {
+        if (Long.MIN_VALUE == value) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensureCapacity(20);
+        if (0 > value) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        writeDigits(value, digitCount(value));
+    }
+    
+    private static int digitCount(long value) {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+    
+    /**
+     * Writes a non-negative value with exactly the given number of digits,
+     * padding with leading zeros.
+     */
+    private void writeDigits(long value, int digits) {
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        size += digits;
+    }
+    
+    /**
+     * Writes a double in plain decimal notation with up to 15 significant digits.
+     * Values that would need an exponent fall back to Double.toString.
+     */
+    private void writeDouble(double value) {
+        double abs = Math.abs(value);
+        if (Double.isNaN(value) || Double.isInfinite(value) || 1e15 <= abs || (0 < abs && 1e-4 > abs)) {
+            writeAscii(Double.toString(value));
+            return;
+        }
+        int integerDigits = 1 > abs ? 1 : digitCount((long) abs);
+        int fractionDigits = Math.min(MAX_FRACTION_DIGITS, MAX_SIGNIFICANT_DIGITS - integerDigits);
+        long scaled = Math.round(abs * POWERS_OF_TEN[fractionDigits]);
+        long integerPart = scaled / POWERS_OF_TEN[fractionDigits];
+        long fractionPart = scaled % POWERS_OF_TEN[fractionDigits];
+        while (1 < fractionDigits && 0 == fractionPart % 10) {
+            fractionPart /= 10;
+            fractionDigits--;
+        }
+        ensureCapacity(1);
+        if (0 > value && 0 != scaled) {
+            buffer[size++] = '-';
+        }
+        writeDigits(integerPart, digitCount(integerPart));
+        writeByte('.');
+        writeDigits(fractionPart, Math.max(1, fractionDigits));
+    }
+    
+    /**
+     * Writes a UTC timestamp as yyyy-MM-dd HH:mm:ss.
+     */
+    private void writeDate(long millis) {
+        ensureCapacity(GeomessageDates.TIMESTAMP_LENGTH);
+        if (GeomessageDates.format(millis, buffer, size)) {
+            size += GeomessageDates.TIMESTAMP_LENGTH;
+        } else {
+            //A year without four digits is rare enough to format the slow way
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            writeAscii(format.format(new Date(millis)));
+        }
+    }
+    
+}
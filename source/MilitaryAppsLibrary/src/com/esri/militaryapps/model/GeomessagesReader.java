@@ -15,12 +15,19 @@
  ******************************************************************************/
 package com.esri.militaryapps.model;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -30,15 +37,23 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 /**
- * A class that knows how to read geomessages and return Geomessage objects.
+ * A class that knows how to read geomessages and return Geomessage objects. Each
+ * GeomessagesReader uses its own SAX parser and parses one document at a time. To
+ * parse on several threads, give each thread its own reader, for example by calling
+ * getThreadLocalInstance(), or use parseMessagesInParallel to split a large file
+ * across threads. To parse datagrams or other UTF-8 bytes, use GeomessageParser.
+ * @see GeomessageParser
  */
 public class GeomessagesReader extends DefaultHandler {
     
+    private static final ThreadLocal<GeomessagesReader> threadLocalReaders = new ThreadLocal<GeomessagesReader>();
+    
     private final SAXParser saxParser;
 
     private boolean readingId = false;
     private String elementName = null;
-    private final ArrayList<Geomessage> messages = new ArrayList<Geomessage>();
+    private final StringBuilder charsBuffer = new StringBuilder();
+    private ArrayList<Geomessage> messages = new ArrayList<Geomessage>();
     private Geomessage message = null;
     private String version = null;
 
@@ -52,6 +67,23 @@ public class GeomessagesReader extends DefaultHandler {
         saxParser = SAXParserFactory.newInstance().newSAXParser();
     }
     
+    /**
+     * Returns a GeomessagesReader that belongs to the calling thread, creating it
+     * the first time the thread calls this method. Because no other thread uses the
+     * returned reader, its parse methods never wait for a lock.
+     * @return the calling thread's GeomessagesReader.
+     * @throws ParserConfigurationException
+     * @throws SAXException 
+     */
+    public static GeomessagesReader getThreadLocalInstance() throws ParserConfigurationException, SAXException {
+        GeomessagesReader reader = threadLocalReaders.get();
+        if (null == reader) {
+            reader = new GeomessagesReader();
+            threadLocalReaders.set(reader);
+        }
+        return reader;
+    }
+    
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
         if ("message".equalsIgnoreCase(qName) || "geomessage".equalsIgnoreCase(qName)) {
@@ -62,22 +94,28 @@ public class GeomessagesReader extends DefaultHandler {
             readingId = true;
         }
         elementName = qName;
+        charsBuffer.setLength(0);
     }
 
     @Override
     public void characters(char[] ch, int start, int length) throws SAXException {
-        String charString = new String(ch, start, length);
-        if (null != message) {
-            if (readingId) {
-                message.setId(charString);
-            } else if (null != elementName) {
-                message.setProperty(elementName, charString);
-            }
+        //The parser may split an element's text across several calls
+        if (null != message && null != elementName) {
+            charsBuffer.append(ch, start, length);
         }
     }
 
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (null != message && null != elementName && 0 < charsBuffer.length()) {
+            String charString = charsBuffer.toString();
+            if (readingId) {
+                message.setId(charString);
+            } else {
+                message.setProperty(elementName, charString);
+            }
+        }
+        charsBuffer.setLength(0);
         if (Geomessage.ID_FIELD_NAME.equalsIgnoreCase(qName)) {
             readingId = false;
         } else if ("message".equalsIgnoreCase(qName) || "geomessage".equalsIgnoreCase(qName)) {
@@ -89,33 +127,247 @@ public class GeomessagesReader extends DefaultHandler {
     /**
      * Parses an XML file of messages and returns a list of messages.
      * @param xmlMessageFile the XML message file.
-     * @return a list of messages.
+     * @return a new list of messages, which later calls do not modify.
      * @throws IOException
      * @throws SAXException
      */
     public List<Geomessage> parseMessages(File xmlMessageFile) throws IOException, SAXException {
-        synchronized (saxParser) {
-            messages.clear();
-            message = null;
-            saxParser.parse(new FileInputStream(xmlMessageFile), this);
-            return messages;
+        FileInputStream in = new FileInputStream(xmlMessageFile);
+        try {
+            return parseMessages(in);
+        } finally {
+            in.close();
         }
     }
 
     /**
      * Parses an XML string of messages and returns a list of messages.
      * @param xmlMessages  the XML message string.
-     * @return a list of messages.
+     * @return a new list of messages, which later calls do not modify.
      * @throws IOException
      * @throws SAXException
      */
     public List<Geomessage> parseMessages(String xmlMessages) throws IOException, SAXException {
         synchronized (saxParser) {
-            messages.clear();
+            messages = new ArrayList<Geomessage>();
             message = null;
             saxParser.parse(new InputSource(new StringReader(xmlMessages)), this);
             return messages;
         }
     }
     
+    /**
+     * Parses an XML stream of messages and returns a list of messages. This method
+     * does not close the stream.
+     * @param xmlMessages the XML message stream.
+     * @return a new list of messages, which later calls do not modify.
+     * @throws IOException
+     * @throws SAXException
+     */
+    public List<Geomessage> parseMessages(InputStream xmlMessages) throws IOException, SAXException {
+        synchronized (saxParser) {
+            messages = new ArrayList<Geomessage>();
+            message = null;
+            saxParser.parse(xmlMessages, this);
+            return messages;
+        }
+    }
+    
+    /**
+     * Parses a large XML file of messages by splitting it into chunks, each of which
+     * contains whole message elements, and parsing the chunks concurrently with
+     * each executor thread's own GeomessagesReader.
+     * @param xmlMessageFile the XML message file.
+     * @param executor the executor that parses the chunks.
+     * @param chunkCount the number of chunks into which to split the file. Usually
+     *                   this is the number of threads in the executor.
+     * @return a new list of messages, in file order.
+     * @throws IOException if the file cannot be read.
+     * @throws SAXException if a chunk cannot be parsed.
+     * @throws InterruptedException if interrupted while waiting for the chunks.
+     */
+    public static List<Geomessage> parseMessagesInParallel(File xmlMessageFile, ExecutorService executor, int chunkCount)
+            throws IOException, SAXException, InterruptedException {
+        final byte[] bytes = readFully(xmlMessageFile);
+        
+        //Each chunk becomes its own document: the prolog and root start tag, some
+        //whole messages, and the root end tag.
+        final int bodyStart = findRootContentStart(bytes);
+        final int bodyEnd = lastIndexOf(bytes, "</", bytes.length);
+        if (0 > bodyStart || bodyEnd < bodyStart) {
+            return getThreadLocalReader().parseMessages(new ByteArrayInputStream(bytes));
+        }
+        ArrayList<Integer> splits = new ArrayList<Integer>();
+        splits.add(bodyStart);
+        int chunkLength = (bodyEnd - bodyStart) / Math.max(1, chunkCount);
+        for (int i = 1; i < chunkCount; i++) {
+            int split = findMessageEnd(bytes, Math.max(splits.get(splits.size() - 1), bodyStart + i * chunkLength), bodyEnd);
+            if (0 > split) {
+                break;
+            }
+            if (split > splits.get(splits.size() - 1)) {
+                splits.add(split);
+            }
+        }
+        splits.add(bodyEnd);
+        
+        ArrayList<Future<List<Geomessage>>> futures = new ArrayList<Future<List<Geomessage>>>();
+        for (int i = 0; i < splits.size() - 1; i++) {
+            final int chunkStart = splits.get(i);
+            final int chunkEnd = splits.get(i + 1);
+            futures.add(executor.submit(new Callable<List<Geomessage>>() {
+
+                @Override
+                public List<Geomessage> call() throws Exception {
+                    InputStream chunk = new SequenceInputStream(
+                            new ByteArrayInputStream(bytes, 0, bodyStart),
+                            new SequenceInputStream(
+                                new ByteArrayInputStream(bytes, chunkStart, chunkEnd - chunkStart),
+                                new ByteArrayInputStream(bytes, bodyEnd, bytes.length - bodyEnd)));
+                    return getThreadLocalReader().parseMessages(chunk);
+                }
+
+            }));
+        }
+        
+        ArrayList<Geomessage> allMessages = new ArrayList<Geomessage>();
+        for (Future<List<Geomessage>> future : futures) {
+            try {
+                allMessages.addAll(future.get());
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof SAXException) {
+                    throw (SAXException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else {
+                    throw new SAXException(cause instanceof Exception ? (Exception) cause : ee);
+                }
+            }
+        }
+        return allMessages;
+    }
+    
+    private static GeomessagesReader getThreadLocalReader() throws SAXException {
+        try {
+            return getThreadLocalInstance();
+        } catch (ParserConfigurationException ex) {
+            throw new SAXException(ex);
+        }
+    }
+    
+    private static byte[] readFully(File file) throws IOException {
+        long length = file.length();
+        if (Integer.MAX_VALUE < length) {
+            throw new IOException("File too large: " + file);
+        }
+        byte[] bytes = new byte[(int) length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int count;
+            while (offset < bytes.length && -1 != (count = in.read(bytes, offset, bytes.length - offset))) {
+                offset += count;
+            }
+            if (offset < bytes.length) {
+                byte[] shorter = new byte[offset];
+                System.arraycopy(bytes, 0, shorter, 0, offset);
+                bytes = shorter;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+    
+    /**
+     * Returns the index just after the root element's start tag, skipping any
+     * XML declaration, processing instructions, comments, and DOCTYPE, or -1 if
+     * there is no root start tag.
+     */
+    private static int findRootContentStart(byte[] bytes) {
+        int i = 0;
+        while (i < bytes.length) {
+            if ('<' != bytes[i]) {
+                i++;
+            } else if (i + 1 < bytes.length && ('?' == bytes[i + 1] || '!' == bytes[i + 1])) {
+                String terminator = startsWith(bytes, i, "<!--") ? "-->" : ">";
+                int close = indexOf(bytes, terminator, i + 2);
+                if (0 > close) {
+                    return -1;
+                }
+                i = close + terminator.length();
+            } else {
+                int close = indexOf(bytes, ">", i);
+                return 0 > close ? -1 : close + 1;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the index just after the first message end tag at or after from,
+     * or -1 if there is none before limit.
+     */
+    private static int findMessageEnd(byte[] bytes, int from, int limit) {
+        int i = from;
+        while (true) {
+            i = indexOf(bytes, "</", i);
+            if (0 > i || i >= limit) {
+                return -1;
+            }
+            int nameStart = i + 2;
+            if (startsWithIgnoreCase(bytes, nameStart, "geomessage") || startsWithIgnoreCase(bytes, nameStart, "message")) {
+                int close = indexOf(bytes, ">", nameStart);
+                String name = new String(bytes, nameStart, Math.max(0, close - nameStart)).trim();
+                if (0 <= close && ("geomessage".equalsIgnoreCase(name) || "message".equalsIgnoreCase(name))) {
+                    return close + 1;
+                }
+            }
+            i = nameStart;
+        }
+    }
+    
+    private static boolean startsWith(byte[] bytes, int offset, String prefix) {
+        if (offset + prefix.length() > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean startsWithIgnoreCase(byte[] bytes, int offset, String prefix) {
+        if (offset + prefix.length() > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) bytes[offset + i]) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int indexOf(byte[] bytes, String target, int from) {
+        for (int i = Math.max(0, from); i <= bytes.length - target.length(); i++) {
+            if (startsWith(bytes, i, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static int lastIndexOf(byte[] bytes, String target, int before) {
+        for (int i = Math.min(before, bytes.length) - target.length(); i >= 0; i--) {
+            if (startsWith(bytes, i, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
 }
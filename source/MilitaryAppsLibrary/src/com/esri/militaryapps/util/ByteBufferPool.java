@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of direct ByteBuffers that all have the same capacity. Acquiring
+ * a buffer reuses an idle one when possible; releasing a buffer returns it to the
+ * pool unless the pool already holds its maximum number of idle buffers.
+ */
+public class ByteBufferPool {
+
+    private final ConcurrentLinkedQueue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+    private final int bufferCapacity;
+    private final int maxIdleBuffers;
+
+    /**
+     * Creates a new ByteBufferPool.
+     * @param bufferCapacity the capacity, in bytes, of each buffer in the pool.
+     * @param maxIdleBuffers the maximum number of idle buffers that the pool keeps
+     *                       for reuse.
+     */
+    public ByteBufferPool(int bufferCapacity, int maxIdleBuffers) {
+        this.bufferCapacity = bufferCapacity;
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    /**
+     * Returns a cleared buffer from the pool, allocating a new direct buffer if
+     * no idle buffer is available.
+     * @return a cleared buffer whose capacity is getBufferCapacity().
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idleBuffers.poll();
+        if (null == buffer) {
+            buffer = ByteBuffer.allocateDirect(bufferCapacity);
+        } else {
+            idleCount.decrementAndGet();
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer after
+     * calling this method.
+     * @param buffer the buffer to release. Buffers that did not come from this pool
+     *               are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (null != buffer && buffer.isDirect() && bufferCapacity == buffer.capacity()) {
+            if (idleCount.incrementAndGet() <= maxIdleBuffers) {
+                idleBuffers.offer(buffer);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the capacity, in bytes, of each buffer in the pool.
+     */
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    /**
+     * @return the number of idle buffers currently held by the pool.
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+}
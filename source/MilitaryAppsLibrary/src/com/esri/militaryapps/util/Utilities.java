@@ -31,6 +31,7 @@ import java.util.regex.Pattern;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -54,6 +55,8 @@ public class Utilities {
     private static final double TWO_PI = 2.0 * Math.PI;
     
     private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+    //A Transformer is not thread-safe but can be reused, so each thread gets its own
+    private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
     private static final DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
 
     /**
@@ -507,9 +510,17 @@ public class Utilities {
      * @throws TransformerException 
      */
     public static String documentToString(Document doc) throws TransformerException {
+        Transformer transformer = transformers.get();
+        if (null == transformer) {
+            synchronized (transformerFactory) {
+                transformer = transformerFactory.newTransformer();
+            }
+            transformers.set(transformer);
+        } else {
+            transformer.reset();
+        }
         StringWriter xmlStringWriter = new StringWriter();
-        transformerFactory.newTransformer().transform(
-                new DOMSource(doc), new StreamResult(xmlStringWriter));
+        transformer.transform(new DOMSource(doc), new StreamResult(xmlStringWriter));
         return xmlStringWriter.toString();
     }
     
@@ -0,0 +1,473 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.AdvancedSymbolController;
+import com.esri.militaryapps.controller.LabelToggleListener;
+import com.esri.militaryapps.model.Geomessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * A test for the AdvancedSymbolController class.
+ * @see com.esri.militaryapps.controller.AdvancedSymbolController
+ */
+public class AdvancedSymbolControllerTest {
+    
+    /**
+     * Records the calls an AdvancedSymbolController makes, and notes any call for
+     * an ID that overlaps another call for the same ID.
+     */
+    private static class AdvancedSymbolControllerImpl extends AdvancedSymbolController {
+        
+        final ConcurrentHashMap<String, AtomicBoolean> busyIds = new ConcurrentHashMap<String, AtomicBoolean>();
+        final ConcurrentHashMap<String, Boolean> highlighted = new ConcurrentHashMap<String, Boolean>();
+        final List<Geomessage> processed = new ArrayList<Geomessage>();
+        final List<String> removed = new ArrayList<String>();
+        final List<Integer> spotReportGraphicIds = new ArrayList<Integer>();
+        final AtomicInteger nextGraphicId = new AtomicInteger(1);
+        final AtomicBoolean overlapped = new AtomicBoolean(false);
+        final AtomicBoolean redundantHighlight = new AtomicBoolean(false);
+        volatile boolean recording = true;
+        volatile long processNanos = 0;
+        volatile String blockedId = null;
+        volatile Thread lastProcessThread = null;
+        final CountDownLatch blockEntered = new CountDownLatch(1);
+        final CountDownLatch blockReleased = new CountDownLatch(1);
+
+        AdvancedSymbolControllerImpl() {
+            super(null);
+        }
+
+        @Override
+        public String[] getMessageTypesSupported() {
+            return new String[] { "position_report", "chemlight" };
+        }
+
+        @Override
+        public String getActionPropertyName() {
+            return Geomessage.ACTION_FIELD_NAME;
+        }
+
+        @Override
+        protected String translateMessageTypeName(String geomessageTypeName) {
+            return geomessageTypeName;
+        }
+
+        @Override
+        protected String translateColorString(String geomessageColorString) {
+            return geomessageColorString;
+        }
+
+        @Override
+        protected Integer displaySpotReport(double x, double y, int wkid, Integer graphicId, Geomessage geomessage) {
+            synchronized (spotReportGraphicIds) {
+                spotReportGraphicIds.add(graphicId);
+            }
+            return null == graphicId ? nextGraphicId.getAndIncrement() : graphicId;
+        }
+
+        @Override
+        protected boolean processMessage(Geomessage message) {
+            enter(message.getId());
+            try {
+                lastProcessThread = Thread.currentThread();
+                if (recording) {
+                    synchronized (processed) {
+                        processed.add(message);
+                    }
+                }
+                if (0 < processNanos) {
+                    LockSupport.parkNanos(processNanos);
+                }
+                if (message.getId().equals(blockedId)) {
+                    blockEntered.countDown();
+                    try {
+                        blockReleased.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return true;
+            } finally {
+                exit(message.getId());
+            }
+        }
+
+        @Override
+        protected boolean processHighlightMessage(String geomessageId, String messageType, boolean highlight) {
+            enter(geomessageId);
+            try {
+                Boolean previous = highlighted.put(geomessageId, highlight);
+                if ((null == previous ? false : previous) == highlight) {
+                    redundantHighlight.set(true);
+                }
+                return true;
+            } finally {
+                exit(geomessageId);
+            }
+        }
+
+        @Override
+        protected void processRemoveGeomessage(String geomessageId, String messageType) {
+            highlighted.remove(geomessageId);
+            synchronized (removed) {
+                removed.add(geomessageId);
+            }
+        }
+        
+        private void enter(String id) {
+            AtomicBoolean busy = busyIds.get(id);
+            if (null == busy) {
+                busyIds.putIfAbsent(id, new AtomicBoolean(false));
+                busy = busyIds.get(id);
+            }
+            if (!busy.compareAndSet(false, true)) {
+                overlapped.set(true);
+            }
+            Thread.yield();
+        }
+        
+        private void exit(String id) {
+            busyIds.get(id).set(false);
+        }
+        
+    }
+    
+    /**
+     * Records a label toggle's progress and lets the test wait for it to finish.
+     */
+    private static class LabelToggleRecorder implements LabelToggleListener {
+        
+        final CountDownLatch finished = new CountDownLatch(1);
+        final List<Integer> progress = new ArrayList<Integer>();
+        volatile int totalCount = -1;
+        volatile boolean superseded = false;
+        volatile boolean progressAfterFinished = false;
+        volatile Thread progressThread = null;
+
+        @Override
+        public void labelToggleProgress(boolean showLabels, int completedCount, int totalCount) {
+            if (0 == finished.getCount()) {
+                progressAfterFinished = true;
+            }
+            progressThread = Thread.currentThread();
+            synchronized (progress) {
+                progress.add(completedCount);
+            }
+            this.totalCount = totalCount;
+        }
+
+        @Override
+        public void labelToggleFinished(boolean showLabels, boolean superseded) {
+            this.superseded = superseded;
+            finished.countDown();
+        }
+        
+        void await() throws InterruptedException {
+            assertTrue("The label toggle did not finish", finished.await(10, TimeUnit.SECONDS));
+        }
+        
+    }
+    
+    private static Geomessage createGeomessage(String id, String type, boolean emergency) {
+        Geomessage geomessage = new Geomessage();
+        geomessage.setId(id);
+        geomessage.setProperty(Geomessage.TYPE_FIELD_NAME, type);
+        geomessage.setProperty(Geomessage.ACTION_FIELD_NAME, "update");
+        geomessage.setProperty("uniquedesignation", "Unit " + id);
+        geomessage.setProperty("status911", emergency ? "1" : "0");
+        return geomessage;
+    }
+    
+    private static Geomessage createRemoveGeomessage(String id, String type) {
+        Geomessage geomessage = new Geomessage();
+        geomessage.setId(id);
+        geomessage.setProperty(Geomessage.TYPE_FIELD_NAME, type);
+        geomessage.setProperty(Geomessage.ACTION_FIELD_NAME, "remove");
+        return geomessage;
+    }
+
+    /**
+     * Test that handleGeomessage can be called from many threads, handling each
+     * ID's Geomessages one at a time and keeping highlight state consistent.
+     */
+    @Test
+    public void testConcurrentHandleGeomessage() throws Exception {
+        final AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl();
+        controller.recording = false;
+        final int threadCount = 8;
+        final int idCount = 50;
+        final int messagesPerThread = 5000;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final long seed = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int j = 0; j < messagesPerThread; j++) {
+                        controller.handleGeomessage(createGeomessage(
+                                Integer.toString(random.nextInt(idCount)), "position_report", random.nextBoolean()));
+                    }
+                }
+                
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse("Calls for the same ID overlapped", controller.overlapped.get());
+        assertFalse("A track was highlighted or unhighlighted twice in a row", controller.redundantHighlight.get());
+    }
+
+    /**
+     * Test that setShowLabels redraws every stored Geomessage except removed ones,
+     * with or without labels, and re-highlights emergencies.
+     */
+    @Test
+    public void testSetShowLabels() throws Exception {
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl();
+        controller.handleGeomessage(createGeomessage("a", "position_report", false));
+        controller.handleGeomessage(createGeomessage("b", "position_report", true));
+        controller.handleGeomessage(createGeomessage("c", "position_report", false));
+        controller.handleGeomessage(createRemoveGeomessage("c", "position_report"));
+        assertEquals(Boolean.TRUE, controller.highlighted.get("b"));
+        controller.processed.clear();
+        
+        LabelToggleRecorder recorder = new LabelToggleRecorder();
+        controller.setShowLabels(false, recorder);
+        assertFalse(controller.isShowLabels());
+        recorder.await();
+        assertFalse(recorder.superseded);
+        assertFalse(controller.isLabelToggleInProgress());
+        assertEquals(2, controller.removed.size());
+        assertFalse(controller.removed.contains("c"));
+        assertEquals(2, controller.processed.size());
+        for (Geomessage geomessage : controller.processed) {
+            assertEquals("", geomessage.getProperty("uniquedesignation"));
+        }
+        assertEquals(Boolean.TRUE, controller.highlighted.get("b"));
+        assertFalse(controller.redundantHighlight.get());
+        
+        controller.processed.clear();
+        recorder = new LabelToggleRecorder();
+        controller.setShowLabels(true, recorder);
+        recorder.await();
+        assertEquals(2, controller.processed.size());
+        for (Geomessage geomessage : controller.processed) {
+            assertEquals("Unit " + geomessage.getId(), geomessage.getProperty("uniquedesignation"));
+        }
+        assertFalse(controller.redundantHighlight.get());
+    }
+
+    /**
+     * Test that a slow rendering callback for one ID does not hold up Geomessages
+     * for other IDs, including any that share its shard of the track store.
+     */
+    @Test
+    public void testSlowCallbackDoesNotBlockOtherIds() throws Exception {
+        final AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl();
+        controller.recording = false;
+        controller.blockedId = "slow";
+        Thread slowThread = new Thread() {
+
+            @Override
+            public void run() {
+                controller.handleGeomessage(createGeomessage("slow", "position_report", false));
+            }
+            
+        };
+        slowThread.start();
+        assertTrue(controller.blockEntered.await(10, TimeUnit.SECONDS));
+        try {
+            //With this many IDs, some certainly share a shard with "slow"
+            for (int i = 0; i < 1000; i++) {
+                controller.handleGeomessage(createGeomessage(Integer.toString(i), "position_report", true));
+            }
+            assertEquals(1000, controller.highlighted.size());
+        } finally {
+            controller.blockReleased.countDown();
+        }
+        slowThread.join(10000);
+        assertFalse(slowThread.isAlive());
+    }
+
+    /**
+     * Test that setShowLabels redraws in several time slices, reports its
+     * progress, does not block handleGeomessage, and skips symbols that Geomessages
+     * handled during the toggle already redrew.
+     */
+    @Test
+    public void testIncrementalSetShowLabels() throws Exception {
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl();
+        controller.recording = false;
+        final int trackCount = 2000;
+        for (int i = 0; i < trackCount; i++) {
+            controller.handleGeomessage(createGeomessage(Integer.toString(i), "position_report", false));
+        }
+        controller.processNanos = 50000;
+        controller.setLabelToggleSliceMillis(5);
+        LabelToggleRecorder recorder = new LabelToggleRecorder();
+        long start = System.nanoTime();
+        controller.setShowLabels(false, recorder);
+        assertTrue(controller.isLabelToggleInProgress());
+        //Update the last track while the toggle is still in progress
+        controller.recording = true;
+        controller.handleGeomessage(createGeomessage(Integer.toString(trackCount - 1), "position_report", false));
+        long handleMillis = (System.nanoTime() - start) / 1000000L;
+        assertTrue("handleGeomessage waited for the label toggle", handleMillis < 1000);
+        assertFalse(recorder.finished.await(0, TimeUnit.MILLISECONDS));
+        recorder.await();
+        controller.recording = false;
+        
+        assertFalse(recorder.superseded);
+        assertEquals(trackCount, recorder.totalCount);
+        assertTrue("Expected several slices but got " + recorder.progress.size(), 1 < recorder.progress.size());
+        int previous = 0;
+        for (int completed : recorder.progress) {
+            assertTrue(previous < completed);
+            previous = completed;
+        }
+        assertEquals(trackCount, previous);
+        //The updated track is normally skipped, unless the toggle got to it first
+        assertTrue(trackCount - 1 <= controller.removed.size() && controller.removed.size() <= trackCount);
+        assertFalse(controller.processed.isEmpty());
+        for (Geomessage geomessage : controller.processed) {
+            assertEquals("", geomessage.getProperty("uniquedesignation"));
+        }
+        assertFalse(controller.overlapped.get());
+    }
+
+    /**
+     * Test that a second setShowLabels call supersedes a toggle in progress.
+     */
+    @Test
+    public void testSupersededSetShowLabels() throws Exception {
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl();
+        final int trackCount = 500;
+        for (int i = 0; i < trackCount; i++) {
+            controller.handleGeomessage(createGeomessage(Integer.toString(i), "position_report", false));
+        }
+        controller.processNanos = 100000;
+        controller.setLabelToggleSliceMillis(2);
+        LabelToggleRecorder first = new LabelToggleRecorder();
+        controller.setShowLabels(false, first);
+        LabelToggleRecorder second = new LabelToggleRecorder();
+        controller.setShowLabels(true, second);
+        first.await();
+        assertTrue(first.superseded);
+        //Give a slice that was running during the supersede time to report
+        Thread.sleep(50);
+        assertFalse(first.progressAfterFinished);
+        second.await();
+        assertFalse(second.superseded);
+        assertTrue(controller.isShowLabels());
+        assertFalse(controller.isLabelToggleInProgress());
+        
+        //Every track ends up drawn with labels
+        controller.processed.clear();
+        controller.removed.clear();
+        LabelToggleRecorder third = new LabelToggleRecorder();
+        controller.setShowLabels(false, third);
+        third.await();
+        assertEquals(trackCount, controller.removed.size());
+        for (Geomessage geomessage : controller.processed) {
+            assertEquals("", geomessage.getProperty("uniquedesignation"));
+        }
+    }
+
+    /**
+     * Test that setShowLabels redraws symbols and reports progress on the executor
+     * set with setLabelToggleExecutor.
+     */
+    @Test
+    public void testSetShowLabelsOnExecutor() throws Exception {
+        final Thread[] executorThread = new Thread[1];
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                executorThread[0] = new Thread(r, "LabelToggleTestExecutor");
+                return executorThread[0];
+            }
+            
+        });
+        try {
+            AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl();
+            for (int i = 0; i < 200; i++) {
+                controller.handleGeomessage(createGeomessage(Integer.toString(i), "position_report", false));
+            }
+            controller.processNanos = 100000;
+            controller.setLabelToggleSliceMillis(2);
+            controller.setLabelToggleExecutor(executor);
+            assertSame(executor, controller.getLabelToggleExecutor());
+            LabelToggleRecorder recorder = new LabelToggleRecorder();
+            controller.setShowLabels(false, recorder);
+            recorder.await();
+            assertFalse(recorder.superseded);
+            assertEquals(200, controller.removed.size());
+            assertSame(executorThread[0], controller.lastProcessThread);
+            assertSame(executorThread[0], recorder.progressThread);
+            
+            //A rejected slice ends the toggle instead of leaving it in progress
+            executor.shutdown();
+            recorder = new LabelToggleRecorder();
+            controller.setShowLabels(true, recorder);
+            recorder.await();
+            assertFalse(controller.isLabelToggleInProgress());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that a spot report's graphic ID is kept until the spot report is removed.
+     */
+    @Test
+    public void testSpotReportGraphicId() {
+        AdvancedSymbolControllerImpl controller = new AdvancedSymbolControllerImpl();
+        Geomessage spotReport = createGeomessage("spot", "spotrep", false);
+        spotReport.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, "1.0,2.0");
+        spotReport.setProperty(Geomessage.WKID_FIELD_NAME, "4326");
+        controller.handleGeomessage(spotReport);
+        controller.handleGeomessage(spotReport.clone());
+        Geomessage remove = spotReport.clone();
+        remove.setProperty(Geomessage.ACTION_FIELD_NAME, "remove");
+        controller.handleGeomessage(remove);
+        controller.handleGeomessage(spotReport.clone());
+        assertEquals(4, controller.spotReportGraphicIds.size());
+        assertNull(controller.spotReportGraphicIds.get(0));
+        assertEquals(Integer.valueOf(1), controller.spotReportGraphicIds.get(1));
+        assertEquals(Integer.valueOf(1), controller.spotReportGraphicIds.get(2));
+        assertNull(controller.spotReportGraphicIds.get(3));
+    }
+
+}
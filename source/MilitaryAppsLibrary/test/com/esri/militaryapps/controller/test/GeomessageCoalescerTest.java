@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.controller.test;
+
+import com.esri.militaryapps.controller.BatchMessageControllerListener;
+import com.esri.militaryapps.controller.GeomessageCoalescer;
+import com.esri.militaryapps.controller.MessageControllerListener;
+import com.esri.militaryapps.model.Geomessage;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * A test for the GeomessageCoalescer class.
+ * @see com.esri.militaryapps.controller.GeomessageCoalescer
+ */
+public class GeomessageCoalescerTest {
+    
+    private static Geomessage createGeomessage(String id, int sequence) {
+        Geomessage geomessage = new Geomessage();
+        geomessage.setId(id);
+        geomessage.setProperty("sequence", Integer.toString(sequence));
+        return geomessage;
+    }
+
+    /**
+     * Test that only the latest Geomessage per ID is delivered.
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        final List<Geomessage> delivered = new ArrayList<Geomessage>();
+        MessageControllerListener target = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                delivered.add(geomessage);
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+            }
+            
+        };
+        //A long tick, so that only flush() delivers
+        GeomessageCoalescer coalescer = new GeomessageCoalescer(target, 60000);
+        final int entityCount = 300;
+        final int updateCount = 10;
+        for (int update = 0; update < updateCount; update++) {
+            for (int entity = 0; entity < entityCount; entity++) {
+                coalescer.geomessageReceived(createGeomessage("unit" + entity, update));
+            }
+        }
+        coalescer.geomessageReceived(createGeomessage(null, 0));
+        coalescer.geomessageReceived(createGeomessage(null, 1));
+        assertTrue(delivered.isEmpty());
+        
+        coalescer.flush();
+        assertEquals(entityCount + 2, delivered.size());
+        for (int entity = 0; entity < entityCount; entity++) {
+            assertEquals("unit" + entity, delivered.get(entity).getId());
+            assertEquals(Integer.toString(updateCount - 1), delivered.get(entity).getProperty("sequence"));
+        }
+        assertNull(delivered.get(entityCount).getId());
+        assertNull(delivered.get(entityCount + 1).getId());
+        assertEquals(entityCount * updateCount + 2, coalescer.getReceivedCount());
+        assertEquals(entityCount + 2, coalescer.getDeliveredCount());
+        
+        coalescer.close();
+        coalescer.geomessageReceived(createGeomessage("unit0", 0));
+        coalescer.flush();
+        assertEquals(entityCount + 2, delivered.size());
+    }
+
+    /**
+     * Test that only updates replace updates, so that a select, un-select or remove
+     * is delivered in order with the updates around it.
+     */
+    @Test
+    public void testOnlyUpdatesCoalesce() throws Exception {
+        final List<Geomessage> delivered = new ArrayList<Geomessage>();
+        MessageControllerListener target = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                delivered.add(geomessage);
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+            }
+            
+        };
+        GeomessageCoalescer coalescer = new GeomessageCoalescer(target, 60000);
+        String[][] received = {
+            { "a", "UPDATE", "0" },
+            { "b", "UPDATE", "1" },
+            { "a", "UPDATE", "2" },
+            { "a", "SELECT", "3" },
+            { "a", "update", "4" },
+            { "b", null, "5" },
+            { "a", "UPDATE", "6" },
+            { "b", "UN-SELECT", "7" },
+            { "a", "REMOVE", "8" },
+        };
+        for (String[] values : received) {
+            Geomessage geomessage = createGeomessage(values[0], Integer.parseInt(values[2]));
+            if (null != values[1]) {
+                geomessage.setProperty(Geomessage.ACTION_FIELD_NAME, values[1]);
+            }
+            coalescer.geomessageReceived(geomessage);
+        }
+        coalescer.close();
+        
+        String[] expectedSequences = { "2", "5", "3", "6", "7", "8" };
+        assertEquals(expectedSequences.length, delivered.size());
+        for (int i = 0; i < expectedSequences.length; i++) {
+            assertEquals(expectedSequences[i], delivered.get(i).getProperty("sequence"));
+        }
+        assertEquals(received.length, coalescer.getReceivedCount());
+        assertEquals(expectedSequences.length, coalescer.getDeliveredCount());
+    }
+
+    /**
+     * Test that each tick delivers one batch to a BatchMessageControllerListener.
+     */
+    @Test
+    public void testTick() throws Exception {
+        final List<List<Geomessage>> batches = new ArrayList<List<Geomessage>>();
+        BatchMessageControllerListener target = new BatchMessageControllerListener() {
+
+            @Override
+            public void geomessagesReceived(List<Geomessage> geomessages) {
+                synchronized (batches) {
+                    batches.add(geomessages);
+                }
+            }
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                fail("Batches should be delivered as batches");
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+            }
+            
+        };
+        GeomessageCoalescer coalescer = new GeomessageCoalescer(target, 50);
+        List<Geomessage> batch = new ArrayList<Geomessage>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(createGeomessage("unit" + (i % 5), i));
+        }
+        coalescer.geomessagesReceived(batch);
+        Thread.sleep(300);
+        coalescer.close();
+        synchronized (batches) {
+            assertEquals(1, batches.size());
+            assertEquals(5, batches.get(0).size());
+            assertEquals("99", batches.get(0).get(4).getProperty("sequence"));
+        }
+    }
+
+}
@@ -15,12 +15,34 @@
  ******************************************************************************/
 package com.esri.militaryapps.controller.test;
 
+import com.esri.militaryapps.controller.BatchMessageControllerListener;
+import com.esri.militaryapps.controller.DispatchStrategy;
 import com.esri.militaryapps.controller.MessageController;
 import com.esri.militaryapps.controller.MessageControllerListener;
+import com.esri.militaryapps.controller.MessageControllerMetrics;
+import com.esri.militaryapps.controller.MessageControllerMonitor;
+import com.esri.militaryapps.controller.RawDatagramListener;
 import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.xml.parsers.ParserConfigurationException;
 import org.junit.After;
 import org.junit.Before;
@@ -33,10 +55,75 @@ public class MessageControllerTest {
     private class Result {
         String message = null;
         HashMap<String, Geomessage> geomessages = new HashMap<String, Geomessage>();
+        List<List<Geomessage>> batches = new ArrayList<List<Geomessage>>();
+        int datagramCount = 0;
     }
 
     private static final int TEST_PORT = 59849;
     private static final int TEST_PORT_2 = 16346;
+    private static final int TEST_PORT_3 = 59851;
+    private static final int TEST_PORT_4 = 59853;
+    private static final int TEST_PORT_5 = 59855;
+    private static final int TEST_PORT_6 = 59857;
+    private static final int TEST_PORT_7 = 59859;
+    private static final int TEST_PORT_8 = 59861;
+    private static final int TEST_PORT_9 = 59863;
+    private static final int TEST_PORT_10 = 59865;
+    private static final int TEST_PORT_11 = 59867;
+    private static final int TEST_PORT_12 = 59869;
+    private static final int TEST_PORT_13 = 59871;
+    private static final int TEST_PORT_14 = 59873;
+    private static final int TEST_PORT_15 = 59875;
+    private static final int TEST_PORT_16 = 59877;
+    private static final int TEST_PORT_17 = 59879;
+    private static final int TEST_PORT_18 = 59881;
+    private static final int TEST_PORT_19 = 59883;
+    private static final int TEST_PORT_20 = 59885;
+    private static final int TEST_PORT_21 = 59887;
+    private static final int TEST_PORT_22 = 59889;
+    private static final int TEST_PORT_23 = 59891;
+    private static final int TEST_PORT_24 = 59893;
+    private static final int TEST_PORT_25 = 59895;
+    private static final int TEST_PORT_26 = 59897;
+    
+    /**
+     * A listener that records the IDs of the Geomessages it receives, optionally
+     * taking some time over each one.
+     */
+    private static class RecordingListener implements MessageControllerListener {
+        
+        final List<String> ids = new ArrayList<String>();
+        private final long delayMillis;
+        
+        RecordingListener(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void geomessageReceived(Geomessage geomessage) {
+            synchronized (ids) {
+                ids.add(geomessage.getId());
+            }
+            if (0 < delayMillis) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void datagramReceived(String contents) {
+        }
+        
+        List<String> getIds() {
+            synchronized (ids) {
+                return new ArrayList<String>(ids);
+            }
+        }
+        
+    }
     
     @Before
     public void setUp() throws ParserConfigurationException, SAXException {
@@ -91,7 +178,1205 @@ public class MessageControllerTest {
         doGeomessageTesting(controller);
     }
     
-    private void doGeomessageTesting(MessageController controller) throws IOException, InterruptedException {
+    @Test
+    public void testBatchListener() throws IOException, InterruptedException {
+        System.out.println("batchListener");
+        MessageController controller = new MessageController(TEST_PORT_3);
+        controller.setBatchWindow(500, 0);
+        controller.startReceiving();
+        
+        final Result result = new Result();
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        final AtomicInteger singleCount = new AtomicInteger(0);
+        BatchMessageControllerListener listener = new BatchMessageControllerListener() {
+
+            @Override
+            public void geomessagesReceived(List<Geomessage> geomessages) {
+                synchronized (result) {
+                    result.batches.add(geomessages);
+                }
+                firstBatch.countDown();
+            }
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                //A batch listener should receive batches; checked on the test thread
+                singleCount.incrementAndGet();
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        byte[] bytes = readGeomessagesXml().getBytes();
+        Thread.sleep(100);
+        controller.sendMessage(bytes);
+        controller.sendMessage(bytes);
+        //The window holds the first batch open long enough for both datagrams, and
+        //once it has all four Geomessages, there is nothing left for a second batch
+        assertTrue("No batch was delivered", firstBatch.await(10, TimeUnit.SECONDS));
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        assertEquals(0, singleCount.get());
+        synchronized (result) {
+            assertEquals(1, result.batches.size());
+            assertEquals(4, result.batches.get(0).size());
+        }
+    }
+    
+    @Test
+    public void testPackGeomessages() throws IOException, InterruptedException {
+        System.out.println("packGeomessages");
+        MessageController controller = new MessageController(TEST_PORT_4);
+        controller.setOutboundLinger(200);
+        controller.startReceiving();
+        
+        final Result result = new Result();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                synchronized (result) {
+                    result.geomessages.put(geomessage.getId(), geomessage);
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                synchronized (result) {
+                    result.datagramCount++;
+                }
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            padding.append('x');
+        }
+        GeomessageWriter writer = new GeomessageWriter();
+        Thread.sleep(100);
+        for (int i = 0; i < 10; i++) {
+            writer.reset().startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, Integer.toString(i))
+                    .writeElement("padding", padding.toString())
+                    .endGeomessage();
+            controller.sendGeomessage(writer.getBuffer(), 0, writer.size());
+        }
+        Thread.sleep(500);
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        synchronized (result) {
+            assertEquals(10, result.geomessages.size());
+            assertEquals(2, result.datagramCount);
+        }
+    }
+    
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        System.out.println("concurrentSenders");
+        final MessageController controller = new MessageController(TEST_PORT_5);
+        controller.startReceiving();
+        
+        final int threadCount = 4;
+        final int messagesPerThread = 250;
+        final int total = threadCount * messagesPerThread;
+        final Result result = new Result();
+        final CountDownLatch allReceived = new CountDownLatch(total);
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                synchronized (result) {
+                    result.datagramCount++;
+                }
+                allReceived.countDown();
+            }
+            
+        };
+        controller.addListener(listener);
+        Thread.sleep(100);
+        
+        //JUnit only sees failures on the test thread, so collect them from the senders
+        final List<Throwable> senderErrors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < messagesPerThread; j++) {
+                            controller.sendMessage(("Message " + threadIndex + "-" + j).getBytes());
+                        }
+                    } catch (Throwable t) {
+                        synchronized (senderErrors) {
+                            senderErrors.add(t);
+                        }
+                    }
+                }
+                
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (senderErrors) {
+            if (!senderErrors.isEmpty()) {
+                throw new AssertionError(senderErrors.get(0));
+            }
+        }
+        allReceived.await(10, TimeUnit.SECONDS);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (controller.getSentDatagramCount() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        assertEquals(total, controller.getSentDatagramCount());
+        assertEquals(0, controller.getOutboundQueueDepth());
+        assertEquals(0, controller.getSendErrorCount());
+        assertTrue(controller.getMaxSendLatencyNanos() >= controller.getMeanSendLatencyNanos());
+        synchronized (result) {
+            assertEquals(total, result.datagramCount);
+        }
+    }
+    
+    @Test
+    public void testUnicastDestination() throws Exception {
+        System.out.println("unicastDestination");
+        MessageController sendingController = new MessageController(TEST_PORT_6);
+        sendingController.setBroadcastEnabled(false);
+        InetSocketAddress destination = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), TEST_PORT_7);
+        assertTrue(sendingController.addUnicastDestination(destination));
+        assertFalse(sendingController.addUnicastDestination(destination));
+        MessageController receivingController = new MessageController(TEST_PORT_7);
+        receivingController.startReceiving();
+        
+        final Result result = new Result();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                result.message = contents;
+            }
+            
+        };
+        receivingController.addListener(listener);
+        
+        String expected = "Unicast message " + System.currentTimeMillis();
+        Thread.sleep(100);
+        sendingController.sendMessage(expected.getBytes());
+        Thread.sleep(200);
+        receivingController.removeListener(listener);
+        receivingController.stopReceiving();
+        assertEquals(expected, result.message);
+        assertTrue(sendingController.removeUnicastDestination(destination));
+        assertTrue(sendingController.getUnicastDestinations().isEmpty());
+    }
+    
+    @Test
+    public void testMulticastGroup() throws Exception {
+        System.out.println("multicastGroup");
+        MessageController controller = new MessageController(TEST_PORT_6);
+        controller.setBroadcastEnabled(false);
+        controller.startReceiving();
+        InetAddress group = InetAddress.getByName("239.255.42.99");
+        controller.joinMulticastGroup(group, null);
+        assertEquals(group, controller.getMulticastGroup());
+        
+        final Result result = new Result();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                result.message = contents;
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        String expected = "Multicast message " + System.currentTimeMillis();
+        Thread.sleep(100);
+        controller.sendMessage(expected.getBytes());
+        Thread.sleep(200);
+        assertEquals(expected, result.message);
+        
+        controller.leaveMulticastGroup();
+        assertNull(controller.getMulticastGroup());
+        controller.removeListener(listener);
+        controller.stopReceiving();
+    }
+    
+    /**
+     * Test that fragments claiming a huge fragment count are charged for their
+     * fragment slots, so that the reassembly buffer stays within its byte limit.
+     */
+    @Test
+    public void testForgedFragmentCount() throws Exception {
+        System.out.println("forgedFragmentCount");
+        MessageController controller = new MessageController(TEST_PORT_26);
+        controller.startReceiving();
+        controller.addListener(new RecordingListener(0));
+        Thread.sleep(100);
+        
+        final int forgedCount = 10;
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            for (int i = 0; i < forgedCount; i++) {
+                ByteBuffer fragment = ByteBuffer.allocate(10 + 100);
+                fragment.put((byte) 0xA7).put((byte) 'F').putInt(i).putShort((short) 0).putShort((short) 0xFFFF);
+                socket.send(new DatagramPacket(fragment.array(), fragment.capacity(),
+                        InetAddress.getByName("127.0.0.1"), TEST_PORT_26));
+            }
+        } finally {
+            socket.close();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        MessageControllerMetrics metrics = controller.getMetrics();
+        while (forgedCount > metrics.getPartialPayloadCount() + metrics.getDiscardedPayloadCount()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            metrics = controller.getMetrics();
+        }
+        controller.close();
+        //Each forged payload costs about half a megabyte of slots against a 4 MB limit
+        assertEquals(forgedCount, metrics.getPartialPayloadCount() + metrics.getDiscardedPayloadCount());
+        assertTrue(metrics.toString(), 8 >= metrics.getPartialPayloadCount());
+    }
+    
+    @Test
+    public void testFragmentedMessage() throws Exception {
+        System.out.println("fragmentedMessage");
+        MessageController controller = new MessageController(TEST_PORT_8);
+        controller.startReceiving();
+        
+        final Result result = new Result();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                synchronized (result) {
+                    result.geomessages.put(geomessage.getId(), geomessage);
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                synchronized (result) {
+                    result.message = contents;
+                    result.datagramCount++;
+                }
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        GeomessageWriter writer = new GeomessageWriter();
+        writer.startGeomessages();
+        final int messageCount = 200;
+        for (int i = 0; i < messageCount; i++) {
+            writer.startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, Integer.toString(i))
+                    .writeElement("additionalinformation", "Observed at checkpoint " + i)
+                    .endGeomessage();
+        }
+        writer.endGeomessages();
+        assertTrue(3 * 6000 < writer.size());
+        
+        Thread.sleep(100);
+        controller.sendMessage(writer.getBuffer(), 0, writer.size());
+        Thread.sleep(300);
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        synchronized (result) {
+            assertEquals(1, result.datagramCount);
+            assertEquals(writer.toString(), result.message);
+            assertEquals(messageCount, result.geomessages.size());
+        }
+    }
+    
+    /**
+     * Test of setWireFormat method, of class MessageController.
+     */
+    @Test
+    public void testBinaryWireFormat() throws Exception {
+        System.out.println("binaryWireFormat");
+        MessageController controller = new MessageController(TEST_PORT_9);
+        controller.setWireFormat(MessageController.WireFormat.BINARY);
+        assertEquals(MessageController.WireFormat.BINARY, controller.getWireFormat());
+        controller.setOutboundLinger(200);
+        controller.startReceiving();
+        
+        final Result result = new Result();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                synchronized (result) {
+                    result.geomessages.put(geomessage.getId(), geomessage);
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                synchronized (result) {
+                    result.message = contents;
+                    result.datagramCount++;
+                }
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        Thread.sleep(100);
+        GeomessageWriter writer = new GeomessageWriter();
+        final int messageCount = 10;
+        for (int i = 0; i < messageCount; i++) {
+            writer.reset().startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, Integer.toString(i))
+                    .writeElement(Geomessage.TYPE_FIELD_NAME, "position_report")
+                    .writeControlPoint(70.4565 + i, 34.4345)
+                    .writeElement("datetimevalid", "2014-03-05 14:22:50")
+                    .endGeomessage();
+            controller.sendGeomessage(writer.getBuffer(), 0, writer.size());
+        }
+        //Plain text datagrams are unaffected by the wire format
+        controller.sendMessage("plain text".getBytes("UTF-8"));
+        controller.flushGeomessages();
+        Thread.sleep(300);
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        synchronized (result) {
+            assertEquals(messageCount, result.geomessages.size());
+            assertEquals("73.4565,34.4345", result.geomessages.get("3").getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+            assertEquals("2014-03-05 14:22:50", result.geomessages.get("3").getProperty("datetimevalid"));
+            //Only the text datagram reaches datagramReceived
+            assertEquals(1, result.datagramCount);
+            assertEquals("plain text", result.message);
+        }
+    }
+    
+    /**
+     * Test of setCompressionEnabled method, of class MessageController.
+     */
+    @Test
+    public void testCompressedGeomessages() throws Exception {
+        System.out.println("compressedGeomessages");
+        MessageController controller = new MessageController(TEST_PORT_10);
+        controller.setCompressionEnabled(true);
+        assertTrue(controller.isCompressionEnabled());
+        controller.setOutboundLinger(200);
+        controller.startReceiving();
+        
+        final Result result = new Result();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                synchronized (result) {
+                    result.geomessages.put(geomessage.getId(), geomessage);
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                synchronized (result) {
+                    result.message = contents;
+                    result.datagramCount++;
+                }
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        Thread.sleep(100);
+        GeomessageWriter writer = new GeomessageWriter();
+        final int messageCount = 40;
+        int uncompressedLength = 0;
+        for (int i = 0; i < messageCount; i++) {
+            writer.reset().startGeomessage()
+                    .writeElement(Geomessage.TYPE_FIELD_NAME, "position_report")
+                    .writeElement(Geomessage.ACTION_FIELD_NAME, "UPDATE")
+                    .writeElement(Geomessage.ID_FIELD_NAME, UUID.randomUUID().toString())
+                    .writeElement(Geomessage.WKID_FIELD_NAME, 4326)
+                    .writeElement(Geomessage.SIC_FIELD_NAME, "SFGPEWRR-------")
+                    .writeElement("uniquedesignation", "3A1-" + i)
+                    .writeElement("type", "HMMWV")
+                    .writeControlPoint(70.4565 + i / 1000.0, 34.4345 - i / 1000.0)
+                    .writeElement("datetimesubmitted", "2014-03-05 14:22:51")
+                    .writeElement("datetimevalid", "2014-03-05 14:22:50")
+                    .writeElement("direction", 271L)
+                    .writeElement("status911", "0")
+                    .endGeomessage();
+            uncompressedLength += writer.size();
+            controller.sendGeomessage(writer.getBuffer(), 0, writer.size());
+        }
+        assertTrue(2 * 6000 < uncompressedLength);
+        controller.flushGeomessages();
+        Thread.sleep(300);
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        assertEquals(1, controller.getSentDatagramCount());
+        synchronized (result) {
+            assertEquals(1, result.datagramCount);
+            assertTrue(result.message.startsWith("<geomessages>"));
+            assertEquals(messageCount, result.geomessages.size());
+        }
+    }
+    
+    /**
+     * Test of setDuplicateSuppressionWindow method, of class MessageController.
+     */
+    @Test
+    public void testDuplicateSuppression() throws Exception {
+        System.out.println("duplicateSuppression");
+        MessageController controller = new MessageController(TEST_PORT_11);
+        controller.setDuplicateSuppressionWindow(5000);
+        controller.startReceiving();
+        
+        final Result result = new Result();
+        final ArrayList<String> received = new ArrayList<String>();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                synchronized (result) {
+                    received.add(geomessage.getProperty("datetimesubmitted") + " " + geomessage.getProperty("direction"));
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                synchronized (result) {
+                    result.datagramCount++;
+                }
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        Thread.sleep(100);
+        String[][] reports = {
+            { "2014-03-05 14:22:50", "1" },
+            //The same datagram again
+            { "2014-03-05 14:22:50", "1" },
+            //The same Geomessage in a different datagram
+            { "2014-03-05 14:22:50", "2" },
+            { "2014-03-05 14:22:52", "3" },
+            //Out of date
+            { "2014-03-05 14:22:51", "4" }
+        };
+        GeomessageWriter writer = new GeomessageWriter();
+        for (String[] report : reports) {
+            writer.reset().startGeomessages().startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, "{3a752ef3-b085-41e8-993a-3ec39098fde2}")
+                    .writeElement(Geomessage.ACTION_FIELD_NAME, "UPDATE")
+                    .writeElement("datetimesubmitted", report[0])
+                    .writeElement("direction", report[1])
+                    .endGeomessage().endGeomessages();
+            controller.sendMessage(writer.getBuffer(), 0, writer.size());
+            Thread.sleep(20);
+        }
+        //Repeated datagrams are suppressed even if they are not Geomessages
+        controller.sendMessage("not a geomessage".getBytes("UTF-8"));
+        controller.sendMessage("not a geomessage".getBytes("UTF-8"));
+        Thread.sleep(300);
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        synchronized (result) {
+            assertEquals(2, received.size());
+            assertEquals("2014-03-05 14:22:50 1", received.get(0));
+            assertEquals("2014-03-05 14:22:52 3", received.get(1));
+            assertEquals(3, result.datagramCount);
+        }
+        assertEquals(3, controller.getSuppressedDuplicateCount());
+        assertEquals(1, controller.getSuppressedStaleCount());
+    }
+    
+    /**
+     * Test that urgent Geomessages skip queued routine Geomessages.
+     */
+    @Test
+    public void testPriorityLanes() throws Exception {
+        System.out.println("priorityLanes");
+        MessageController controller = new MessageController(TEST_PORT_12);
+        controller.startReceiving();
+        
+        final ArrayList<String> received = new ArrayList<String>();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                synchronized (received) {
+                    received.add(geomessage.getId());
+                }
+                try {
+                    //A slow listener, so that routine Geomessages queue up
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        Thread.sleep(100);
+        GeomessageWriter writer = new GeomessageWriter();
+        final int routineCount = 100;
+        for (int i = 0; i < routineCount; i++) {
+            writer.reset().startGeomessages().startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, "routine" + i)
+                    .writeElement("status911", "0")
+                    .endGeomessage().endGeomessages();
+            controller.sendMessage(writer.getBuffer(), 0, writer.size());
+        }
+        writer.reset().startGeomessages().startGeomessage()
+                .writeElement(Geomessage.ID_FIELD_NAME, "emergency")
+                .writeElement("status911", "1")
+                .endGeomessage().endGeomessages();
+        controller.sendMessage(writer.getBuffer(), 0, writer.size());
+        Thread.sleep(1500);
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        synchronized (received) {
+            assertEquals(routineCount + 1, received.size());
+            assertTrue("The emergency report waited for routine reports: " + received.indexOf("emergency"),
+                    routineCount * 3 / 4 > received.indexOf("emergency"));
+        }
+        assertEquals(1, controller.getDeliveredDatagramCount(MessageController.Lane.URGENT));
+        assertEquals(routineCount, controller.getDeliveredDatagramCount(MessageController.Lane.ROUTINE));
+        assertTrue(controller.getMeanDeliveryLatencyNanos(MessageController.Lane.URGENT)
+                < controller.getMeanDeliveryLatencyNanos(MessageController.Lane.ROUTINE));
+    }
+    
+    /**
+     * Test that an urgent Geomessage does not overtake a queued routine Geomessage
+     * with the same ID, but still overtakes those with other IDs.
+     */
+    @Test
+    public void testUrgentKeepsPerIdOrder() throws Exception {
+        System.out.println("urgentKeepsPerIdOrder");
+        MessageController controller = new MessageController(TEST_PORT_22);
+        controller.startReceiving();
+        final ArrayList<String> received = new ArrayList<String>();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                synchronized (received) {
+                    received.add(geomessage.getId() + ":" + geomessage.getProperty(Geomessage.ACTION_FIELD_NAME));
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        Thread.sleep(100);
+        GeomessageWriter writer = new GeomessageWriter();
+        final int routineCount = 60;
+        for (int i = 0; i < routineCount; i++) {
+            String id = 30 == i ? "track" : "routine" + i;
+            writer.reset().startGeomessages().startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, id)
+                    .writeElement(Geomessage.ACTION_FIELD_NAME, "update")
+                    .endGeomessage().endGeomessages();
+            controller.sendMessage(writer.getBuffer(), 0, writer.size());
+        }
+        writer.reset().startGeomessages().startGeomessage()
+                .writeElement(Geomessage.ID_FIELD_NAME, "track")
+                .writeElement(Geomessage.ACTION_FIELD_NAME, "remove")
+                .endGeomessage().endGeomessages();
+        controller.sendMessage(writer.getBuffer(), 0, writer.size());
+        writer.reset().startGeomessages().startGeomessage()
+                .writeElement(Geomessage.ID_FIELD_NAME, "other")
+                .writeElement(Geomessage.ACTION_FIELD_NAME, "remove")
+                .endGeomessage().endGeomessages();
+        controller.sendMessage(writer.getBuffer(), 0, writer.size());
+        Thread.sleep(1500);
+        controller.close();
+        synchronized (received) {
+            assertEquals(routineCount + 2, received.size());
+            assertTrue("The remove overtook the update for the same ID",
+                    received.indexOf("track:update") < received.indexOf("track:remove"));
+            assertTrue("The remove for another ID waited for routine reports: " + received.indexOf("other:remove"),
+                    routineCount * 3 / 4 > received.indexOf("other:remove"));
+        }
+    }
+    
+    /**
+     * Test that a bounded pool whose queue holds fewer drain tasks than there are
+     * listeners still delivers everything to every listener, in order.
+     */
+    @Test
+    public void testBoundedPoolSaturation() throws Exception {
+        System.out.println("boundedPoolSaturation");
+        MessageController controller = new MessageController(TEST_PORT_17);
+        DispatchStrategy strategy = DispatchStrategy.boundedPool(1, 1, DispatchStrategy.DropPolicy.DROP_OLDEST);
+        controller.setDispatchStrategy(strategy);
+        controller.startReceiving();
+        RecordingListener[] listeners = new RecordingListener[3];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new RecordingListener(2);
+            controller.addListener(listeners[i]);
+        }
+        
+        Thread.sleep(100);
+        final int count = 50;
+        sendGeomessages(controller, "saturation", count);
+        for (RecordingListener listener : listeners) {
+            awaitIds(listener, count);
+            assertEquals(expectedIds("saturation", count), listener.getIds());
+        }
+        //Rejected drain tasks are retried, so nothing counts as dropped
+        assertEquals(0, controller.getMetrics().getListenerDroppedCount());
+        assertEquals(strategy.getRejectedCount(), controller.getMetrics().getDispatchRejectedCount());
+        controller.close();
+        strategy.shutdown();
+    }
+    
+    /**
+     * Test that each kind of DispatchStrategy delivers every Geomessage to every
+     * listener, in arrival order.
+     */
+    @Test
+    public void testDispatchStrategies() throws Exception {
+        System.out.println("dispatchStrategies");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        DispatchStrategy[] strategies = new DispatchStrategy[] {
+            DispatchStrategy.sameThread(),
+            DispatchStrategy.boundedPool(2, 100, DispatchStrategy.DropPolicy.BLOCK),
+            DispatchStrategy.boundedPool(2, 100, DispatchStrategy.DropPolicy.DROP_NEWEST),
+            DispatchStrategy.boundedPool(2, 100, DispatchStrategy.DropPolicy.DROP_OLDEST),
+            DispatchStrategy.forExecutor(executor)
+        };
+        final int count = 30;
+        for (int i = 0; i < strategies.length; i++) {
+            MessageController controller = new MessageController(TEST_PORT_18);
+            controller.setDispatchStrategy(strategies[i]);
+            controller.startReceiving();
+            RecordingListener first = new RecordingListener(1);
+            RecordingListener second = new RecordingListener(0);
+            controller.addListener(first);
+            controller.addListener(second);
+            
+            Thread.sleep(100);
+            String prefix = "strategy" + i + "-";
+            sendGeomessages(controller, prefix, count);
+            awaitIds(first, count);
+            awaitIds(second, count);
+            assertEquals("Strategy " + i, expectedIds(prefix, count), first.getIds());
+            assertEquals("Strategy " + i, expectedIds(prefix, count), second.getIds());
+            assertEquals("Strategy " + i, 0, strategies[i].getRejectedCount());
+            controller.close();
+            strategies[i].shutdown();
+            assertTrue(strategies[i].awaitTermination(1, TimeUnit.SECONDS));
+        }
+    }
+    
+    /**
+     * Test that each listener queue drop policy keeps a slow listener's Geomessages
+     * in order, drops the expected ones, and does not affect a fast listener.
+     */
+    @Test
+    public void testListenerQueueDropPolicies() throws Exception {
+        System.out.println("listenerQueueDropPolicies");
+        DispatchStrategy.DropPolicy[] policies = DispatchStrategy.DropPolicy.values();
+        final int count = 40;
+        for (DispatchStrategy.DropPolicy policy : policies) {
+            MessageController controller = new MessageController(TEST_PORT_19);
+            controller.setListenerQueueCapacity(5, policy);
+            controller.startReceiving();
+            RecordingListener slow = new RecordingListener(20);
+            RecordingListener fast = new RecordingListener(0);
+            controller.addListener(slow);
+            controller.addListener(fast);
+            
+            Thread.sleep(100);
+            String prefix = policy + "-";
+            //Slow enough for the fast listener, too fast for the slow one
+            sendGeomessages(controller, prefix, count, 2);
+            awaitIds(fast, count);
+            if (DispatchStrategy.DropPolicy.BLOCK == policy) {
+                awaitIds(slow, count);
+            } else {
+                Thread.sleep(500);
+            }
+            assertEquals(policy.toString(), expectedIds(prefix, count), fast.getIds());
+            List<String> slowIds = slow.getIds();
+            assertInOrder(prefix, slowIds);
+            switch (policy) {
+                case BLOCK: {
+                    assertEquals(expectedIds(prefix, count), slowIds);
+                    assertEquals(0, controller.getMetrics().getListenerDroppedCount());
+                    break;
+                }
+                case DROP_NEWEST: {
+                    assertTrue(slowIds.size() < count);
+                    assertEquals(prefix + 0, slowIds.get(0));
+                    assertEquals(count - slowIds.size(), controller.getMetrics().getListenerDroppedCount());
+                    break;
+                }
+                case DROP_OLDEST: {
+                    assertTrue(slowIds.size() < count);
+                    assertEquals(prefix + (count - 1), slowIds.get(slowIds.size() - 1));
+                    assertEquals(count - slowIds.size(), controller.getMetrics().getListenerDroppedCount());
+                    break;
+                }
+            }
+            controller.close();
+        }
+    }
+    
+    /**
+     * Test that removing a listener whose full BLOCK queue is holding up the
+     * receive thread lets the other listeners receive again.
+     */
+    @Test
+    public void testRemoveBlockedListener() throws Exception {
+        System.out.println("removeBlockedListener");
+        MessageController controller = new MessageController(TEST_PORT_24);
+        controller.setListenerQueueCapacity(1, DispatchStrategy.DropPolicy.BLOCK);
+        controller.startReceiving();
+        final CountDownLatch stuck = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MessageControllerListener blocked = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                stuck.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+            }
+
+        };
+        RecordingListener listener = new RecordingListener(0);
+        controller.addListener(blocked);
+        controller.addListener(listener);
+        try {
+            Thread.sleep(100);
+            //The blocked listener takes one, queues one, and then holds up the receive thread
+            sendGeomessages(controller, "before", 3);
+            assertTrue(stuck.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            assertTrue(controller.removeListener(blocked));
+            sendGeomessages(controller, "after", 5);
+            awaitIds(listener, 8);
+            List<String> ids = listener.getIds();
+            assertEquals(expectedIds("after", 5), ids.subList(ids.size() - 5, ids.size()));
+        } finally {
+            release.countDown();
+            controller.close();
+        }
+    }
+    
+    /**
+     * Test that each listener receives its own copy of each Geomessage, so that a
+     * listener that changes its Geomessages does not affect the others.
+     */
+    @Test
+    public void testListenersGetOwnCopies() throws Exception {
+        System.out.println("listenersGetOwnCopies");
+        MessageController controller = new MessageController(TEST_PORT_25);
+        controller.startReceiving();
+        final int count = 20;
+        final List<List<Geomessage>> received = new ArrayList<List<Geomessage>>();
+        final List<String> seen = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            final String name = "listener" + i;
+            final List<Geomessage> messages = new ArrayList<Geomessage>();
+            received.add(messages);
+            controller.addListener(new MessageControllerListener() {
+
+                @Override
+                public void geomessageReceived(Geomessage geomessage) {
+                    //Read what arrived, then change it, as AdvancedSymbolController does
+                    synchronized (seen) {
+                        seen.add(geomessage.getId() + "=" + geomessage.getProperty("uniquedesignation"));
+                    }
+                    geomessage.setProperty("uniquedesignation", name);
+                    synchronized (messages) {
+                        messages.add(geomessage);
+                    }
+                }
+
+                @Override
+                public void datagramReceived(String contents) {
+                }
+
+            });
+        }
+        
+        Thread.sleep(100);
+        GeomessageWriter writer = new GeomessageWriter();
+        for (int i = 0; i < count; i++) {
+            writer.reset().startGeomessages().startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, "copy" + i)
+                    .writeElement("uniquedesignation", "sent")
+                    .endGeomessage().endGeomessages();
+            controller.sendMessage(writer.getBuffer(), 0, writer.size());
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (seen) {
+                if (3 * count <= seen.size()) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        controller.close();
+        synchronized (seen) {
+            assertEquals(3 * count, seen.size());
+            for (String entry : seen) {
+                assertTrue(entry, entry.endsWith("=sent"));
+            }
+        }
+        for (int i = 0; i < received.size(); i++) {
+            for (Geomessage message : received.get(i)) {
+                assertEquals("listener" + i, message.getProperty("uniquedesignation"));
+                for (int j = 0; j < i; j++) {
+                    for (Geomessage other : received.get(j)) {
+                        assertNotSame(other, message);
+                    }
+                }
+            }
+        }
+    }
+    
+    private static void assertInOrder(String idPrefix, List<String> ids) {
+        int previous = -1;
+        for (String id : ids) {
+            int index = Integer.parseInt(id.substring(idPrefix.length()));
+            assertTrue("Out of order: " + ids, previous < index);
+            previous = index;
+        }
+    }
+    
+    /**
+     * Test that one receive thread services several addresses, and that a
+     * controller can stop receiving and start again.
+     */
+    @Test
+    public void testReceiveAddressesAndRestart() throws Exception {
+        System.out.println("receiveAddressesAndRestart");
+        MessageController receivingController = new MessageController(TEST_PORT_20);
+        receivingController.addReceiveAddress(new InetSocketAddress(TEST_PORT_21));
+        receivingController.startReceiving();
+        RecordingListener listener = new RecordingListener(0);
+        receivingController.addListener(listener);
+        
+        MessageController sendingController = new MessageController(TEST_PORT_20);
+        sendingController.setBroadcastEnabled(false);
+        sendingController.addUnicastDestination(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), TEST_PORT_20));
+        sendingController.addUnicastDestination(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), TEST_PORT_21));
+        
+        Thread.sleep(100);
+        sendGeomessages(sendingController, "address", 1);
+        awaitIds(listener, 2);
+        Thread.sleep(100);
+        assertEquals(2, listener.getIds().size());
+        
+        receivingController.stopReceiving();
+        assertFalse(receivingController.isReceiving());
+        assertEquals(MessageController.State.STOPPED, receivingController.getState());
+        receivingController.startReceiving();
+        assertTrue(receivingController.isReceiving());
+        Thread.sleep(100);
+        sendGeomessages(sendingController, "restart", 1);
+        awaitIds(listener, 4);
+        assertEquals(4, listener.getIds().size());
+        
+        sendingController.close();
+        receivingController.close();
+    }
+    
+    /**
+     * Test of getMetrics method, of class MessageController, and of
+     * MessageControllerMonitor's register and unregister methods.
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        System.out.println("metrics");
+        MessageController controller = new MessageController(TEST_PORT_13);
+        controller.startReceiving();
+        MessageControllerListener listener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+            }
+            
+        };
+        controller.addListener(listener);
+        
+        Thread.sleep(100);
+        GeomessageWriter writer = new GeomessageWriter();
+        final int geomessageCount = 5;
+        for (int i = 0; i < geomessageCount; i++) {
+            writer.reset().startGeomessages().startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, Integer.toString(i))
+                    .endGeomessage().endGeomessages();
+            controller.sendMessage(writer.getBuffer(), 0, writer.size());
+        }
+        controller.sendMessage("not XML".getBytes("UTF-8"));
+        Thread.sleep(300);
+        
+        MessageControllerMetrics metrics = controller.getMetrics();
+        assertEquals(geomessageCount + 1, metrics.getReceivedDatagramCount());
+        assertTrue(geomessageCount * writer.size() < metrics.getReceivedByteCount());
+        assertEquals(geomessageCount, metrics.getParsedDatagramCount());
+        assertEquals(1, metrics.getParseFailureCount());
+        assertEquals(geomessageCount, metrics.getReceivedGeomessageCount());
+        assertEquals(geomessageCount + 1, metrics.getSentDatagramCount());
+        assertEquals(metrics.getReceivedByteCount(), metrics.getSentByteCount());
+        assertEquals(0, metrics.getSendErrorCount());
+        assertEquals(geomessageCount + 1, metrics.getSendLatency().getCount());
+        assertEquals(geomessageCount + 1, metrics.getRoutineDeliveryLatency().getCount());
+        assertTrue(0 < metrics.getRoutineDeliveryLatency().getPercentileNanos(99));
+        assertTrue(metrics.getRoutineDeliveryLatency().getPercentileNanos(99)
+                <= metrics.getRoutineDeliveryLatency().getMaxNanos());
+        long histogramTotal = 0;
+        for (long bucketCount : metrics.getRoutineDeliveryLatency().getBucketCounts()) {
+            histogramTotal += bucketCount;
+        }
+        assertEquals(geomessageCount + 1, histogramTotal);
+        
+        ObjectName name = MessageControllerMonitor.register(controller);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(name, MessageControllerMonitor.register(controller));
+        assertEquals(1L, server.getAttribute(name, "ParseFailureCount"));
+        assertEquals(TEST_PORT_13, server.getAttribute(name, "Port"));
+        MessageControllerMonitor.unregister(controller);
+        assertFalse(server.isRegistered(name));
+        
+        controller.removeListener(listener);
+        controller.stopReceiving();
+        
+        name = MessageControllerMonitor.register(controller);
+        assertTrue(server.isRegistered(name));
+        controller.close();
+        assertFalse(server.isRegistered(name));
+    }
+    
+    /**
+     * Test of a RawDatagramListener alongside a String-based listener.
+     */
+    @Test
+    public void testRawDatagramListener() throws Exception {
+        System.out.println("rawDatagramListener");
+        MessageController controller = new MessageController(TEST_PORT_14);
+        controller.startReceiving();
+        final List<byte[]> rawDatagrams = new ArrayList<byte[]>();
+        final List<String> stringDatagrams = new ArrayList<String>();
+        final List<Geomessage> rawGeomessages = new ArrayList<Geomessage>();
+        //Cleared if the raw listener gets a writable buffer or a String
+        final boolean[] readOnly = { true };
+        RawDatagramListener rawListener = new RawDatagramListener() {
+
+            @Override
+            public void datagramReceived(ByteBuffer contents) {
+                readOnly[0] &= contents.isReadOnly();
+                byte[] bytes = new byte[contents.remaining()];
+                contents.get(bytes);
+                synchronized (rawDatagrams) {
+                    rawDatagrams.add(bytes);
+                }
+            }
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+                synchronized (rawGeomessages) {
+                    rawGeomessages.add(geomessage);
+                }
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                readOnly[0] = false;
+            }
+
+        };
+        MessageControllerListener stringListener = new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                synchronized (stringDatagrams) {
+                    stringDatagrams.add(contents);
+                }
+            }
+
+        };
+        controller.addListener(rawListener);
+        controller.addListener(stringListener);
+        
+        Thread.sleep(100);
+        GeomessageWriter writer = new GeomessageWriter();
+        writer.reset().startGeomessages().startGeomessage()
+                .writeElement(Geomessage.ID_FIELD_NAME, "raw")
+                .endGeomessage().endGeomessages();
+        byte[] xml = new byte[writer.size()];
+        System.arraycopy(writer.getBuffer(), 0, xml, 0, xml.length);
+        controller.sendMessage(xml);
+        controller.sendMessage("Caf\u00e9".getBytes("UTF-8"));
+        Thread.sleep(300);
+        
+        synchronized (rawDatagrams) {
+            assertEquals(2, rawDatagrams.size());
+            assertArrayEquals(xml, rawDatagrams.get(0));
+            assertArrayEquals("Caf\u00e9".getBytes("UTF-8"), rawDatagrams.get(1));
+        }
+        assertTrue(readOnly[0]);
+        synchronized (rawGeomessages) {
+            assertEquals(1, rawGeomessages.size());
+            assertEquals("raw", rawGeomessages.get(0).getId());
+        }
+        synchronized (stringDatagrams) {
+            assertEquals(2, stringDatagrams.size());
+            assertEquals(new String(xml, "UTF-8"), stringDatagrams.get(0));
+            assertEquals("Caf\u00e9", stringDatagrams.get(1));
+        }
+        
+        //With only a raw listener, datagrams still arrive
+        controller.removeListener(stringListener);
+        controller.sendMessage(xml);
+        Thread.sleep(300);
+        synchronized (rawDatagrams) {
+            assertEquals(3, rawDatagrams.size());
+            assertArrayEquals(xml, rawDatagrams.get(2));
+        }
+        
+        controller.removeListener(rawListener);
+        controller.stopReceiving();
+    }
+    
+    /**
+     * Test that close drains queued deliveries and that rebind and setPort keep
+     * listeners.
+     */
+    @Test
+    public void testLifecycle() throws Exception {
+        System.out.println("lifecycle");
+        MessageController controller = new MessageController(TEST_PORT_15);
+        assertEquals(MessageController.State.STOPPED, controller.getState());
+        controller.startReceiving();
+        assertEquals(MessageController.State.RECEIVING, controller.getState());
+        final AtomicInteger received = new AtomicInteger(0);
+        controller.addListener(new MessageControllerListener() {
+
+            @Override
+            public void geomessageReceived(Geomessage geomessage) {
+            }
+
+            @Override
+            public void datagramReceived(String contents) {
+                try {
+                    //A slow listener, so that datagrams are still queued at close
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                received.incrementAndGet();
+            }
+
+        });
+        
+        Thread.sleep(100);
+        controller.sendMessage("before rebind".getBytes("UTF-8"));
+        Thread.sleep(200);
+        DatagramSocket occupant = new DatagramSocket(TEST_PORT_23);
+        try {
+            try {
+                controller.rebind(TEST_PORT_23);
+                fail("rebind should fail when the new port is in use");
+            } catch (IOException e) {
+                //Expected
+            }
+            assertEquals(TEST_PORT_15, controller.getPort());
+            controller.setPort(TEST_PORT_23);
+        } finally {
+            occupant.close();
+        }
+        assertEquals(MessageController.State.RECEIVING, controller.getState());
+        assertEquals(TEST_PORT_15, controller.getPort());
+        controller.rebind(TEST_PORT_16);
+        assertEquals(MessageController.State.RECEIVING, controller.getState());
+        assertEquals(TEST_PORT_16, controller.getPort());
+        final int datagramCount = 10;
+        for (int i = 0; i < datagramCount; i++) {
+            controller.sendMessage(("after rebind " + i).getBytes("UTF-8"));
+        }
+        Thread.sleep(200);
+        
+        assertTrue(controller.close(5, TimeUnit.SECONDS));
+        assertEquals(1 + datagramCount, received.get());
+        assertEquals(MessageController.State.CLOSED, controller.getState());
+        assertTrue(controller.close(0, TimeUnit.SECONDS));
+        try {
+            controller.startReceiving();
+            fail("A closed MessageController should not start receiving");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        try {
+            controller.sendMessage("after close".getBytes("UTF-8"));
+            fail("A closed MessageController should not send");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+    
+    private String readGeomessagesXml() throws IOException {
         StringBuilder sb = new StringBuilder();
         InputStream in = getClass().getResource("/geomessages.xml").openStream();
         int next = -1;
@@ -99,6 +1384,45 @@ public class MessageControllerTest {
             sb.append((char) next);
         }
         in.close();
+        return sb.toString();
+    }
+    
+    private static void sendGeomessages(MessageController controller, String idPrefix, int count)
+            throws IOException, InterruptedException {
+        sendGeomessages(controller, idPrefix, count, 0);
+    }
+    
+    private static void sendGeomessages(MessageController controller, String idPrefix, int count, long pauseMillis)
+            throws IOException, InterruptedException {
+        GeomessageWriter writer = new GeomessageWriter();
+        for (int i = 0; i < count; i++) {
+            writer.reset().startGeomessages().startGeomessage()
+                    .writeElement(Geomessage.ID_FIELD_NAME, idPrefix + i)
+                    .endGeomessage().endGeomessages();
+            controller.sendMessage(writer.getBuffer(), 0, writer.size());
+            if (0 < pauseMillis) {
+                Thread.sleep(pauseMillis);
+            }
+        }
+    }
+    
+    private static List<String> expectedIds(String idPrefix, int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ids.add(idPrefix + i);
+        }
+        return ids;
+    }
+    
+    private static void awaitIds(RecordingListener listener, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.getIds().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+    
+    private void doGeomessageTesting(MessageController controller) throws IOException, InterruptedException {
+        String xml = readGeomessagesXml();
         
         final Result result = new Result();
         controller.startReceiving();
@@ -117,7 +1441,7 @@ public class MessageControllerTest {
         };
         controller.addListener(listener);
         
-        String expected = sb.toString();
+        String expected = xml;
         byte[] bytes = expected.getBytes();
         Thread.sleep(100);
         controller.sendMessage(bytes);
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model.test;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageBinaryCodec;
+import com.esri.militaryapps.model.GeomessageParser;
+import com.esri.militaryapps.model.GeomessageWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * A test for the GeomessageBinaryCodec class.
+ * @see com.esri.militaryapps.model.GeomessageBinaryCodec
+ */
+public class GeomessageBinaryCodecTest {
+    
+    private static GeomessageWriter writePositionReport(GeomessageWriter writer, String id) {
+        return writer.startGeomessage()
+                .writeElement(Geomessage.TYPE_FIELD_NAME, "position_report")
+                .writeElement(Geomessage.ACTION_FIELD_NAME, "UPDATE")
+                .writeElement(Geomessage.ID_FIELD_NAME, id)
+                .writeElement(Geomessage.WKID_FIELD_NAME, 4326)
+                .writeElement(Geomessage.SIC_FIELD_NAME, "SFGPEWRR-------")
+                .writeElement("uniquedesignation", "3A1-001")
+                .writeElement("type", "HMMWV")
+                .writeControlPoint(70.4565013, -34.4345)
+                .writeElement("datetimesubmitted", "2014-03-05 14:22:51")
+                .writeElement("datetimevalid", "2014-03-05 14:22:50")
+                .writeElement("direction", 271L)
+                .writeElement("status911", "0")
+                .endGeomessage();
+    }
+    
+    private static List<Geomessage> roundTrip(List<Geomessage> messages) throws IOException {
+        GeomessageBinaryCodec codec = new GeomessageBinaryCodec();
+        codec.reset().writeHeader();
+        for (Geomessage message : messages) {
+            codec.encode(message);
+        }
+        ByteBuffer block = ByteBuffer.wrap(codec.toByteArray());
+        List<Geomessage> decoded = GeomessageBinaryCodec.decode(block);
+        assertFalse(block.hasRemaining());
+        return decoded;
+    }
+    
+    private static void assertSameGeomessages(List<Geomessage> expected, List<Geomessage> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getProperties(), actual.get(i).getProperties());
+        }
+    }
+
+    /**
+     * Test that encoded Geomessages decode to the same values.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        GeomessageWriter writer = new GeomessageWriter();
+        writer.reset().startGeomessages();
+        writePositionReport(writer, "{3a752ef3-b085-41e8-993a-3ec39098fde2}");
+        writePositionReport(writer, UUID.randomUUID().toString().toUpperCase());
+        writer.startGeomessage()
+                .writeElement(Geomessage.ID_FIELD_NAME, "not-a-uuid")
+                .writeElement(Geomessage.WKID_FIELD_NAME, "04326")
+                .writeElement(Geomessage.CONTROL_POINTS_FIELD_NAME, "1.5,2;-3,4.25;-3.0000001,4.2500001")
+                .writeElement("datetimevalid", "yesterday")
+                .writeElement("direction", "-12")
+                .writeElement("additionalinformation", "A & B <1> Caf\u00e9 \u20ac \ud83d\ude00")
+                .endGeomessage();
+        writer.startGeomessage()
+                .writeElement(Geomessage.CONTROL_POINTS_FIELD_NAME, "1,2,3")
+                .writeElement("quantity", "lots")
+                .endGeomessage();
+        writer.startGeomessage()
+                .writeElement(Geomessage.CONTROL_POINTS_FIELD_NAME, "-117.123456789,34")
+                .endGeomessage();
+        writer.startGeomessage()
+                .writeElement(Geomessage.CONTROL_POINTS_FIELD_NAME, "1.5,2.0;-3.0,4.25;-3.0000001,4.2500001")
+                .endGeomessage();
+        writer.endGeomessages();
+        List<Geomessage> messages = new GeomessageParser().parse(writer.getBuffer(), 0, writer.size());
+        assertEquals(6, messages.size());
+        
+        //Control points come back exactly, whether or not they were sent as numbers
+        List<Geomessage> decoded = roundTrip(messages);
+        assertEquals("04326", decoded.get(2).getProperty(Geomessage.WKID_FIELD_NAME));
+        assertEquals("1.5,2;-3,4.25;-3.0000001,4.2500001",
+                decoded.get(2).getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        assertEquals("1,2,3", decoded.get(3).getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        assertEquals("-117.123456789,34", decoded.get(4).getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        assertEquals("1.5,2.0;-3.0,4.25;-3.0000001,4.2500001",
+                decoded.get(5).getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        assertSameGeomessages(messages, decoded);
+        //Points written the way the decoder writes them are still sent as numbers
+        GeomessageBinaryCodec codec = new GeomessageBinaryCodec();
+        String canonical = (String) messages.get(5).getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME);
+        assertTrue(codec.reset().writeHeader().encode(messages.get(5)).size() < canonical.length());
+    }
+
+    /**
+     * Test that a position report is at least five times smaller in binary form
+     * than in XML.
+     */
+    @Test
+    public void testPositionReportSize() throws Exception {
+        GeomessageWriter writer = new GeomessageWriter();
+        writer.reset().startGeomessages();
+        writePositionReport(writer, UUID.randomUUID().toString());
+        writer.endGeomessages();
+        List<Geomessage> messages = new GeomessageParser().parse(writer.getBuffer(), 0, writer.size());
+        
+        GeomessageBinaryCodec codec = new GeomessageBinaryCodec();
+        codec.reset().writeHeader().encode(messages.get(0));
+        assertTrue("XML is " + writer.size() + " bytes but binary is " + codec.size(),
+                codec.size() * 5 <= writer.size());
+        assertSameGeomessages(messages, GeomessageBinaryCodec.decode(ByteBuffer.wrap(codec.toByteArray())));
+    }
+
+    /**
+     * Test that decode rejects malformed blocks.
+     */
+    @Test
+    public void testDecodeMalformed() throws Exception {
+        GeomessageBinaryCodec codec = new GeomessageBinaryCodec();
+        Geomessage message = new Geomessage();
+        message.setId(UUID.randomUUID().toString());
+        message.setProperty("uniquedesignation", "3A1-001");
+        byte[] block = codec.reset().writeHeader().encode(message).toByteArray();
+        for (int length = 0; length < block.length; length++) {
+            try {
+                List<Geomessage> decoded = GeomessageBinaryCodec.decode(ByteBuffer.wrap(block, 0, length));
+                assertTrue("A truncated block decoded", 1 == length && decoded.isEmpty());
+            } catch (IOException e) {
+                //Expected
+            }
+        }
+        block[0] = 99;
+        try {
+            GeomessageBinaryCodec.decode(ByteBuffer.wrap(block));
+            fail("An unknown format version should not decode");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model.test;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageParser;
+import com.esri.militaryapps.model.GeomessagesReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.SAXException;
+
+/**
+ * A test for the GeomessageParser class.
+ * @see com.esri.militaryapps.model.GeomessageParser
+ */
+public class GeomessageParserTest {
+
+    private static byte[] readGeomessagesXml() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = GeomessageParserTest.class.getResource("/geomessages.xml").openStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while (-1 != (count = in.read(buffer))) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Test of parse method, of class GeomessageParser.
+     */
+    @Test
+    public void testParse() throws Exception {
+        byte[] bytes = readGeomessagesXml();
+        List<Geomessage> messages = new GeomessageParser().parse(bytes, 0, bytes.length);
+        assertEquals(2, messages.size());
+        Geomessage first = messages.get(0);
+        assertEquals("{3a752ef3-b085-41e8-993a-3ec39098fde2}", first.getId());
+        assertEquals("position_report", first.getProperty(Geomessage.TYPE_FIELD_NAME));
+        assertEquals("70.4565000013,34.4345000014", first.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        assertEquals("3A1-001", first.getProperty("uniquedesignation"));
+        assertEquals("2012-07-26 00:00:00", first.getProperty("datetimevalid"));
+        assertNull(first.getProperty(Geomessage.ID_FIELD_NAME));
+        assertNull(first.getProperty("geomessage"));
+        assertEquals("3A2-002", messages.get(1).getProperty("uniquedesignation"));
+    }
+
+    /**
+     * Test that GeomessageParser and GeomessagesReader produce the same Geomessages.
+     */
+    @Test
+    public void testMatchesGeomessagesReader() throws Exception {
+        byte[] bytes = readGeomessagesXml();
+        List<Geomessage> expected = new GeomessagesReader().parseMessages(new String(bytes, "UTF-8"));
+        List<Geomessage> actual = new GeomessageParser().parse(bytes, 0, bytes.length);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getProperties(), actual.get(i).getProperties());
+        }
+    }
+
+    /**
+     * Test of parse method with entities, CDATA, comments, and non-ASCII text.
+     */
+    @Test
+    public void testParseEscapedText() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!-- a comment -->"
+                + "<geomessages><geomessage v=\"1.0\">"
+                + "<_id>abc</_id>"
+                + "<uniquedesignation>A &amp; B &lt;1&gt; &#x41;&#66;</uniquedesignation>"
+                + "<additionalinformation><![CDATA[<not markup> & stuff]]></additionalinformation>"
+                + "<owningunit>Caf\u00e9 \u20ac</owningunit>"
+                + "<empty/>"
+                + "</geomessage></geomessages>";
+        byte[] bytes = xml.getBytes("UTF-8");
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.flip();
+        List<Geomessage> messages = new GeomessageParser().parse(direct);
+        assertEquals(0, direct.position());
+        assertEquals(1, messages.size());
+        Geomessage message = messages.get(0);
+        assertEquals("abc", message.getId());
+        assertEquals("A & B <1> AB", message.getProperty("uniquedesignation"));
+        assertEquals("<not markup> & stuff", message.getProperty("additionalinformation"));
+        assertEquals("Caf\u00e9 \u20ac", message.getProperty("owningunit"));
+        assertFalse(message.getProperties().containsKey("empty"));
+    }
+
+    /**
+     * Test that parse rejects text that is not XML.
+     */
+    @Test
+    public void testParseNotXml() {
+        byte[] bytes = "Test message 12345".getBytes();
+        try {
+            new GeomessageParser().parse(bytes, 0, bytes.length);
+            fail("Text that is not XML should not parse");
+        } catch (SAXException e) {
+            //Expected
+        }
+        bytes = "<geomessages><geomessage></geomessages>".getBytes();
+        try {
+            new GeomessageParser().parse(bytes, 0, bytes.length);
+            fail("Mismatched tags should not parse");
+        } catch (SAXException e) {
+            //Expected
+        }
+    }
+
+}
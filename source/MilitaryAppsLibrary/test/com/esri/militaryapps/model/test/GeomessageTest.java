@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model.test;
+
+import com.esri.militaryapps.model.Geomessage;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * A test for the Geomessage class.
+ * @see com.esri.militaryapps.model.Geomessage
+ */
+public class GeomessageTest {
+
+    /**
+     * Test that well-known fields come back exactly as they were set.
+     */
+    @Test
+    public void testTypedFields() {
+        Geomessage message = new Geomessage();
+        String[][] values = {
+            { Geomessage.TYPE_FIELD_NAME, "position_report" },
+            { Geomessage.ACTION_FIELD_NAME, "UPDATE" },
+            { Geomessage.SIC_FIELD_NAME, "SFGPEVAL-------" },
+            { Geomessage.CONTROL_POINTS_FIELD_NAME, "70.4565000013,34.4345000014" },
+            { Geomessage.WKID_FIELD_NAME, "4326" },
+            { "datetimevalid", "2012-07-26 13:45:07" },
+            { "status911", "1" }
+        };
+        for (String[] value : values) {
+            message.setProperty(value[0], value[1]);
+        }
+        for (String[] value : values) {
+            assertEquals(value[1], message.getProperty(value[0]));
+        }
+        assertEquals(values.length, message.getProperties().size());
+        message.setProperty(Geomessage.WKID_FIELD_NAME, "-2147483648");
+        assertEquals("-2147483648", message.getProperty(Geomessage.WKID_FIELD_NAME));
+    }
+
+    /**
+     * Test that values that do not fit a typed slot are kept as they were set.
+     */
+    @Test
+    public void testNonCanonicalValues() {
+        Geomessage message = new Geomessage();
+        Object[][] values = {
+            { Geomessage.WKID_FIELD_NAME, "04326" },
+            { Geomessage.WKID_FIELD_NAME, "-0" },
+            { Geomessage.WKID_FIELD_NAME, "2147483648" },
+            { Geomessage.WKID_FIELD_NAME, "abc" },
+            { Geomessage.WKID_FIELD_NAME, Integer.valueOf(4326) },
+            { "datetimevalid", "2012-02-30 00:00:00" },
+            { "datetimevalid", "2012-07-26T00:00:00Z" },
+            { "status911", "2" },
+            { "status911", null },
+            { Geomessage.TYPE_FIELD_NAME, null }
+        };
+        HashMap<String, String> canonical = new HashMap<String, String>();
+        canonical.put(Geomessage.WKID_FIELD_NAME, "4326");
+        canonical.put("datetimevalid", "2012-07-26 00:00:00");
+        canonical.put("status911", "0");
+        canonical.put(Geomessage.TYPE_FIELD_NAME, "spotrep");
+        for (Object[] value : values) {
+            String name = (String) value[0];
+            message.setProperty(name, canonical.get(name));
+            message.setProperty(name, value[1]);
+            assertEquals(value[1], message.getProperty(name));
+            assertTrue(message.hasProperty(name));
+            assertTrue(message.getProperties().containsKey(name));
+        }
+        message.setProperty("status911", "0");
+        assertEquals("0", message.getProperty("status911"));
+        assertEquals(4, message.getProperties().size());
+    }
+
+    /**
+     * Test that getProperties() is a live view that behaves like a HashMap.
+     */
+    @Test
+    public void testPropertiesView() {
+        Geomessage message = new Geomessage();
+        HashMap<String, Object> expected = new HashMap<String, Object>();
+        for (int i = 0; i < 50; i++) {
+            message.setProperty("custom" + i, Integer.toString(i));
+            expected.put("custom" + i, Integer.toString(i));
+        }
+        message.setProperty(Geomessage.TYPE_FIELD_NAME, "trackrep");
+        expected.put(Geomessage.TYPE_FIELD_NAME, "trackrep");
+        message.setProperty("empty", null);
+        expected.put("empty", null);
+        assertEquals(expected, message.getProperties());
+        assertEquals(message.getProperties(), expected);
+        assertEquals(expected.hashCode(), message.getProperties().hashCode());
+        
+        //Remove every other property while iterating
+        Iterator<Map.Entry<String, Object>> iterator = message.getProperties().entrySet().iterator();
+        boolean remove = true;
+        while (iterator.hasNext()) {
+            Map.Entry<String, Object> entry = iterator.next();
+            if (remove) {
+                iterator.remove();
+                expected.remove(entry.getKey());
+            } else {
+                entry.setValue("changed");
+                expected.put(entry.getKey(), "changed");
+            }
+            remove = !remove;
+        }
+        assertEquals(expected, message.getProperties());
+        for (String name : expected.keySet()) {
+            assertEquals("changed", message.getProperty(name));
+        }
+        
+        Map<String, Object> properties = message.getProperties();
+        assertEquals("changed", properties.remove(expected.keySet().iterator().next()));
+        assertEquals(expected.size() - 1, properties.size());
+        properties.clear();
+        assertTrue(message.getProperties().isEmpty());
+        assertNull(message.getProperty(Geomessage.TYPE_FIELD_NAME));
+    }
+
+    /**
+     * Test of getControlPoints and getWkid.
+     */
+    @Test
+    public void testControlPointsAndWkid() {
+        Geomessage message = new Geomessage();
+        assertNull(message.getControlPoints());
+        assertEquals(-1, message.getWkid());
+        
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, "70.4565000013,34.4345000014");
+        message.setProperty(Geomessage.WKID_FIELD_NAME, "4326");
+        assertArrayEquals(new double[] { 70.4565000013, 34.4345000014 }, message.getControlPoints(), 0);
+        assertEquals(4326, message.getWkid());
+        assertEquals("70.4565000013,34.4345000014", message.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        
+        //Forms that the numbers alone do not reproduce
+        String[] texts = { "1,2;3,4", "70,34", "1.50, 2.0", " 1.0;2.0 ", "-0.0,1e3" };
+        double[][] coordinates = { { 1, 2, 3, 4 }, { 70, 34 }, { 1.5, 2 }, { 1, 2 }, { -0.0, 1000 } };
+        for (int i = 0; i < texts.length; i++) {
+            message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, texts[i]);
+            assertArrayEquals(coordinates[i], message.getControlPoints(), 0);
+            assertEquals(texts[i], message.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        }
+        
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, "70.1,north");
+        assertNull(message.getControlPoints());
+        assertEquals("70.1,north", message.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        message.setProperty(Geomessage.CONTROL_POINTS_FIELD_NAME, null);
+        assertNull(message.getControlPoints());
+        message.setProperty(Geomessage.WKID_FIELD_NAME, "WGS84");
+        assertEquals(-1, message.getWkid());
+        assertEquals("WGS84", message.getProperty(Geomessage.WKID_FIELD_NAME));
+        message.removeProperty(Geomessage.WKID_FIELD_NAME);
+        assertEquals(-1, message.getWkid());
+    }
+
+    /**
+     * Test that a clone does not share changes with its original.
+     */
+    @Test
+    public void testClone() {
+        Geomessage message = new Geomessage();
+        message.setId("abc");
+        message.setProperty(Geomessage.SIC_FIELD_NAME, "SFGPEVAL-------");
+        message.setProperty("uniquedesignation", "3A1-001");
+        Geomessage clone = message.clone();
+        clone.setProperty("uniquedesignation", "");
+        clone.setProperty(Geomessage.SIC_FIELD_NAME, "SHGPEVAL-------");
+        assertEquals("abc", clone.getId());
+        assertEquals("3A1-001", message.getProperty("uniquedesignation"));
+        assertEquals("SFGPEVAL-------", message.getProperty(Geomessage.SIC_FIELD_NAME));
+        assertEquals("", clone.getProperty("uniquedesignation"));
+        assertEquals("SHGPEVAL-------", clone.getProperty(Geomessage.SIC_FIELD_NAME));
+    }
+
+    /**
+     * Test that a clone and its original stay independent through overrides,
+     * removals, and enough changes to outgrow the override layer.
+     */
+    @Test
+    public void testCloneOverrides() {
+        Geomessage original = new Geomessage();
+        HashMap<String, Object> originalExpected = new HashMap<String, Object>();
+        for (int i = 0; i < 20; i++) {
+            original.setProperty("field" + i, "value" + i);
+            originalExpected.put("field" + i, "value" + i);
+        }
+        Geomessage clone = original.clone();
+        HashMap<String, Object> cloneExpected = new HashMap<String, Object>(originalExpected);
+        for (int changes = 0; changes < 30; changes++) {
+            String name = "field" + (changes * 7 % 25);
+            if (0 == changes % 5) {
+                clone.removeProperty(name);
+                cloneExpected.remove(name);
+            } else {
+                clone.setProperty(name, "clone" + changes);
+                cloneExpected.put(name, "clone" + changes);
+            }
+            if (0 == changes % 3) {
+                original.setProperty(name, "original" + changes);
+                originalExpected.put(name, "original" + changes);
+            }
+            assertEquals(cloneExpected, clone.getProperties());
+            assertEquals(originalExpected, original.getProperties());
+            
+            Geomessage cloneOfClone = clone.clone();
+            assertEquals(cloneExpected, cloneOfClone.getProperties());
+            cloneOfClone.setProperty("field0", "other");
+            assertEquals(cloneExpected, clone.getProperties());
+        }
+        Iterator<Map.Entry<String, Object>> iterator = clone.getProperties().entrySet().iterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        assertTrue(clone.getProperties().isEmpty());
+        assertEquals(originalExpected, original.getProperties());
+    }
+
+    /**
+     * Test that threads that only read a Geomessage can each clone it and change
+     * their clones, and that changing the original afterward leaves the clones alone.
+     */
+    @Test
+    public void testCloneOnReaderThreads() throws Exception {
+        final Geomessage original = new Geomessage();
+        for (int i = 0; i < 10; i++) {
+            original.setProperty("field" + i, "value" + i);
+        }
+        final Geomessage[] clones = new Geomessage[4];
+        Thread[] threads = new Thread[clones.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    Geomessage clone = original.clone();
+                    clone.setProperty("field0", "clone" + index);
+                    clones[index] = clone;
+                }
+                
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < 10; i++) {
+            original.setProperty("field" + i, "changed");
+        }
+        for (int t = 0; t < clones.length; t++) {
+            assertEquals("clone" + t, clones[t].getProperty("field0"));
+            for (int i = 1; i < 10; i++) {
+                assertEquals("value" + i, clones[t].getProperty("field" + i));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model.test;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessageParser;
+import com.esri.militaryapps.model.GeomessageTemplate;
+import com.esri.militaryapps.model.GeomessageWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * A test for the GeomessageWriter class.
+ * @see com.esri.militaryapps.model.GeomessageWriter
+ */
+public class GeomessageWriterTest {
+
+    /**
+     * Test that written Geomessages parse back to the same values.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        GeomessageWriter writer = new GeomessageWriter(16);
+        writer.reset().startGeomessages().startGeomessage()
+                .writeElement(Geomessage.TYPE_FIELD_NAME, "position_report")
+                .writeElement(Geomessage.ID_FIELD_NAME, "{3a752ef3}")
+                .writeElement(Geomessage.WKID_FIELD_NAME, 4326)
+                .writeControlPoint(70.4565000013, -34.4345)
+                .writeElement("uniquedesignation", "A & B <1> Caf\u00e9 \u20ac \ud83d\ude00")
+                .writeElement("direction", -45L)
+                .writeElement("empty", (String) null)
+                .endGeomessage().endGeomessages();
+        
+        List<Geomessage> messages = new GeomessageParser().parse(writer.getBuffer(), 0, writer.size());
+        assertEquals(1, messages.size());
+        Geomessage message = messages.get(0);
+        assertEquals("{3a752ef3}", message.getId());
+        assertEquals("position_report", message.getProperty(Geomessage.TYPE_FIELD_NAME));
+        assertEquals("4326", message.getProperty(Geomessage.WKID_FIELD_NAME));
+        assertEquals("70.4565000013,-34.4345", message.getProperty(Geomessage.CONTROL_POINTS_FIELD_NAME));
+        assertEquals("A & B <1> Caf\u00e9 \u20ac \ud83d\ude00", message.getProperty("uniquedesignation"));
+        assertEquals("-45", message.getProperty("direction"));
+        assertEquals(new String(writer.toByteArray(), "UTF-8"), writer.toString());
+        
+        writer.reset();
+        assertEquals(0, writer.size());
+    }
+
+    /**
+     * Test of startGeomessage(GeomessageTemplate) method, of class GeomessageWriter.
+     */
+    @Test
+    public void testTemplate() throws Exception {
+        LinkedHashMap<String, String> staticElements = new LinkedHashMap<String, String>();
+        staticElements.put(Geomessage.TYPE_FIELD_NAME, "position_report");
+        staticElements.put(Geomessage.ID_FIELD_NAME, "abc");
+        staticElements.put("uniquedesignation", "A & B");
+        GeomessageTemplate template = new GeomessageTemplate(staticElements);
+        
+        GeomessageWriter writer = new GeomessageWriter();
+        writer.reset().startGeomessages();
+        for (int i = 0; i < 3; i++) {
+            writer.startGeomessage(template).writeElement("direction", i).endGeomessage();
+        }
+        writer.endGeomessages();
+        
+        List<Geomessage> messages = new GeomessageParser().parse(writer.getBuffer(), 0, writer.size());
+        assertEquals(3, messages.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("abc", messages.get(i).getId());
+            assertEquals("A & B", messages.get(i).getProperty("uniquedesignation"));
+            assertEquals(Integer.toString(i), messages.get(i).getProperty("direction"));
+        }
+        assertEquals(template.getLength(), template.toString().length());
+    }
+
+    /**
+     * Test that dates match Utilities.DATE_FORMAT_GEOMESSAGE.
+     */
+    @Test
+    public void testDates() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        GeomessageWriter writer = new GeomessageWriter();
+        Random random = new Random(42);
+        long[] fixed = new long[] { 0L, -1L, 951782400000L, 951868799999L, 4102444800000L };
+        for (int i = 0; i < 10000; i++) {
+            long millis = i < fixed.length ? fixed[i] : (long) (random.nextDouble() * 8000000000000L) - 2000000000000L;
+            writer.reset().writeDateElement("d", millis);
+            assertEquals("<d>" + format.format(new Date(millis)) + "</d>", writer.toString());
+        }
+    }
+
+    /**
+     * Test that numbers parse back to the values written.
+     */
+    @Test
+    public void testDoubles() {
+        GeomessageWriter writer = new GeomessageWriter();
+        Random random = new Random(42);
+        double[] fixed = new double[] { 0.0, 1.0, -1.0, 0.5, 9.99999999999999, 123456789.123, -1e-7, 1e20, Double.NaN };
+        for (int i = 0; i < 10000; i++) {
+            double value = i < fixed.length ? fixed[i] : (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(16));
+            writer.reset().writeElement("v", value);
+            String text = writer.toString();
+            double parsed = Double.parseDouble(text.substring(3, text.length() - 4));
+            if (Double.isNaN(value)) {
+                assertTrue(Double.isNaN(parsed));
+            } else {
+                assertEquals(text, value, parsed, Math.abs(value) * 1e-14 + 1e-10);
+            }
+        }
+        writer.reset().writeElement("v", 2.0);
+        assertEquals("<v>2.0</v>", writer.toString());
+    }
+
+}
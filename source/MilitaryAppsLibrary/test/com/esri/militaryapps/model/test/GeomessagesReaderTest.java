@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2013-2014 Esri
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ******************************************************************************/
+package com.esri.militaryapps.model.test;
+
+import com.esri.militaryapps.model.Geomessage;
+import com.esri.militaryapps.model.GeomessagesReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * A test for the GeomessagesReader class.
+ * @see com.esri.militaryapps.model.GeomessagesReader
+ */
+public class GeomessagesReaderTest {
+
+    /**
+     * Test that each call to parseMessages returns its own list.
+     */
+    @Test
+    public void testParseMessagesReturnsNewList() throws Exception {
+        String xml = "<geomessages><geomessage><_id>a</_id><_type>position_report</_type></geomessage></geomessages>";
+        GeomessagesReader reader = GeomessagesReader.getThreadLocalInstance();
+        assertSame(reader, GeomessagesReader.getThreadLocalInstance());
+        List<Geomessage> first = reader.parseMessages(xml);
+        List<Geomessage> second = reader.parseMessages(xml);
+        assertNotSame(first, second);
+        assertEquals(1, first.size());
+        assertEquals("a", first.get(0).getId());
+    }
+
+    /**
+     * Test of parseMessagesInParallel method, of class GeomessagesReader.
+     */
+    @Test
+    public void testParseMessagesInParallel() throws Exception {
+        final int messageCount = 1000;
+        File file = File.createTempFile("geomessages", ".xml");
+        file.deleteOnExit();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- archive -->\n<geomessages>\n");
+            for (int i = 0; i < messageCount; i++) {
+                out.write("<geomessage v=\"1.0\"><_type>position_report</_type><_id>" + i + "</_id>"
+                        + "<uniquedesignation>unit &amp; " + i + "</uniquedesignation></geomessage>\n");
+            }
+            out.write("</geomessages>\n");
+        } finally {
+            out.close();
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Geomessage> messages = GeomessagesReader.parseMessagesInParallel(file, executor, 4);
+            assertEquals(messageCount, messages.size());
+            for (int i = 0; i < messageCount; i++) {
+                assertEquals(Integer.toString(i), messages.get(i).getId());
+                assertEquals("unit & " + i, messages.get(i).getProperty("uniquedesignation"));
+            }
+            assertEquals(new GeomessagesReader().parseMessages(file).size(),
+                    GeomessagesReader.parseMessagesInParallel(file, executor, 1).size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}